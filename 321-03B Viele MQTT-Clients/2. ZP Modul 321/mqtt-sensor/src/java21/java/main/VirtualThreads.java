@@ -0,0 +1,12 @@
+package main;
+
+/**
+ * Nur im Java-21-Build ({@code mvn -Pjava21}), siehe {@link Threads}.
+ */
+final class VirtualThreads implements Threads.Provider {
+
+    @Override
+    public Thread newThread(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).unstarted(task);
+    }
+}
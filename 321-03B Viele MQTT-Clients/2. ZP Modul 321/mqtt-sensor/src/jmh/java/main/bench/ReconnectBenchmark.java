@@ -0,0 +1,201 @@
+package main.bench;
+
+import com.hivemq.embedded.EmbeddedHiveMQ;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startet den Broker mehrmals neu und prüft, ob {@code MySensor} sich jedes Mal wieder
+ * verbindet und weiter veröffentlicht.
+ *
+ * Der Broker ist ein eingebetteter HiveMQ CE, der nach jedem Stopp auf demselben Port neu
+ * startet. Der Sensor läuft wie im Betrieb als eigener Prozess, mit kurzem Messintervall und
+ * kurzem Backoff, seine Ausgabe landet in {@code target/reconnect-sensor.log}. Ein Subscriber
+ * zählt pro Laufzeit des Brokers:
+ * <ul>
+ *   <li>die Zeit vom Broker-Start bis zur ersten Nachricht des Sensors</li>
+ *   <li>die Nachrichten mit Messzeitpunkt in dieser Laufzeit und die nachgeholten, die der
+ *       Sensor gemessen hat, während der Broker weg war</li>
+ * </ul>
+ * Am Ende steht die CPU-Zeit des Sensor-Prozesses; wartet der Sende-Thread, statt den Puffer
+ * abzufragen, bleibt sie auch während der Ausfälle klein.
+ *
+ * Schlägt mit Exit-Code 1 fehl, wenn in einer Laufzeit keine Nachricht ankommt oder weniger
+ * als die Hälfte der Messwerte, die der Sensor während dieser Laufzeit gemessen hat.
+ *
+ * Bauen mit {@code mvn -Pjmh package}, dann
+ * {@code java -cp target/M321-MQTT-0.0.1-SNAPSHOT-jar-with-dependencies.jar main.bench.ReconnectBenchmark}.
+ *
+ * Systemproperties:
+ * <ul>
+ *   <li>{@code bench.restarts} - Anzahl Neustarts des Brokers (Standard 5)</li>
+ *   <li>{@code bench.up} - Millisekunden, die der Broker jeweils läuft (Standard 5000)</li>
+ *   <li>{@code bench.down} - Millisekunden, die der Broker jeweils weg ist (Standard 3000)</li>
+ *   <li>{@code bench.interval} - Messintervall des Sensors in Millisekunden (Standard 100)</li>
+ * </ul>
+ */
+public class ReconnectBenchmark {
+    private static final int RESTARTS = Integer.getInteger("bench.restarts", 5);
+    private static final long UP_MS = Long.getLong("bench.up", 5000);
+    private static final long DOWN_MS = Long.getLong("bench.down", 3000);
+    private static final long INTERVAL_MS = Long.getLong("bench.interval", 100);
+    // Wie MySensor das Topic aus --pub=1 bildet
+    private static final String TOPIC = "sensor/1";
+
+    // Zähler der laufenden Periode, vom Callback des Subscribers geschrieben
+    private static final AtomicLong received = new AtomicLong();
+    private static final AtomicLong backlog = new AtomicLong();
+    private static final AtomicLong firstArrival = new AtomicLong();
+    private static volatile long upSince;
+
+    public static void main(String[] args) throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        String uri = "tcp://127.0.0.1:" + port;
+        Path config = Files.createTempDirectory("reconnect-broker-config");
+        Files.write(config.resolve("config.xml"), ("<hivemq>"
+                + "<listeners><tcp-listener><port>" + port + "</port><bind-address>127.0.0.1</bind-address></tcp-listener></listeners>"
+                + "<persistence><mode>in-memory</mode></persistence>"
+                + "<anonymous-usage-statistics><enabled>false</enabled></anonymous-usage-statistics>"
+                + "</hivemq>").getBytes(StandardCharsets.UTF_8));
+
+        Process sensor = null;
+        EmbeddedHiveMQ broker = null;
+        boolean failed = false;
+        long started = System.nanoTime();
+        try {
+            System.out.printf("%-9s %14s %10s %11s %9s%n", "Laufzeit", "erste Nachr. ms", "empfangen", "nachgeholt", "erwartet");
+            for (int period = 0; period <= RESTARTS; period++) {
+                broker = startBroker(config);
+                received.set(0);
+                backlog.set(0);
+                firstArrival.set(0);
+                upSince = System.currentTimeMillis();
+                // Vor dem Sensor verbunden, damit keine Nachricht nach dem Neustart verpasst wird
+                MqttClient subscriber = subscribe(uri);
+                if (sensor == null) {
+                    sensor = startSensor(uri);
+                }
+                Thread.sleep(UP_MS);
+                subscriber.disconnectForcibly(0, 1000);
+                subscriber.close();
+
+                long first = firstArrival.get();
+                long firstMs = first == 0 ? -1 : first - upSince;
+                long fresh = received.get() - backlog.get();
+                // Auch was der Sensor vor der Wiederverbindung gemessen hat, kommt aus dem Puffer
+                long expected = UP_MS / INTERVAL_MS;
+                System.out.printf("%-9d %14d %10d %11d %9d%n", period, firstMs, received.get(), backlog.get(), expected);
+                if (first == 0 || fresh < expected / 2) {
+                    failed = true;
+                }
+
+                broker.stop().join();
+                broker = null;
+                if (period < RESTARTS) {
+                    Thread.sleep(DOWN_MS);
+                }
+            }
+
+            double wallSeconds = (System.nanoTime() - started) / 1e9;
+            Duration cpu = sensor.info().totalCpuDuration().orElse(Duration.ZERO);
+            System.out.printf("CPU-Zeit des Sensors: %d ms in %.1f s (%.1f %%)%n",
+                    cpu.toMillis(), wallSeconds, 100 * cpu.toMillis() / 1000.0 / wallSeconds);
+        } finally {
+            if (sensor != null) {
+                sensor.destroy();
+                sensor.waitFor(10, TimeUnit.SECONDS);
+            }
+            if (broker != null) {
+                broker.stop().join();
+            }
+        }
+
+        if (failed) {
+            System.out.println("FEHLGESCHLAGEN: der Sensor hat nach mindestens einem Neustart nicht wieder "
+                    + "zuverlässig veröffentlicht, siehe target/reconnect-sensor.log");
+            System.exit(1);
+        }
+        System.out.println("OK: der Sensor hat nach allen " + RESTARTS + " Neustarts weiter veröffentlicht");
+        System.exit(0);
+    }
+
+    private static EmbeddedHiveMQ startBroker(Path config) throws IOException {
+        EmbeddedHiveMQ hiveMQ = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(config)
+                .withDataFolder(Files.createTempDirectory("reconnect-broker-data"))
+                .withExtensionsFolder(Files.createTempDirectory("reconnect-broker-extensions"))
+                .build();
+        hiveMQ.start().join();
+        return hiveMQ;
+    }
+
+    private static MqttClient subscribe(String uri) throws MqttException {
+        MqttClient client = new MqttClient(uri, "bench-" + UUID.randomUUID(), new MemoryPersistence());
+        client.connect();
+        client.subscribe(TOPIC, 0, (topic, message) -> {
+            long now = System.currentTimeMillis();
+            received.incrementAndGet();
+            firstArrival.compareAndSet(0, now);
+            // Vor dem Broker-Start gemessen: aus dem Puffer nachgeholt
+            if (timestamp(message.getPayload()) < upSince) {
+                backlog.incrementAndGet();
+            }
+        });
+        return client;
+    }
+
+    /**
+     * Startet MySensor mit dem Klassenpfad des Harness als eigenen Prozess.
+     */
+    private static Process startSensor(String uri) throws IOException {
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                "main.MySensor", "--pub=1", "--sub=control-1");
+        Map<String, String> env = builder.environment();
+        env.put("MQTT_BROKER", uri);
+        env.put("SAMPLE_INTERVAL_MS", String.valueOf(INTERVAL_MS));
+        env.put("METRICS_PORT", "0");
+        env.put("RECONNECT_MIN_DELAY_MS", "200");
+        env.put("RECONNECT_MAX_DELAY_MS", "2000");
+        // Der Rückstand eines Ausfalls soll innerhalb einer Laufzeit abgebaut sein
+        env.put("CATCHUP_RATE", String.valueOf(Math.max(20, 4000 / INTERVAL_MS)));
+        File log = new File("target/reconnect-sensor.log");
+        log.getParentFile().mkdirs();
+        builder.redirectErrorStream(true);
+        builder.redirectOutput(log);
+        return builder.start();
+    }
+
+    /**
+     * Wert des Felds timestamp im JSON des Sensors, 0 wenn es fehlt.
+     */
+    private static long timestamp(byte[] payload) {
+        String text = new String(payload, StandardCharsets.UTF_8);
+        int key = text.indexOf("\"timestamp\":");
+        if (key < 0) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = key + "\"timestamp\":".length(); i < text.length() && Character.isDigit(text.charAt(i)); i++) {
+            value = value * 10 + (text.charAt(i) - '0');
+        }
+        return value;
+    }
+}
@@ -0,0 +1,171 @@
+package main;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Kompaktes Binärformat als Alternative zum JSON-Payload, wählbar mit {@code --format=binary}
+ * oder {@code PAYLOAD_FORMAT=binary}. Gleiches Format wie im influxdb-connector.
+ *
+ * Aufbau von Version 1, alle Ganzzahlen als vorzeichenlose LEB128-Varints:
+ * <pre>
+ *   0xB1                       Kennung und Version; 0xBx steht nie am Anfang von JSON oder UTF-8-Text
+ *   flags                      ein Byte, siehe die FLAG_-Konstanten
+ *   [len, UTF-8] sensor        falls FLAG_SENSOR
+ *   [len, UTF-8] sensor_id     falls FLAG_SENSOR_ID
+ *   [len, UTF-8] unit          falls FLAG_UNIT
+ *   value                      falls FLAG_VALUE: Zigzag-Mantisse und ein Byte Skala (value = Mantisse / 10^Skala)
+ *                              bei FLAG_DECIMAL, sonst 8 Bytes IEEE 754 big-endian
+ *   timestamp                  falls FLAG_TIMESTAMP: Epoch-Millisekunden
+ * </pre>
+ * Mehrere Messwerte können auch zusammen in einem Batch gesendet werden, siehe {@link ReadingBatcher}.
+ * Ein Messwert von MySensor braucht so 13 statt ~52 Bytes. Werte mit höchstens
+ * {@link #MAX_SCALE} Nachkommastellen brauchen 2-4 Bytes und ergeben beim Dekodieren
+ * genau denselben double; alle anderen werden als 8 Bytes übertragen.
+ *
+ * Nicht thread-safe: eine Instanz pro sendendem Thread.
+ */
+public class BinaryPayloadEncoder {
+    public static final int MARKER_MASK = 0xF0;
+    public static final int MARKER = 0xB0;
+    public static final int VERSION_1 = 1;
+    // Weitere Werte im unteren Halbbyte: 0xB2 Batch und 0xB3 komprimierter Batch mehrerer Messwerte
+    public static final int BATCH = 2;
+    public static final int COMPRESSED = 3;
+
+    public static final int FLAG_SENSOR = 1;
+    public static final int FLAG_SENSOR_ID = 1 << 1;
+    public static final int FLAG_UNIT = 1 << 2;
+    public static final int FLAG_VALUE = 1 << 3;
+    public static final int FLAG_DECIMAL = 1 << 4;
+    public static final int FLAG_TIMESTAMP = 1 << 5;
+
+    public static final int MAX_SCALE = 6;
+    static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+    // Grössere Mantissen sind als double nicht exakt, die Division wäre nicht umkehrbar
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private byte[] buf = new byte[64];
+    private int pos;
+
+    // Die Strings eines Sensors ändern sich selten, ihre Bytes werden von der letzten Nachricht übernommen
+    private String lastSensor;
+    private byte[] lastSensorBytes;
+    private String lastSensorId;
+    private byte[] lastSensorIdBytes;
+    private String lastUnit;
+    private byte[] lastUnitBytes;
+
+    /**
+     * True, wenn ein Payload im Binärformat statt als JSON vorliegt.
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && (payload[0] & MARKER_MASK) == MARKER;
+    }
+
+    /**
+     * @param sensor null, um das Feld wegzulassen, ebenso sensorId und unit
+     * @param value NaN, um das Feld wegzulassen
+     * @param timestampMillis negativ, um das Feld wegzulassen
+     * @return ein neues Array mit dem Payload
+     */
+    public byte[] encode(String sensor, String sensorId, double value, String unit, long timestampMillis) {
+        pos = 0;
+        ensure(2);
+        buf[pos++] = (byte) (MARKER | VERSION_1);
+        int flagsAt = pos++;
+        int flags = 0;
+
+        if (sensor != null) {
+            if (!sensor.equals(lastSensor)) {
+                lastSensor = sensor;
+                lastSensorBytes = sensor.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastSensorBytes);
+            flags |= FLAG_SENSOR;
+        }
+        if (sensorId != null) {
+            if (!sensorId.equals(lastSensorId)) {
+                lastSensorId = sensorId;
+                lastSensorIdBytes = sensorId.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastSensorIdBytes);
+            flags |= FLAG_SENSOR_ID;
+        }
+        if (unit != null) {
+            if (!unit.equals(lastUnit)) {
+                lastUnit = unit;
+                lastUnitBytes = unit.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastUnitBytes);
+            flags |= FLAG_UNIT;
+        }
+        if (!Double.isNaN(value)) {
+            flags |= FLAG_VALUE;
+            int scale = decimalScale(value);
+            if (scale >= 0) {
+                flags |= FLAG_DECIMAL;
+                long mantissa = Math.round(value * POWERS_OF_TEN[scale]);
+                writeVarint((mantissa << 1) ^ (mantissa >> 63));
+                ensure(1);
+                buf[pos++] = (byte) scale;
+            } else {
+                long bits = Double.doubleToRawLongBits(value);
+                ensure(8);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buf[pos++] = (byte) (bits >>> shift);
+                }
+            }
+        }
+        if (timestampMillis >= 0) {
+            writeVarint(timestampMillis);
+            flags |= FLAG_TIMESTAMP;
+        }
+
+        buf[flagsAt] = (byte) flags;
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Kleinste Anzahl Nachkommastellen, die den Wert exakt darstellt, oder -1 wenn es bis MAX_SCALE keine gibt.
+     */
+    private static int decimalScale(double value) {
+        if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0)) {
+            return -1;
+        }
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            double scaled = value * POWERS_OF_TEN[scale];
+            if (Math.abs(scaled) >= MAX_EXACT_MANTISSA) {
+                return -1;
+            }
+            long mantissa = Math.round(scaled);
+            // Muss genau der Rechnung im Decoder entsprechen
+            if (mantissa / POWERS_OF_TEN[scale] == value) {
+                return scale;
+            }
+        }
+        return -1;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package main;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Bringt eine Liste von Broker-URIs in die Reihenfolge, in der ein Client sie versuchen soll,
+ * für {@code MqttConnectOptions.setServerURIs}: Paho versucht die URIs bei jedem
+ * (Wieder-)Verbindungsaufbau in dieser Reihenfolge und nimmt den ersten, der antwortet.
+ *
+ * Mit {@code hash} bekommt jeder Broker {@value #VIRTUAL_NODES} Punkte auf einem Hash-Ring.
+ * Ein Client beginnt beim ersten Punkt nach dem Hash seines Schlüssels (der Sensornummer), die
+ * weiteren Broker entlang des Rings sind seine Ausweich-Reihenfolge. Jeder Sensor hat so einen
+ * festen Heim-Broker, die Sensoren verteilen sich gleichmässig, und fällt ein Broker aus, ziehen
+ * nur dessen Sensoren um, verteilt auf alle übrigen Broker statt alle auf den nächsten der Liste.
+ *
+ * Mit {@code ordered} verwenden alle Clients die Liste wie angegeben.
+ *
+ * Nach einem Ausweichen bleibt der Client beim Ersatz-Broker, solange diese Verbindung steht;
+ * beim nächsten Verbindungsaufbau wird wieder zuerst der Heim-Broker versucht.
+ */
+public class BrokerSelector {
+    private static final int VIRTUAL_NODES = 100;
+
+    private final String[] brokers;
+    private final boolean hash;
+    // Punkte des Rings aufsteigend und der Index des Brokers, dem der Punkt gehört
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param brokerList Broker-URIs mit Komma getrennt, z.B. {@code tcp://broker-1:1883,tcp://broker-2:1883}
+     * @param selection  {@code hash} oder {@code ordered}
+     */
+    public BrokerSelector(String brokerList, String selection) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String uri : brokerList.split(",")) {
+            if (!uri.trim().isEmpty()) {
+                unique.add(uri.trim());
+            }
+        }
+        if (unique.isEmpty()) {
+            throw new IllegalArgumentException("Keine Broker-URI in " + brokerList);
+        }
+        if (!selection.equals("hash") && !selection.equals("ordered")) {
+            throw new IllegalArgumentException("Broker-Auswahl muss hash oder ordered sein: " + selection);
+        }
+        this.brokers = unique.toArray(new String[0]);
+        this.hash = selection.equals("hash");
+
+        long[][] ring = new long[brokers.length * VIRTUAL_NODES][];
+        for (int b = 0; b < brokers.length; b++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[b * VIRTUAL_NODES + v] = new long[] {hash(brokers[b] + "#" + v), b};
+            }
+        }
+        Arrays.sort(ring, (x, y) -> Long.compare(x[0], y[0]));
+        points = new long[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * @return alle Broker, der Heim-Broker von {@code key} zuerst
+     */
+    public String[] order(String key) {
+        if (!hash || brokers.length == 1) {
+            return brokers.clone();
+        }
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        List<String> order = new ArrayList<>(brokers.length);
+        boolean[] taken = new boolean[brokers.length];
+        for (int i = 0; order.size() < brokers.length; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (!taken[owner]) {
+                taken[owner] = true;
+                order.add(brokers[owner]);
+            }
+        }
+        return order.toArray(new String[0]);
+    }
+
+    public String[] getBrokers() {
+        return brokers.clone();
+    }
+
+    public boolean isHash() {
+        return hash;
+    }
+
+    /**
+     * 64-Bit FNV-1a mit dem Mixer von MurmurHash3, damit ähnliche Schlüssel wie
+     * {@code 1} und {@code 2} weit auseinander auf dem Ring landen.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", brokers) + (brokers.length > 1 ? " (" + (hash ? "hash" : "ordered") + ")" : "");
+    }
+}
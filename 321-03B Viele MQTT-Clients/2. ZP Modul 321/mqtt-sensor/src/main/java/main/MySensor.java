@@ -3,17 +3,23 @@ package main;
 import org.eclipse.paho.client.mqttv3.*;
 import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class MySensor {
     // MQTT Client-Einstellungen
     private String broker;
+    // Reihenfolge der Broker für diesen Sensor, der Heim-Broker zuerst
+    private String[] brokers;
     private String clientId;
     private MqttClient mqttClient;
+    private ReconnectManager reconnectManager;
     
     // Topics
     private String pubTopic;
@@ -26,64 +32,149 @@ public class MySensor {
     private final Random random = new Random();
     private final double phaseShift = random.nextDouble() * 2 * Math.PI;
     private int sensorNumber = 1; // Standard-Sensornummer
+
+    // Payload-Format: JSON oder das kompakte Binärformat
+    private final boolean binaryPayload;
+    private final BinaryPayloadEncoder binaryEncoder = new BinaryPayloadEncoder();
+
+    // Mehrere Messwerte pro Nachricht, nur mit BATCH_SIZE > 1
+    private ReadingBatcher batcher;
     
-    // Scheduler für regelmäßige Sendungen
-    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    // Store-and-forward: Nachrichten warten hier, solange der Broker nicht erreichbar ist
+    private final OfflineBuffer offlineBuffer;
+    
+    // Scheduler für regelmäßige Messungen und den Sende-Thread des Puffers, im Java-21-Build virtuelle Threads
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2, Threads.factory("sensor"));
+
+    // Messintervall, Totband und Heartbeat, zur Laufzeit über das Control-Topic änderbar
+    private final PublishPolicy policy;
+    // Nächste geplante Messung; wird neu geplant, wenn sich das Intervall ändert
+    private ScheduledFuture<?> nextMeasurement;
+    private long nextMeasurementMillis;
+    private long lastMeasurementMillis;
+
+    // Prometheus-Metriken
+    private static final Metrics.Counter published = Metrics.counter("mqtt_messages_published_total",
+            "Veröffentlichte MQTT-Nachrichten");
+    private static final Metrics.Counter publishErrors = Metrics.counter("mqtt_publish_errors_total",
+            "Fehlgeschlagene Veröffentlichungen");
+    private static final Metrics.Counter connectionsLost = Metrics.counter("mqtt_connections_lost_total",
+            "Verlorene Verbindungen zum Broker");
+    private static final Metrics.Counter messagesReceived = Metrics.counter("mqtt_messages_received_total",
+            "Empfangene Nachrichten auf dem Control-Topic");
+    private static final Metrics.Histogram publishLatency = Metrics.latencyHistogram("mqtt_publish_duration_seconds",
+            "Dauer eines publish-Aufrufs");
 
     /**
      * Konstruktor
      * @param pubTopic Topic zum Publizieren
      * @param subTopic Topic zum Abonnieren
      * @param sensorNumber Sensornummer für Identifikation und Farbunterschiede
+     * @param binaryPayload true für das Binärformat statt JSON
      */
-    public MySensor(String pubTopic, String subTopic, int sensorNumber) {
-        // Hole MQTT_BROKER aus Umgebungsvariable oder verwende Standard
+    public MySensor(String pubTopic, String subTopic, int sensorNumber, boolean binaryPayload) {
+        // Hole MQTT_BROKER aus Umgebungsvariable oder verwende Standard; mehrere Broker mit Komma getrennt
         this.broker = System.getenv("MQTT_BROKER");
         if (this.broker == null || this.broker.isEmpty()) {
             this.broker = "tcp://localhost:1883";
         }
+        // hash: Heim-Broker über den Hash-Ring der Sensornummer, ordered: Reihenfolge wie angegeben
+        this.brokers = new BrokerSelector(broker, System.getenv().getOrDefault("BROKER_SELECTION", "hash"))
+                .order(String.valueOf(sensorNumber));
         
         this.pubTopic = pubTopic;
         this.subTopic = subTopic;
         this.sensorNumber = sensorNumber;
+        this.binaryPayload = binaryPayload;
+
+        // Batching aus Umgebungsvariablen, Standard ist eine Nachricht pro Messwert
+        int batchSize = Integer.parseInt(System.getenv().getOrDefault("BATCH_SIZE", "1"));
+        if (batchSize > 1) {
+            long batchMaxDelayMs = Long.parseLong(System.getenv().getOrDefault("BATCH_MAX_DELAY_MS", "60000"));
+            boolean batchCompress = Boolean.parseBoolean(System.getenv().getOrDefault("BATCH_COMPRESS", "false"));
+            this.batcher = new ReadingBatcher(binaryPayload, batchSize, batchMaxDelayMs, batchCompress);
+        }
+
+        // Puffergrösse in Bytes und Nachrichten pro Sekunde beim Abbau eines Rückstands
+        int bufferBytes = Integer.parseInt(System.getenv().getOrDefault("OFFLINE_BUFFER_BYTES", "1048576"));
+        double catchUpRate = Double.parseDouble(System.getenv().getOrDefault("CATCHUP_RATE", "20"));
+        this.offlineBuffer = new OfflineBuffer(bufferBytes, catchUpRate,
+                Metrics.histogram("offline_buffer_drain_duration_seconds",
+                        "Dauer bis zum Abbau des Rückstands nach einem Verbindungsunterbruch", 1e-9, 20, 42));
+        Metrics.gauge("offline_buffer_messages", "Nachrichten im Store-and-forward-Puffer", offlineBuffer::size);
+        Metrics.gauge("offline_buffer_fill_ratio", "Belegter Anteil des Store-and-forward-Puffers",
+                () -> (double) offlineBuffer.usedBytes() / offlineBuffer.capacityBytes());
+        Metrics.counter("offline_buffer_dropped_total", "Älteste Nachrichten, verworfen weil der Puffer voll war",
+                offlineBuffer::getDropped);
+
+        // Messintervall in ms; Totband 0 veröffentlicht jeden Messwert, MAX_SILENCE_MS 0 schaltet den Heartbeat ab
+        this.policy = new PublishPolicy(
+                Long.parseLong(System.getenv().getOrDefault("SAMPLE_INTERVAL_MS", "2000")),
+                Double.parseDouble(System.getenv().getOrDefault("DEADBAND", "0")),
+                Long.parseLong(System.getenv().getOrDefault("MAX_SILENCE_MS", "60000")),
+                Long.parseLong(System.getenv().getOrDefault("MIN_INTERVAL_MS", "100")));
+        Metrics.counter("readings_suppressed_total", "Messwerte, nicht veröffentlicht weil innerhalb des Totbands",
+                policy::getSuppressed);
+        Metrics.counter("heartbeats_total", "Messwerte, nur wegen MAX_SILENCE_MS veröffentlicht", policy::getHeartbeats);
+        Metrics.counter("control_messages_applied_total", "Übernommene Control-Nachrichten", policy::getControlMessages);
+        Metrics.gauge("publish_interval_seconds", "Aktuelles Messintervall", () -> policy.getIntervalMs() / 1000.0);
         
         // Zufällige Client-ID generieren
         this.clientId = "JavaSensor-" + UUID.randomUUID();
         
         System.out.println("Starte Sensor " + sensorNumber);
-        System.out.println("Broker: " + broker);
+        System.out.println("Broker: " + String.join(", ", brokers));
         System.out.println("Publish Topic: " + pubTopic);
         System.out.println("Subscribe Topic: " + subTopic);
+        System.out.println("Format: " + (binaryPayload ? "binär" : "JSON"));
+        System.out.println("Publish-Policy: " + policy);
+        System.out.println("Threads: " + (Threads.isVirtual() ? "virtuell" : "Plattform"));
+        if (batcher != null) {
+            System.out.println("Batching: bis zu " + batchSize + " Messwerte pro Nachricht");
+        }
     }
 
     /**
-     * Verbindet den MQTT-Client und startet Listener
+     * Erstellt den MQTT-Client, startet den Verbindungsaufbau und das Senden.
+     * Kehrt sofort zurück, die Verbindung baut der {@link ReconnectManager} auf.
      */
     public void connect() {
         try {
             // Erstelle MQTT-Client
-            mqttClient = new MqttClient(broker, clientId, new MemoryPersistence());
+            mqttClient = new MqttClient(brokers[0], clientId, new MemoryPersistence());
             
             // Verbindungsoptionen setzen
             MqttConnectOptions connOpts = new MqttConnectOptions();
             connOpts.setCleanSession(true);
+            connOpts.setConnectionTimeout(10);
+            // Fällt der Heim-Broker aus, versucht Paho die übrigen der Reihe nach
+            connOpts.setServerURIs(brokers);
             
             // Callback für Nachrichten-Empfang
             mqttClient.setCallback(new MqttCallback() {
                 @Override
                 public void connectionLost(Throwable cause) {
                     System.out.println("Verbindung verloren! Versuche Wiederverbindung...");
-                    try {
-                        Thread.sleep(5000);
-                        connect(); // Wiederverbindung versuchen
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+                    connectionsLost.increment();
+                    // Nicht auf dem Callback-Thread warten, der Manager plant den nächsten Versuch
+                    reconnectManager.connectionLost();
                 }
 
                 @Override
                 public void messageArrived(String topic, MqttMessage message) {
-                    System.out.println("Nachricht empfangen: " + new String(message.getPayload()) + " von Topic: " + topic);
+                    messagesReceived.increment();
+                    String text = new String(message.getPayload(), StandardCharsets.UTF_8);
+                    System.out.println("Nachricht empfangen: " + text + " von Topic: " + topic);
+                    // Sensornummer gilt als sensor und als sensor_id
+                    try {
+                        String settings = policy.applyControl(text, String.valueOf(sensorNumber), String.valueOf(sensorNumber));
+                        if (settings != null) {
+                            System.out.println("Einstellungen übernommen: " + settings);
+                            rescheduleMeasurement();
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Control-Nachricht ignoriert: " + e.getMessage());
+                    }
                 }
 
                 @Override
@@ -92,17 +183,18 @@ public class MySensor {
                 }
             });
             
-            // Verbinden
-            System.out.println("Verbinde mit Broker: " + broker);
-            mqttClient.connect(connOpts);
-            
-            // Topic abonnieren, falls angegeben
-            if (subTopic != null && !subTopic.isEmpty()) {
-                mqttClient.subscribe(subTopic, qos);
-                System.out.println("Abonniert: " + subTopic);
-            }
+            // Verbinden, nach jeder (Wieder-)Verbindung neu abonnieren, da cleanSession die Abos verwirft
+            long minDelayMs = Long.parseLong(System.getenv().getOrDefault("RECONNECT_MIN_DELAY_MS", "1000"));
+            long maxDelayMs = Long.parseLong(System.getenv().getOrDefault("RECONNECT_MAX_DELAY_MS", "30000"));
+            reconnectManager = new ReconnectManager(mqttClient, connOpts, () -> {
+                subscribe();
+                // Der Sende-Thread wartet sonst bis zum nächsten Messwert
+                offlineBuffer.wakeUp();
+            }, minDelayMs, maxDelayMs);
+            System.out.println("Verbinde mit Broker: " + brokers[0]);
+            reconnectManager.start();
             
-            // Starte den Sende-Scheduler
+            // Starte den Sende-Scheduler, genau einmal; ohne Verbindung werden Sendungen übersprungen
             startPublishing();
             
         } catch (MqttException me) {
@@ -111,32 +203,126 @@ public class MySensor {
         }
     }
 
+    /**
+     * Abonniert das Control-Topic, falls angegeben. Mehrfaches Abonnieren ist unschädlich.
+     */
+    private void subscribe() {
+        if (subTopic == null || subTopic.isEmpty()) {
+            return;
+        }
+        try {
+            mqttClient.subscribe(subTopic, qos);
+            System.out.println("Abonniert: " + subTopic);
+        } catch (MqttException e) {
+            // Bei Verbindungsverlust folgt connectionLost und damit ein neuer Versuch
+            System.out.println("Fehler beim Abonnieren: " + e.getMessage());
+        }
+    }
+
     /**
      * Startet regelmäßiges Senden von Sensorwerten
      */
     private void startPublishing() {
-        // Sende alle 2 Sekunden eine Nachricht
-        scheduler.scheduleAtFixedRate(() -> {
+        if (pubTopic == null || pubTopic.isEmpty()) {
+            return;
+        }
+        // Sende-Thread: wartet im Puffer auf neue Nachrichten oder die Wiederverbindung, bis shutdownNow ihn unterbricht
+        scheduler.execute(() -> {
             try {
-                if (pubTopic != null && !pubTopic.isEmpty() && mqttClient.isConnected()) {
-                    // Generiere Sinuswelle mit Phasenverschiebung
-                    double time = System.currentTimeMillis() / 1000.0;
-                    double value = 10 + 10 * Math.sin(time + phaseShift);
-                    
-                    // JSON-Format für Grafana
-                    String message = String.format(
-                        "{\"value\":%.2f,\"sensor\":%d,\"timestamp\":%d}",
-                        value, sensorNumber, System.currentTimeMillis()
-                    );
-                    
-                    // Nachricht veröffentlichen
-                    mqttClient.publish(pubTopic, message.getBytes(), qos, false);
-                    System.out.println("Veröffentlicht: " + message + " zu Topic: " + pubTopic);
+                while (!Thread.currentThread().isInterrupted()) {
+                    offlineBuffer.drain(this::send, 1000);
                 }
-            } catch (MqttException e) {
-                System.out.println("Fehler beim Senden: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // Messen im eingestellten Intervall, auch ohne Verbindung
+        scheduleMeasurement(System.currentTimeMillis());
+    }
+
+    /**
+     * Plant die nächste Messung; liegt der Zeitpunkt schon zurück, wird sofort gemessen statt nachgeholt.
+     */
+    private synchronized void scheduleMeasurement(long atMillis) {
+        long now = System.currentTimeMillis();
+        nextMeasurementMillis = Math.max(atMillis, now);
+        nextMeasurement = scheduler.schedule(this::measure, nextMeasurementMillis - now, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Plant die wartende Messung mit dem neuen Intervall neu, gerechnet ab der letzten Messung.
+     */
+    private synchronized void rescheduleMeasurement() {
+        if (nextMeasurement != null && nextMeasurement.cancel(false)) {
+            scheduleMeasurement(lastMeasurementMillis + policy.getIntervalMs());
+        }
+    }
+
+    /**
+     * Misst einen Wert und plant die nächste Messung, im festen Takt wie scheduleAtFixedRate
+     */
+    private void measure() {
+        synchronized (this) {
+            lastMeasurementMillis = nextMeasurementMillis;
+            scheduleMeasurement(lastMeasurementMillis + policy.getIntervalMs());
+        }
+        // Generiere Sinuswelle mit Phasenverschiebung
+        double time = System.currentTimeMillis() / 1000.0;
+        double value = 10 + 10 * Math.sin(time + phaseShift);
+        // Unveränderte Werte überspringen, ausser als Heartbeat nach MAX_SILENCE_MS
+        if (!policy.shouldPublish(value, System.currentTimeMillis())) {
+            return;
+        }
+        
+        // JSON-Format für Grafana
+        String message = String.format(
+            "{\"value\":%.2f,\"sensor\":%d,\"timestamp\":%d}",
+            value, sensorNumber, System.currentTimeMillis()
+        );
+        byte[] payload = message.getBytes();
+        if (binaryPayload) {
+            // Gleiche Felder wie im JSON, Wert auf 2 Nachkommastellen gerundet
+            payload = binaryEncoder.encode(String.valueOf(sensorNumber), null,
+                    Math.round(value * 100) / 100.0, null, System.currentTimeMillis());
+        }
+        if (batcher != null) {
+            // Weiter sammeln, bis der Batch voll oder alt genug ist
+            if (!batcher.add(payload, System.currentTimeMillis())) {
+                return;
             }
-        }, 0, 2, TimeUnit.SECONDS);
+            message = "Batch mit " + batcher.size() + " Messwerten";
+            payload = batcher.drain();
+        }
+        
+        // Nachricht puffern, der Sende-Thread veröffentlicht sie
+        offlineBuffer.add(payload);
+        if (mqttClient.isConnected()) {
+            System.out.println("Veröffentlicht: " + message + " zu Topic: " + pubTopic);
+        } else {
+            System.out.println("Gepuffert (" + offlineBuffer.size() + "): " + message);
+        }
+    }
+
+    /**
+     * @return false, wenn die Nachricht im Puffer bleiben und später erneut gesendet werden soll
+     */
+    private boolean send(byte[] payload) {
+        if (!mqttClient.isConnected()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            mqttClient.publish(pubTopic, payload, qos, false);
+            published.increment();
+            return true;
+        } catch (MqttException e) {
+            publishErrors.increment();
+            System.out.println("Fehler beim Senden: " + e.getMessage());
+            return false;
+        } finally {
+            publishLatency.record(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -144,7 +330,14 @@ public class MySensor {
      */
     public void disconnect() {
         try {
-            scheduler.shutdown();
+            // Beide fehlen, wenn connect() schon beim Erstellen des Clients gescheitert ist
+            if (reconnectManager != null) {
+                reconnectManager.stop();
+            }
+            scheduler.shutdownNow();
+            if (mqttClient == null) {
+                return;
+            }
             if (mqttClient.isConnected()) {
                 mqttClient.disconnect();
             }
@@ -161,6 +354,8 @@ public class MySensor {
         String pubTopic = "sensor/data";  // Standard-Topic
         String subTopic = "sensor/control";  // Standard-Topic
         int sensorNumber = 1;  // Standard-Sensornummer
+        // Format aus Umgebungsvariable, --format= hat Vorrang
+        String format = System.getenv().getOrDefault("PAYLOAD_FORMAT", "json");
         
         // Kommandozeilenparameter verarbeiten
         for (String arg : args) {
@@ -174,14 +369,34 @@ public class MySensor {
                 }
             } else if (arg.startsWith("--sub=")) {
                 subTopic = "sensor/" + arg.substring(6);
+            } else if (arg.startsWith("--format=")) {
+                format = arg.substring(9);
             }
         }
         
+        // Metriken-Endpunkt, Standard 9400 + Sensornummer damit mehrere Sensoren auf einem Host laufen; 0 deaktiviert
+        int metricsPort = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT",
+                String.valueOf(9400 + sensorNumber)));
+        if (metricsPort > 0) {
+            try {
+                Metrics.startServer(metricsPort);
+            } catch (IOException e) {
+                System.out.println("Metriken-Endpunkt konnte nicht gestartet werden: " + e.getMessage());
+            }
+        }
+
         // Erstelle und starte Sensor
-        MySensor sensor = new MySensor(pubTopic, subTopic, sensorNumber);
+        MySensor sensor = new MySensor(pubTopic, subTopic, sensorNumber, format.equals("binary"));
         sensor.connect();
         
         // Shutdown-Hook zum sauberen Beenden
         Runtime.getRuntime().addShutdownHook(new Thread(sensor::disconnect));
+
+        // Alle anderen Threads sind Daemon-Threads, der Hauptthread hält den Prozess am Leben
+        try {
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
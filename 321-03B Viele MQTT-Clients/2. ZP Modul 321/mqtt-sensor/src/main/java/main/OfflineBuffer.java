@@ -0,0 +1,198 @@
+package main;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store-and-forward-Puffer für Nachrichten, die noch nicht gesendet werden konnten.
+ *
+ * Jede Nachricht läuft durch den Puffer. Messwerte, die ohne Verbindung zum Broker entstehen,
+ * bleiben so mit ihrem ursprünglichen Zeitstempel erhalten und werden nach der Wiederverbindung
+ * in Reihenfolge gesendet. Die Nachrichten liegen mit vorangestellter Länge in einem Ring von
+ * {@code capacityBytes}; ist er voll, werden die ältesten verworfen und gezählt. Bei einem
+ * Neustart des Prozesses geht der Inhalt verloren.
+ *
+ * {@link #drain} sendet höchstens {@code catchUpRate} Nachrichten pro Sekunde, damit ein
+ * grosser Rückstand den Broker nach der Wiederverbindung nicht überflutet. Die Zeit vom ersten
+ * erfolgreichen Senden nach einem Fehler bis der Rückstand abgebaut ist, landet im Histogramm.
+ */
+public class OfflineBuffer {
+
+    public interface Sender {
+        /**
+         * @return false, wenn die Nachricht nicht gesendet wurde und später erneut versucht werden soll
+         */
+        boolean send(byte[] payload) throws InterruptedException;
+    }
+
+    private final byte[] ring;
+    private final long sendIntervalNanos;
+    private final Metrics.Histogram drainDuration;
+
+    private int head;
+    private int used;
+    private int count;
+    // Anzahl bisher entfernter Nachrichten, um zu erkennen, ob die gerade gesendete inzwischen verworfen wurde
+    private long removed;
+    private long dropped;
+
+    private boolean failing;
+    private long catchUpStartNanos;
+
+    /**
+     * @param drainDuration erhält die Dauer bis zum Abbau des Rückstands nach einem Fehler, in Nanosekunden
+     */
+    public OfflineBuffer(int capacityBytes, double catchUpRate, Metrics.Histogram drainDuration) {
+        this.ring = new byte[capacityBytes];
+        this.sendIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / catchUpRate);
+        this.drainDuration = drainDuration;
+    }
+
+    /**
+     * Hängt eine Nachricht an und verwirft die ältesten, falls sie nicht hineinpasst.
+     * @return false, wenn die Nachricht grösser als der ganze Puffer ist und selbst verworfen wurde
+     */
+    public synchronized boolean add(byte[] payload) {
+        int needed = 4 + payload.length;
+        if (needed > ring.length) {
+            dropped++;
+            return false;
+        }
+        while (ring.length - used < needed) {
+            removeFirst();
+            dropped++;
+        }
+        int tail = (head + used) % ring.length;
+        byte[] length = {(byte) (payload.length >>> 24), (byte) (payload.length >>> 16),
+                (byte) (payload.length >>> 8), (byte) payload.length};
+        tail = write(length, tail);
+        write(payload, tail);
+        used += needed;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Sendet während {@code durationMs} gepufferte Nachrichten im Takt der Catch-up-Rate und
+     * wartet auf neue, solange der Puffer leer ist. Nach einem Fehlschlag wartet es den Rest
+     * der Dauer ab, kann also das Warten zwischen zwei Messungen ersetzen; eine neue Nachricht
+     * oder {@link #wakeUp} beenden dieses Warten vorzeitig.
+     * @return Anzahl gesendeter Nachrichten
+     */
+    public int drain(Sender sender, long durationMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long nextSend = System.nanoTime();
+        int sent = 0;
+        while (true) {
+            byte[] payload;
+            long sequence;
+            synchronized (this) {
+                long now;
+                while (count == 0 && (now = System.nanoTime()) < deadline) {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+                }
+                if (count == 0) {
+                    return sent;
+                }
+                payload = peekFirst();
+                sequence = removed;
+            }
+            if (!sender.send(payload)) {
+                failing = true;
+                synchronized (this) {
+                    // Bis zum nächsten Messwert oder zur Wiederverbindung, statt regelmässig nachzufragen
+                    long now = System.nanoTime();
+                    if (now < deadline) {
+                        TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+                    }
+                }
+                return sent;
+            }
+            sent++;
+            long now = System.nanoTime();
+            if (failing) {
+                failing = false;
+                catchUpStartNanos = now;
+            }
+            synchronized (this) {
+                // Ausser add() hat sie während des Sendens verworfen
+                if (removed == sequence) {
+                    removeFirst();
+                }
+                if (count == 0 && catchUpStartNanos != 0) {
+                    drainDuration.record(now - catchUpStartNanos);
+                    catchUpStartNanos = 0;
+                }
+            }
+            // Ohne Guthaben aus Leerlaufzeiten, ein Rückstand geht nie schneller als die Rate hinaus
+            nextSend = Math.max(nextSend + sendIntervalNanos, now);
+            if (nextSend >= deadline) {
+                sleepUntil(deadline);
+                return sent;
+            }
+            sleepUntil(nextSend);
+        }
+    }
+
+    /**
+     * Beendet das Warten von {@link #drain} nach einem Fehlschlag, z.B. sobald die Verbindung wieder steht.
+     */
+    public synchronized void wakeUp() {
+        notifyAll();
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int usedBytes() {
+        return used;
+    }
+
+    public int capacityBytes() {
+        return ring.length;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private byte[] peekFirst() {
+        byte[] payload = new byte[readLength()];
+        int pos = (head + 4) % ring.length;
+        int first = Math.min(payload.length, ring.length - pos);
+        System.arraycopy(ring, pos, payload, 0, first);
+        System.arraycopy(ring, 0, payload, first, payload.length - first);
+        return payload;
+    }
+
+    private void removeFirst() {
+        int needed = 4 + readLength();
+        head = (head + needed) % ring.length;
+        used -= needed;
+        count--;
+        removed++;
+    }
+
+    private int readLength() {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = (length << 8) | (ring[(head + i) % ring.length] & 0xFF);
+        }
+        return length;
+    }
+
+    private int write(byte[] bytes, int pos) {
+        int first = Math.min(bytes.length, ring.length - pos);
+        System.arraycopy(bytes, 0, ring, pos, first);
+        System.arraycopy(bytes, first, ring, 0, bytes.length - first);
+        return (pos + bytes.length) % ring.length;
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package main;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Entscheidet, welche Messwerte veröffentlicht werden und wie oft der Sensor misst.
+ *
+ * Ein Messwert wird veröffentlicht, wenn er um mehr als das Totband vom zuletzt
+ * veröffentlichten Wert abweicht, oder wenn seit {@code maxSilenceMs} nichts veröffentlicht
+ * wurde (Heartbeat, damit ein ruhiger Sensor als lebendig erkennbar bleibt). Ein Totband von 0
+ * veröffentlicht jeden Messwert. Der Heartbeat ist der erste Messwert nach der Pause, er kommt
+ * also höchstens ein Intervall zu spät.
+ *
+ * Alle drei Einstellungen lassen sich zur Laufzeit über das Control-Topic ändern:
+ *
+ * <pre>
+ * {"interval_ms":5000, "deadband":0.5, "max_silence_ms":60000, "sensor_id":"1"}
+ * </pre>
+ *
+ * Alle Felder sind optional. Ohne {@code sensor} und {@code sensor_id} gilt die Nachricht für
+ * alle Sensoren auf dem Topic, sonst nur für passende. Unbekannte Felder werden ignoriert. Das
+ * Intervall bleibt zwischen {@code minIntervalMs} und einem Tag.
+ */
+public class PublishPolicy {
+    private static final long MAX_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+
+    private final long minIntervalMs;
+    private volatile long intervalMs;
+    private volatile double deadband;
+    private volatile long maxSilenceMs;
+
+    private boolean published;
+    private double lastValue;
+    private long lastPublishedMillis;
+
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong controlMessages = new AtomicLong();
+
+    public PublishPolicy(long intervalMs, double deadband, long maxSilenceMs, long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.intervalMs = clampInterval(intervalMs);
+        this.deadband = Math.max(0, deadband);
+        this.maxSilenceMs = Math.max(0, maxSilenceMs);
+    }
+
+    /**
+     * @return true, wenn der Messwert veröffentlicht werden soll; er wird dann zur Referenz für das Totband
+     */
+    public synchronized boolean shouldPublish(double value, long nowMillis) {
+        boolean publish;
+        if (!published || deadband <= 0 || !(Math.abs(value - lastValue) <= deadband)) {
+            // Erster Messwert, kein Totband, echte Änderung oder NaN
+            publish = true;
+        } else if (maxSilenceMs > 0 && nowMillis - lastPublishedMillis >= maxSilenceMs) {
+            publish = true;
+            heartbeats.incrementAndGet();
+        } else {
+            publish = false;
+        }
+        if (publish) {
+            published = true;
+            lastValue = value;
+            lastPublishedMillis = nowMillis;
+        } else {
+            suppressed.incrementAndGet();
+        }
+        return publish;
+    }
+
+    /**
+     * Übernimmt eine Control-Nachricht, sofern sie an diesen Sensor gerichtet ist.
+     * @return Beschreibung der neuen Einstellungen, oder null wenn die Nachricht anderen Sensoren gilt
+     * @throws IllegalArgumentException wenn die Nachricht kein flaches JSON-Objekt mit gültigen Werten ist
+     */
+    public String applyControl(String message, String sensor, String sensorId) {
+        Map<String, String> fields = parseFlatJson(message);
+        String targetSensor = fields.get("sensor");
+        String targetSensorId = fields.get("sensor_id");
+        if ((targetSensor != null && !targetSensor.equals(sensor))
+                || (targetSensorId != null && !targetSensorId.equals(sensorId))) {
+            return null;
+        }
+        // Erst alles prüfen, damit eine ungültige Nachricht nichts ändert
+        Long newInterval = parseLong(fields, "interval_ms");
+        Double newDeadband = parseDouble(fields, "deadband");
+        Long newMaxSilence = parseLong(fields, "max_silence_ms");
+        if (newInterval != null) {
+            intervalMs = clampInterval(newInterval);
+        }
+        if (newDeadband != null) {
+            deadband = newDeadband;
+        }
+        if (newMaxSilence != null) {
+            maxSilenceMs = newMaxSilence;
+        }
+        controlMessages.incrementAndGet();
+        return toString();
+    }
+
+    private long clampInterval(long interval) {
+        return Math.max(minIntervalMs, Math.min(MAX_INTERVAL_MS, interval));
+    }
+
+    private static Long parseLong(Map<String, String> fields, String key) {
+        Double value = parseDouble(fields, key);
+        return value == null ? null : (long) (double) value;
+    }
+
+    private static Double parseDouble(Map<String, String> fields, String key) {
+        String text = fields.get(key);
+        if (text == null) {
+            return null;
+        }
+        try {
+            double value = Double.parseDouble(text);
+            if (value >= 0 && !Double.isInfinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Wird unten gemeldet
+        }
+        throw new IllegalArgumentException(key + " muss eine nicht-negative Zahl sein: " + text);
+    }
+
+    /**
+     * Liest {@code {"key":value,...}} mit String-, Zahl- und Boolean-Werten als Text in eine Map;
+     * Strings dürfen keine Escapes enthalten.
+     */
+    static Map<String, String> parseFlatJson(String text) {
+        Map<String, String> fields = new HashMap<>();
+        String body = text.trim();
+        if (!body.startsWith("{") || !body.endsWith("}")) {
+            throw new IllegalArgumentException("JSON-Objekt erwartet");
+        }
+        int pos = 1;
+        int end = body.length() - 1;
+        while (true) {
+            pos = skipWhitespace(body, pos, end);
+            if (pos == end) {
+                return fields;
+            }
+            if (body.charAt(pos) != '"') {
+                throw new IllegalArgumentException("Schlüssel erwartet an Position " + pos);
+            }
+            int keyEnd = body.indexOf('"', pos + 1);
+            if (keyEnd < 0 || keyEnd >= end) {
+                throw new IllegalArgumentException("Schlüssel nicht abgeschlossen");
+            }
+            String key = body.substring(pos + 1, keyEnd);
+            pos = skipWhitespace(body, keyEnd + 1, end);
+            if (pos == end || body.charAt(pos) != ':') {
+                throw new IllegalArgumentException("':' erwartet nach " + key);
+            }
+            pos = skipWhitespace(body, pos + 1, end);
+            String value;
+            if (pos < end && body.charAt(pos) == '"') {
+                int valueEnd = body.indexOf('"', pos + 1);
+                if (valueEnd < 0 || valueEnd >= end) {
+                    throw new IllegalArgumentException("Wert nicht abgeschlossen: " + key);
+                }
+                value = body.substring(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else {
+                int valueEnd = pos;
+                while (valueEnd < end && body.charAt(valueEnd) != ',' && !Character.isWhitespace(body.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+                value = body.substring(pos, valueEnd);
+                pos = valueEnd;
+            }
+            if (value.contains("\\") || value.startsWith("{") || value.startsWith("[")) {
+                throw new IllegalArgumentException("Nur flache Werte unterstützt: " + key);
+            }
+            fields.put(key, value);
+            pos = skipWhitespace(body, pos, end);
+            if (pos < end) {
+                if (body.charAt(pos) != ',') {
+                    throw new IllegalArgumentException("',' erwartet nach " + key);
+                }
+                pos++;
+            }
+        }
+    }
+
+    private static int skipWhitespace(String text, int pos, int end) {
+        while (pos < end && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public double getDeadband() {
+        return deadband;
+    }
+
+    public long getMaxSilenceMs() {
+        return maxSilenceMs;
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    public long getControlMessages() {
+        return controlMessages.get();
+    }
+
+    @Override
+    public String toString() {
+        return "Intervall=" + intervalMs + "ms Totband=" + deadband
+                + (maxSilenceMs > 0 ? " Heartbeat nach " + maxSilenceMs + "ms" : "");
+    }
+}
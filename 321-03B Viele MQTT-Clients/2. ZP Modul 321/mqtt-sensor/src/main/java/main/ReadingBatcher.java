@@ -0,0 +1,141 @@
+package main;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Sammelt kodierte Messwerte und packt sie in eine MQTT-Nachricht, aktiviert mit {@code BATCH_SIZE} > 1.
+ * Gleiches Format wie in den Sensoren von mqtt-docker, der influxdb-connector zerlegt die Batches wieder.
+ *
+ * Ein Batch ist fällig, sobald er {@code maxReadings} Messwerte enthält oder sein ältester
+ * Messwert {@code maxDelayMs} alt ist. JSON-Messwerte werden zu einem JSON-Array
+ * {@code [{...},{...}]}, binäre zu einem {@code 0xB2}-Payload: Kennung, Anzahl als Varint,
+ * dann jeder Messwert mit seiner Länge als Varint. Mit Kompression wird der Payload (zlib)
+ * hinter der Kennung {@code 0xB3} komprimiert, außer er würde dadurch nicht kleiner.
+ *
+ * Gesendet wird hier nichts: der Aufrufer prüft den Rückgabewert von {@link #add} und
+ * veröffentlicht {@link #drain()}. Nicht thread-safe.
+ */
+public class ReadingBatcher {
+    public static final int BATCH_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.BATCH;
+    public static final int COMPRESSED_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.COMPRESSED;
+
+    private final boolean binary;
+    private final int maxReadings;
+    private final long maxDelayMs;
+    private final Deflater deflater;
+
+    private byte[] buf = new byte[1024];
+    private int pos;
+    private int count;
+    private long firstAddedMillis;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(1024);
+    private final byte[] chunk = new byte[4096];
+
+    /**
+     * @param binary true für Messwerte aus dem {@link BinaryPayloadEncoder}, false für JSON-Objekte
+     */
+    public ReadingBatcher(boolean binary, int maxReadings, long maxDelayMs, boolean compress) {
+        this.binary = binary;
+        this.maxReadings = maxReadings;
+        this.maxDelayMs = maxDelayMs;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * Fügt einen kodierten Messwert hinzu.
+     * @return true, wenn der Batch jetzt fällig ist und mit {@link #drain()} gesendet werden soll
+     */
+    public boolean add(byte[] reading, long nowMillis) {
+        if (count == 0) {
+            firstAddedMillis = nowMillis;
+        }
+        if (binary) {
+            writeVarint(reading.length);
+        } else if (count > 0) {
+            ensure(1);
+            buf[pos++] = ',';
+        }
+        ensure(reading.length);
+        System.arraycopy(reading, 0, buf, pos, reading.length);
+        pos += reading.length;
+        count++;
+        return isDue(nowMillis);
+    }
+
+    public boolean isDue(long nowMillis) {
+        return count >= maxReadings || (count > 0 && nowMillis - firstAddedMillis >= maxDelayMs);
+    }
+
+    /**
+     * Anzahl Messwerte im aktuellen Batch.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return der Payload des aktuellen Batches oder null, wenn er leer ist; danach beginnt ein neuer Batch
+     */
+    public byte[] drain() {
+        if (count == 0) {
+            return null;
+        }
+        byte[] payload;
+        if (binary) {
+            byte[] header = new byte[11];
+            header[0] = (byte) BATCH_MARKER;
+            int headerLength = 1;
+            long value = count;
+            while ((value & ~0x7FL) != 0) {
+                header[headerLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            header[headerLength++] = (byte) value;
+            payload = new byte[headerLength + pos];
+            System.arraycopy(header, 0, payload, 0, headerLength);
+            System.arraycopy(buf, 0, payload, headerLength, pos);
+        } else {
+            payload = new byte[pos + 2];
+            payload[0] = '[';
+            System.arraycopy(buf, 0, payload, 1, pos);
+            payload[pos + 1] = ']';
+        }
+        pos = 0;
+        count = 0;
+        return deflater == null ? payload : compress(payload);
+    }
+
+    private byte[] compress(byte[] payload) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        compressed.reset();
+        compressed.write(COMPRESSED_MARKER);
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            compressed.write(chunk, 0, length);
+            if (compressed.size() >= payload.length) {
+                // Kleine oder zufällige Batches werden nicht kleiner
+                return payload;
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+        }
+    }
+}
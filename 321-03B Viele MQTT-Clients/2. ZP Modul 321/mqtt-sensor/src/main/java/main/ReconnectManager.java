@@ -0,0 +1,144 @@
+package main;
+
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Verwaltet die Verbindung eines {@link MqttClient}: erster Verbindungsaufbau und
+ * Wiederverbindung nach einem Verbindungsverlust.
+ *
+ * Verbindungsversuche laufen auf einem eigenen Thread, nie auf dem Callback-Thread von Paho
+ * und nie auf dem Sende-Thread. Nach einem Fehlschlag wird der nächste Versuch mit
+ * exponentiellem Backoff geplant (minDelayMs, verdoppelt bis maxDelayMs), davon zufällig
+ * 50-100 %, damit nach einem Broker-Neustart nicht alle Sensoren gleichzeitig kommen.
+ * Es läuft immer höchstens ein Versuch. Nach jeder erfolgreichen Verbindung wird
+ * {@code onConnected} aufgerufen, z.B. um Topics neu zu abonnieren.
+ */
+public class ReconnectManager {
+    private final MqttClient client;
+    private final MqttConnectOptions options;
+    private final Runnable onConnected;
+    private final long minDelayMs;
+    private final long maxDelayMs;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "mqtt-reconnect");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Ein geplanter oder laufender Versuch
+    private final AtomicBoolean connecting = new AtomicBoolean();
+    private volatile boolean stopped;
+    private volatile int failedAttempts;
+    private volatile long disconnectedSince;
+    private boolean everConnected;
+
+    // Metriken
+    private static final Metrics.Counter connectAttempts = Metrics.counter("mqtt_reconnect_attempts_total",
+            "Versuche, die Verbindung aufzubauen");
+    private static final Metrics.Counter reconnects = Metrics.counter("mqtt_reconnects_total",
+            "Erfolgreich wiederhergestellte Verbindungen");
+    private static final Metrics.Histogram reconnectDuration = Metrics.histogram("mqtt_reconnect_duration_seconds",
+            "Zeit vom Verbindungsverlust bis zur neuen Verbindung", 1e-3, 6, 22);
+
+    /**
+     * @param onConnected wird nach jeder erfolgreichen Verbindung auf dem Verbindungs-Thread aufgerufen
+     */
+    public ReconnectManager(MqttClient client, MqttConnectOptions options, Runnable onConnected,
+                            long minDelayMs, long maxDelayMs) {
+        this.client = client;
+        this.options = options;
+        this.onConnected = onConnected;
+        this.minDelayMs = minDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        Metrics.gauge("mqtt_connected", "1 wenn mit dem Broker verbunden", () -> client.isConnected() ? 1 : 0);
+    }
+
+    /**
+     * Startet den ersten Verbindungsaufbau, kehrt sofort zurück.
+     */
+    public void start() {
+        disconnectedSince = System.currentTimeMillis();
+        schedule(0);
+    }
+
+    /**
+     * Aus {@code MqttCallback.connectionLost} aufzurufen, blockiert nicht.
+     */
+    public void connectionLost() {
+        if (stopped) {
+            return;
+        }
+        disconnectedSince = System.currentTimeMillis();
+        schedule(nextDelay());
+    }
+
+    /**
+     * Beendet alle weiteren Versuche.
+     */
+    public void stop() {
+        stopped = true;
+        executor.shutdownNow();
+    }
+
+    private void schedule(long delayMs) {
+        // Nur ein Versuch zur gleichen Zeit, weitere Meldungen werden ignoriert
+        if (!connecting.compareAndSet(false, true)) {
+            return;
+        }
+        if (delayMs > 0) {
+            System.out.println("Nächster Verbindungsversuch in " + delayMs + " ms");
+        }
+        executor.schedule(this::attempt, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void attempt() {
+        if (stopped) {
+            return;
+        }
+        connectAttempts.increment();
+        try {
+            if (!client.isConnected()) {
+                client.connect(options);
+            }
+            long duration = System.currentTimeMillis() - disconnectedSince;
+            if (everConnected) {
+                reconnects.increment();
+                reconnectDuration.record(duration);
+            }
+            everConnected = true;
+            System.out.println("Verbunden mit " + client.getCurrentServerURI() + " nach " + (failedAttempts + 1) + " Versuch(en), "
+                    + duration + " ms");
+            failedAttempts = 0;
+            connecting.set(false);
+            onConnected.run();
+            // Ein Verlust während des Versuchs wurde oben ignoriert
+            if (!client.isConnected()) {
+                connectionLost();
+            }
+        } catch (MqttException e) {
+            failedAttempts++;
+            System.out.println("Verbindung fehlgeschlagen: " + e.getMessage());
+            connecting.set(false);
+            if (!stopped) {
+                schedule(nextDelay());
+            }
+        }
+    }
+
+    /**
+     * Exponentieller Backoff mit Jitter: 50-100 % von min(maxDelayMs, minDelayMs * 2^Fehlversuche).
+     */
+    private long nextDelay() {
+        long delay = minDelayMs << Math.min(failedAttempts, 20);
+        delay = Math.min(Math.max(delay, minDelayMs), maxDelayMs);
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+}
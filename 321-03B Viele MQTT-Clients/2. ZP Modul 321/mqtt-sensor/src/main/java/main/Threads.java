@@ -0,0 +1,59 @@
+package main;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Erzeugt die Threads für Messungen und Senden.
+ *
+ * Der Java-11-Build erzeugt Plattform-Threads (Daemon). Mit {@code mvn -Pjava21} gebaut,
+ * enthält der Build zusätzlich {@code VirtualThreads} aus {@code src/java21/java} und die
+ * Threads sind virtuell; {@code THREAD_MODE=platform} schaltet auf Plattform-Threads zurück,
+ * z.B. zum Vergleich im selben Build.
+ */
+public final class Threads {
+
+    /**
+     * Implementiert von {@code VirtualThreads}, das es nur im Java-21-Build gibt.
+     */
+    interface Provider {
+        Thread newThread(String name, Runnable task);
+    }
+
+    private static final Provider VIRTUAL = loadVirtual(System.getenv().getOrDefault("THREAD_MODE", "virtual"));
+
+    private Threads() {
+    }
+
+    /**
+     * Threads mit den Namen {@code prefix-0}, {@code prefix-1}, ...
+     */
+    public static ThreadFactory factory(String prefix) {
+        AtomicInteger next = new AtomicInteger();
+        return task -> {
+            String name = prefix + "-" + next.getAndIncrement();
+            if (VIRTUAL != null) {
+                return VIRTUAL.newThread(name, task);
+            }
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL != null;
+    }
+
+    private static Provider loadVirtual(String mode) {
+        if (mode.equalsIgnoreCase("platform")) {
+            return null;
+        }
+        try {
+            return (Provider) Class.forName("main.VirtualThreads").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // Java-11-Build
+            return null;
+        }
+    }
+}
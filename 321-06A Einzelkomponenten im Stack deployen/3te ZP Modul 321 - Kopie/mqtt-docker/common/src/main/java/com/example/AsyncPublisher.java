@@ -0,0 +1,148 @@
+package com.example;
+
+import org.eclipse.paho.client.mqttv3.IMqttActionListener;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.IMqttToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipelined publishing over one {@link MqttAsyncClient} with a bounded in-flight window.
+ *
+ * Up to {@code maxInflight} messages may be unacknowledged at a time instead of one, so the
+ * rate is no longer tied to the PUBACK round trip. A message leaves the window when the
+ * client reports it through {@link #deliveryComplete}, which the owner's callback forwards,
+ * or when its token fails, e.g. because the connection was lost. When the window is full
+ * the {@link OverflowPolicy} decides whether the caller waits or the message is dropped.
+ *
+ * The client must be created with {@code MqttConnectOptions.setMaxInflight} of at least
+ * {@code maxInflight}, otherwise Paho rejects publishes before this window is full.
+ */
+public class AsyncPublisher {
+
+    public enum OverflowPolicy {
+        /** Wait until a message in flight completes. */
+        BLOCK,
+        /** Drop the new message and count it. */
+        DROP;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    private final MqttAsyncClient client;
+    private final int maxInflight;
+    private final OverflowPolicy overflowPolicy;
+    private final Semaphore window;
+    private final Metrics.Histogram deliveryLatency;
+    private final IMqttActionListener failureListener = new IMqttActionListener() {
+        @Override
+        public void onSuccess(IMqttToken token) {
+            // Completed through deliveryComplete
+        }
+
+        @Override
+        public void onFailure(IMqttToken token, Throwable exception) {
+            failed.increment();
+            window.release();
+        }
+    };
+
+    // Counters
+    private final LongAdder published = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * @param deliveryLatency receives the time from publish to completion of every delivered message
+     */
+    public AsyncPublisher(MqttAsyncClient client, int maxInflight, OverflowPolicy overflowPolicy,
+                          Metrics.Histogram deliveryLatency) {
+        this.client = client;
+        this.maxInflight = maxInflight;
+        this.overflowPolicy = overflowPolicy;
+        this.window = new Semaphore(maxInflight);
+        this.deliveryLatency = deliveryLatency;
+    }
+
+    /**
+     * Sends a message without waiting for the broker.
+     * @return the delivery token, or null if the window was full and the message was dropped
+     */
+    public IMqttDeliveryToken publish(String topic, byte[] payload, int qos) throws MqttException, InterruptedException {
+        if (overflowPolicy == OverflowPolicy.BLOCK) {
+            window.acquire();
+        } else if (!window.tryAcquire()) {
+            dropped.increment();
+            return null;
+        }
+        MqttMessage message = new MqttMessage(payload);
+        message.setQos(qos);
+        try {
+            // The start time travels with the token to deliveryComplete
+            IMqttDeliveryToken token = client.publish(topic, message, System.nanoTime(), failureListener);
+            published.increment();
+            return token;
+        } catch (MqttException | RuntimeException e) {
+            failed.increment();
+            window.release();
+            throw e;
+        }
+    }
+
+    /**
+     * To be called from the client's {@code MqttCallback.deliveryComplete}.
+     */
+    public void deliveryComplete(IMqttDeliveryToken token) {
+        Object started = token.getUserContext();
+        if (started instanceof Long) {
+            deliveryLatency.record(System.nanoTime() - (Long) started);
+        }
+        delivered.increment();
+        window.release();
+    }
+
+    /**
+     * Waits until every message in flight has completed or failed.
+     * @return false if some were still in flight after the timeout
+     */
+    public boolean awaitCompletion(long timeoutMs) throws InterruptedException {
+        if (!window.tryAcquire(maxInflight, timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        window.release(maxInflight);
+        return true;
+    }
+
+    public int getInflight() {
+        return maxInflight - window.availablePermits();
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public String stats() {
+        return String.format("published=%d delivered=%d failed=%d dropped=%d inflight=%d",
+                getPublished(), getDelivered(), getFailed(), getDropped(), getInflight());
+    }
+}
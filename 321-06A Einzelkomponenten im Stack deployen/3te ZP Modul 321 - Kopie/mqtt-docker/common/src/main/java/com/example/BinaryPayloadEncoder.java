@@ -0,0 +1,170 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Compact binary alternative to the JSON sensor payload, selected with {@code PAYLOAD_FORMAT=binary}.
+ *
+ * Layout of version 1, all integers as unsigned LEB128 varints:
+ * <pre>
+ *   0xB1                       marker and version; 0xBx never starts a JSON or UTF-8 text payload
+ *   flags                      one byte, see the FLAG_ constants
+ *   [len, UTF-8] sensor        if FLAG_SENSOR
+ *   [len, UTF-8] sensor_id     if FLAG_SENSOR_ID
+ *   [len, UTF-8] unit          if FLAG_UNIT
+ *   value                      if FLAG_VALUE: zigzag mantissa and a scale byte (value = mantissa / 10^scale)
+ *                              if FLAG_DECIMAL, else 8 bytes IEEE 754 big-endian
+ *   timestamp                  if FLAG_TIMESTAMP: epoch milliseconds
+ * </pre>
+ * Several readings can also travel in one batch payload, see {@code ReadingBatcher}.
+ * A temperature reading takes ~35 bytes instead of ~110 as JSON. Values with up to
+ * {@link #MAX_SCALE} decimals, which is what the sensors round to, take 2-4 bytes and
+ * decode to exactly the same double; anything else falls back to the raw 8 bytes.
+ *
+ * Not thread-safe: use one instance per publishing thread.
+ */
+public class BinaryPayloadEncoder {
+    public static final int MARKER_MASK = 0xF0;
+    public static final int MARKER = 0xB0;
+    public static final int VERSION_1 = 1;
+    // Other values of the low nibble: 0xB2 batch and 0xB3 compressed batch of several readings
+    public static final int BATCH = 2;
+    public static final int COMPRESSED = 3;
+
+    public static final int FLAG_SENSOR = 1;
+    public static final int FLAG_SENSOR_ID = 1 << 1;
+    public static final int FLAG_UNIT = 1 << 2;
+    public static final int FLAG_VALUE = 1 << 3;
+    public static final int FLAG_DECIMAL = 1 << 4;
+    public static final int FLAG_TIMESTAMP = 1 << 5;
+
+    public static final int MAX_SCALE = 6;
+    static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6};
+    // Mantissas beyond this are not exactly representable, so the division would not round-trip
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private byte[] buf = new byte[64];
+    private int pos;
+
+    // The strings of a sensor rarely change, so their bytes are kept from the previous message
+    private String lastSensor;
+    private byte[] lastSensorBytes;
+    private String lastSensorId;
+    private byte[] lastSensorIdBytes;
+    private String lastUnit;
+    private byte[] lastUnitBytes;
+
+    /**
+     * True if a payload uses the binary format rather than JSON.
+     */
+    public static boolean isBinary(byte[] payload) {
+        return payload.length > 0 && (payload[0] & MARKER_MASK) == MARKER;
+    }
+
+    /**
+     * @param sensor null to leave the field out, like sensorId and unit
+     * @param value NaN to leave the field out
+     * @param timestampMillis negative to leave the field out
+     * @return a new array holding the payload
+     */
+    public byte[] encode(String sensor, String sensorId, double value, String unit, long timestampMillis) {
+        pos = 0;
+        ensure(2);
+        buf[pos++] = (byte) (MARKER | VERSION_1);
+        int flagsAt = pos++;
+        int flags = 0;
+
+        if (sensor != null) {
+            if (!sensor.equals(lastSensor)) {
+                lastSensor = sensor;
+                lastSensorBytes = sensor.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastSensorBytes);
+            flags |= FLAG_SENSOR;
+        }
+        if (sensorId != null) {
+            if (!sensorId.equals(lastSensorId)) {
+                lastSensorId = sensorId;
+                lastSensorIdBytes = sensorId.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastSensorIdBytes);
+            flags |= FLAG_SENSOR_ID;
+        }
+        if (unit != null) {
+            if (!unit.equals(lastUnit)) {
+                lastUnit = unit;
+                lastUnitBytes = unit.getBytes(StandardCharsets.UTF_8);
+            }
+            writeBytes(lastUnitBytes);
+            flags |= FLAG_UNIT;
+        }
+        if (!Double.isNaN(value)) {
+            flags |= FLAG_VALUE;
+            int scale = decimalScale(value);
+            if (scale >= 0) {
+                flags |= FLAG_DECIMAL;
+                long mantissa = Math.round(value * POWERS_OF_TEN[scale]);
+                writeVarint((mantissa << 1) ^ (mantissa >> 63));
+                ensure(1);
+                buf[pos++] = (byte) scale;
+            } else {
+                long bits = Double.doubleToRawLongBits(value);
+                ensure(8);
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    buf[pos++] = (byte) (bits >>> shift);
+                }
+            }
+        }
+        if (timestampMillis >= 0) {
+            writeVarint(timestampMillis);
+            flags |= FLAG_TIMESTAMP;
+        }
+
+        buf[flagsAt] = (byte) flags;
+        return Arrays.copyOf(buf, pos);
+    }
+
+    /**
+     * Smallest number of decimals that represents the value exactly, or -1 if there is none up to MAX_SCALE.
+     */
+    private static int decimalScale(double value) {
+        if (Double.doubleToRawLongBits(value) == Double.doubleToRawLongBits(-0.0)) {
+            return -1;
+        }
+        for (int scale = 0; scale <= MAX_SCALE; scale++) {
+            double scaled = value * POWERS_OF_TEN[scale];
+            if (Math.abs(scaled) >= MAX_EXACT_MANTISSA) {
+                return -1;
+            }
+            long mantissa = Math.round(scaled);
+            // Must match the decoder's arithmetic exactly
+            if (mantissa / POWERS_OF_TEN[scale] == value) {
+                return scale;
+            }
+        }
+        return -1;
+    }
+
+    private void writeBytes(byte[] bytes) {
+        writeVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        pos += bytes.length;
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+        }
+    }
+}
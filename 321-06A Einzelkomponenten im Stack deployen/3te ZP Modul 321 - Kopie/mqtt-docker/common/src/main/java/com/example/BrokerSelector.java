@@ -0,0 +1,132 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Puts a list of broker URIs into the order one client should try them, for
+ * {@code MqttConnectOptions.setServerURIs}: Paho tries the URIs in that order on every
+ * (re)connect and uses the first that answers.
+ *
+ * With {@code hash} selection every broker gets {@value #VIRTUAL_NODES} points on a hash ring.
+ * A client starts at the first point after the hash of its key, usually the sensor ID, and
+ * walking on along the ring yields the other brokers as its failover order. So every client has
+ * a fixed home broker, the clients spread evenly over the brokers, and when a broker fails only
+ * its own clients move, spread over all remaining brokers instead of landing on the next one in
+ * the list. Adding a broker only moves the clients that hash to it.
+ *
+ * With {@code ordered} selection every client uses the list as given, e.g. a subscriber that
+ * should stay on the hub of a bridged cluster.
+ *
+ * A client that failed over keeps its backup broker while that connection is healthy; the next
+ * reconnect tries its home broker first again.
+ */
+public class BrokerSelector {
+    private static final int VIRTUAL_NODES = 100;
+
+    private final String[] brokers;
+    private final boolean hash;
+    // Ring points in ascending order and the index of the broker owning each
+    private final long[] points;
+    private final int[] owners;
+
+    /**
+     * @param brokerList comma-separated broker URIs, e.g. {@code tcp://broker-1:1883,tcp://broker-2:1883}
+     * @param selection  {@code hash} or {@code ordered}
+     */
+    public BrokerSelector(String brokerList, String selection) {
+        Set<String> unique = new LinkedHashSet<>();
+        for (String uri : brokerList.split(",")) {
+            if (!uri.trim().isEmpty()) {
+                unique.add(uri.trim());
+            }
+        }
+        if (unique.isEmpty()) {
+            throw new IllegalArgumentException("No broker URI in " + brokerList);
+        }
+        if (!selection.equals("hash") && !selection.equals("ordered")) {
+            throw new IllegalArgumentException("Broker selection must be hash or ordered: " + selection);
+        }
+        this.brokers = unique.toArray(new String[0]);
+        this.hash = selection.equals("hash");
+
+        long[][] ring = new long[brokers.length * VIRTUAL_NODES][];
+        for (int b = 0; b < brokers.length; b++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                ring[b * VIRTUAL_NODES + v] = new long[] {hash(brokers[b] + "#" + v), b};
+            }
+        }
+        Arrays.sort(ring, (x, y) -> Long.compare(x[0], y[0]));
+        points = new long[ring.length];
+        owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            points[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * The broker list from {@code MQTT_BROKERS}, or the single broker at {@code host:port}.
+     */
+    public static String brokerList(String host, int port) {
+        String brokers = System.getenv().getOrDefault("MQTT_BROKERS", "");
+        return brokers.trim().isEmpty() ? "tcp://" + host + ":" + port : brokers;
+    }
+
+    /**
+     * @return every broker, the home broker of {@code key} first
+     */
+    public String[] order(String key) {
+        if (!hash || brokers.length == 1) {
+            return brokers.clone();
+        }
+        int start = Arrays.binarySearch(points, hash(key));
+        if (start < 0) {
+            start = -start - 1;
+        }
+        List<String> order = new ArrayList<>(brokers.length);
+        boolean[] taken = new boolean[brokers.length];
+        for (int i = 0; order.size() < brokers.length; i++) {
+            int owner = owners[(start + i) % points.length];
+            if (!taken[owner]) {
+                taken[owner] = true;
+                order.add(brokers[owner]);
+            }
+        }
+        return order.toArray(new String[0]);
+    }
+
+    public String[] getBrokers() {
+        return brokers.clone();
+    }
+
+    public boolean isHash() {
+        return hash;
+    }
+
+    /**
+     * 64-bit FNV-1a, finished with the MurmurHash3 mixer so that similar keys like
+     * {@code temp001} and {@code temp002} land far apart on the ring.
+     */
+    static long hash(String key) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", brokers) + (brokers.length > 1 ? " (" + (hash ? "hash" : "ordered") + ")" : "");
+    }
+}
@@ -0,0 +1,271 @@
+package com.example;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Process-wide metrics with low overhead on the hot path, served in the Prometheus text
+ * exposition format on {@code /metrics}.
+ *
+ * Counters are {@link LongAdder}s, so concurrent threads do not contend on one cache line.
+ * Values that are already counted elsewhere (queue sizes, writer statistics) are registered
+ * as suppliers and only read on a scrape. Histograms keep HDR-style log-linear buckets:
+ * eight sub-buckets per power of two, i.e. about 12% resolution over the whole long range,
+ * and are exposed with one {@code le} bucket per power of two.
+ */
+public final class Metrics {
+
+    private interface Metric {
+        void write(StringBuilder out);
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+        private final LongAdder sum = new LongAdder();
+        private final double unitScale;
+        private final int minExponent;
+        private final int maxExponent;
+
+        Histogram(double unitScale, int minExponent, int maxExponent) {
+            this.unitScale = unitScale;
+            this.minExponent = minExponent;
+            this.maxExponent = maxExponent;
+        }
+
+        /**
+         * Bucket of a value. Values are shifted by one so that every power of two is the
+         * inclusive upper end of a bucket, which makes the exported {@code le} bounds exact.
+         */
+        static int index(long value) {
+            if (value <= 0) {
+                return 0;
+            }
+            long shifted = value - 1;
+            if (shifted < SUB_BUCKETS) {
+                return 1 + (int) shifted;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(shifted);
+            int mantissa = (int) (shifted >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+            return 1 + (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + mantissa;
+        }
+
+        /**
+         * Largest value that falls into a bucket.
+         */
+        static long upperBound(int index) {
+            if (index <= SUB_BUCKETS) {
+                return index;
+            }
+            int exponent = (index - 1) / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+            int mantissa = (index - 1) % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BUCKET_BITS);
+            return ((SUB_BUCKETS + mantissa) * width) + width;
+        }
+
+        public void record(long value) {
+            buckets.incrementAndGet(index(value));
+            sum.add(value);
+        }
+
+        public long count() {
+            long count = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                count += buckets.get(i);
+            }
+            return count;
+        }
+
+        /**
+         * @param quantile between 0 and 1, e.g. 0.99
+         * @return the upper bound of the bucket holding that quantile, in recorded units
+         */
+        public long percentile(double quantile) {
+            long[] counts = snapshot();
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private long[] snapshot() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+
+        void write(String name, StringBuilder out) {
+            long[] counts = snapshot();
+            long cumulative = 0;
+            int next = 0;
+            for (int exponent = minExponent; exponent <= maxExponent; exponent++) {
+                int last = index(1L << exponent);
+                for (; next <= last; next++) {
+                    cumulative += counts[next];
+                }
+                out.append(name).append("_bucket{le=\"").append(format((1L << exponent) * unitScale)).append("\"} ")
+                        .append(cumulative).append('\n');
+            }
+            for (; next < counts.length; next++) {
+                cumulative += counts[next];
+            }
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(format(sum.sum() * unitScale)).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    private static final Map<String, Metric> METRICS = new LinkedHashMap<>();
+    private static final Map<String, Object> INSTANCES = new LinkedHashMap<>();
+
+    private Metrics() {
+    }
+
+    /**
+     * @param name full metric name, ending in {@code _total}
+     */
+    public static synchronized Counter counter(String name, String help) {
+        Counter counter = (Counter) INSTANCES.get(name);
+        if (counter == null) {
+            Counter created = new Counter();
+            register(name, help, "counter", out -> sample(out, name, created.get()));
+            INSTANCES.put(name, created);
+            counter = created;
+        }
+        return counter;
+    }
+
+    /**
+     * Exposes a count that is maintained elsewhere.
+     */
+    public static synchronized void counter(String name, String help, LongSupplier value) {
+        register(name, help, "counter", out -> sample(out, name, value.getAsLong()));
+    }
+
+    public static synchronized void gauge(String name, String help, DoubleSupplier value) {
+        register(name, help, "gauge", out -> sample(out, name, value.getAsDouble()));
+    }
+
+    /**
+     * @param unitScale factor from recorded units to exported units, e.g. 1e-9 for nanoseconds to seconds
+     * @param minExponent smallest exported bucket bound is 2^minExponent recorded units
+     * @param maxExponent largest exported bucket bound is 2^maxExponent recorded units
+     */
+    public static synchronized Histogram histogram(String name, String help, double unitScale,
+                                                   int minExponent, int maxExponent) {
+        Histogram histogram = (Histogram) INSTANCES.get(name);
+        if (histogram == null) {
+            Histogram created = new Histogram(unitScale, minExponent, maxExponent);
+            register(name, help, "histogram", out -> created.write(name, out));
+            INSTANCES.put(name, created);
+            histogram = created;
+        }
+        return histogram;
+    }
+
+    /**
+     * Histogram for durations recorded in nanoseconds and exported in seconds, from ~1us to ~68s.
+     */
+    public static Histogram latencyHistogram(String name, String help) {
+        return histogram(name, help, 1e-9, 10, 36);
+    }
+
+    private static void register(String name, String help, String type, Metric metric) {
+        METRICS.put(name, out -> {
+            out.append("# HELP ").append(name).append(' ')
+                    .append(help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            metric.write(out);
+        });
+    }
+
+    private static void sample(StringBuilder out, String name, double value) {
+        out.append(name).append(' ').append(format(value)).append('\n');
+    }
+
+    private static String format(double value) {
+        if (value == (long) value && Math.abs(value) < 1e15) {
+            return Long.toString((long) value);
+        }
+        if (Double.isNaN(value)) {
+            return "NaN";
+        }
+        if (Double.isInfinite(value)) {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        return Double.toString(value);
+    }
+
+    /**
+     * All metrics in the Prometheus text exposition format.
+     */
+    public static String scrape() {
+        List<Metric> metrics;
+        synchronized (Metrics.class) {
+            metrics = new ArrayList<>(METRICS.values());
+        }
+        StringBuilder out = new StringBuilder(4096);
+        for (Metric metric : metrics) {
+            metric.write(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serves {@link #scrape()} on {@code http://<host>:<port>/metrics}.
+     */
+    public static void startServer(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Serving metrics on port " + port + " at /metrics");
+    }
+}
@@ -0,0 +1,183 @@
+package com.example;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Store-and-forward buffer for payloads that could not be published yet.
+ *
+ * Every payload goes through the buffer, so readings taken while the broker is unreachable are
+ * kept, with the timestamps they were taken at, and sent in order once it is back. The payloads
+ * live in one ring of {@code capacityBytes}, each prefixed with its length; when the ring is
+ * full the oldest payloads are dropped and counted. Nothing survives a restart of the process.
+ *
+ * {@link #drain} sends at most {@code catchUpRate} payloads per second, so a long backlog does
+ * not flood the broker after a reconnect. The time from the first successful send after a
+ * failure until the backlog is gone is recorded in the drain histogram.
+ */
+public class OfflineBuffer {
+
+    public interface Sender {
+        /**
+         * @return false if the payload could not be sent and should be retried later
+         */
+        boolean send(byte[] payload) throws InterruptedException;
+    }
+
+    private final byte[] ring;
+    private final long sendIntervalNanos;
+    private final Metrics.Histogram drainDuration;
+
+    private int head;
+    private int used;
+    private int count;
+    // Number of payloads removed so far, to notice when the one being sent was dropped meanwhile
+    private long removed;
+    private long dropped;
+
+    private boolean failing;
+    private long catchUpStartNanos;
+
+    /**
+     * @param drainDuration receives the time needed to send the backlog after a failure, in nanoseconds
+     */
+    public OfflineBuffer(int capacityBytes, double catchUpRate, Metrics.Histogram drainDuration) {
+        this.ring = new byte[capacityBytes];
+        this.sendIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / catchUpRate);
+        this.drainDuration = drainDuration;
+    }
+
+    /**
+     * Appends a payload, dropping the oldest ones if it does not fit.
+     * @return false if the payload is larger than the whole buffer and was dropped itself
+     */
+    public synchronized boolean add(byte[] payload) {
+        int needed = 4 + payload.length;
+        if (needed > ring.length) {
+            dropped++;
+            return false;
+        }
+        while (ring.length - used < needed) {
+            removeFirst();
+            dropped++;
+        }
+        int tail = (head + used) % ring.length;
+        byte[] length = {(byte) (payload.length >>> 24), (byte) (payload.length >>> 16),
+                (byte) (payload.length >>> 8), (byte) payload.length};
+        tail = write(length, tail);
+        write(payload, tail);
+        used += needed;
+        count++;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Sends buffered payloads for {@code durationMs}, paced to the catch-up rate, and waits for
+     * new ones while the buffer is empty. After a failed send it waits out the rest of the
+     * duration, so it can stand in for the caller's sleep between readings.
+     * @return the number of payloads sent
+     */
+    public int drain(Sender sender, long durationMs) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long nextSend = System.nanoTime();
+        int sent = 0;
+        while (true) {
+            byte[] payload;
+            long sequence;
+            synchronized (this) {
+                long now;
+                while (count == 0 && (now = System.nanoTime()) < deadline) {
+                    TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+                }
+                if (count == 0) {
+                    return sent;
+                }
+                payload = peekFirst();
+                sequence = removed;
+            }
+            if (!sender.send(payload)) {
+                failing = true;
+                sleepUntil(deadline);
+                return sent;
+            }
+            sent++;
+            long now = System.nanoTime();
+            if (failing) {
+                failing = false;
+                catchUpStartNanos = now;
+            }
+            synchronized (this) {
+                // Unless add() dropped it while it was being sent
+                if (removed == sequence) {
+                    removeFirst();
+                }
+                if (count == 0 && catchUpStartNanos != 0) {
+                    drainDuration.record(now - catchUpStartNanos);
+                    catchUpStartNanos = 0;
+                }
+            }
+            // No credit is saved up while idle, so a backlog never goes out faster than the rate
+            nextSend = Math.max(nextSend + sendIntervalNanos, now);
+            if (nextSend >= deadline) {
+                sleepUntil(deadline);
+                return sent;
+            }
+            sleepUntil(nextSend);
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized int usedBytes() {
+        return used;
+    }
+
+    public int capacityBytes() {
+        return ring.length;
+    }
+
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    private byte[] peekFirst() {
+        byte[] payload = new byte[readLength()];
+        int pos = (head + 4) % ring.length;
+        int first = Math.min(payload.length, ring.length - pos);
+        System.arraycopy(ring, pos, payload, 0, first);
+        System.arraycopy(ring, 0, payload, first, payload.length - first);
+        return payload;
+    }
+
+    private void removeFirst() {
+        int needed = 4 + readLength();
+        head = (head + needed) % ring.length;
+        used -= needed;
+        count--;
+        removed++;
+    }
+
+    private int readLength() {
+        int length = 0;
+        for (int i = 0; i < 4; i++) {
+            length = (length << 8) | (ring[(head + i) % ring.length] & 0xFF);
+        }
+        return length;
+    }
+
+    private int write(byte[] bytes, int pos) {
+        int first = Math.min(bytes.length, ring.length - pos);
+        System.arraycopy(bytes, 0, ring, pos, first);
+        System.arraycopy(bytes, first, ring, 0, bytes.length - first);
+        return (pos + bytes.length) % ring.length;
+    }
+
+    private static void sleepUntil(long deadlineNanos) throws InterruptedException {
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) {
+            TimeUnit.NANOSECONDS.sleep(remaining);
+        }
+    }
+}
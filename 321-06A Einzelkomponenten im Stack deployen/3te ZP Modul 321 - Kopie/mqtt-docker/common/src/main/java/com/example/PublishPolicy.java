@@ -0,0 +1,223 @@
+package com.example;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which readings are worth publishing and how often the sensor reads.
+ *
+ * A reading is published when it differs from the last published value by more than the
+ * deadband, or when nothing was published for {@code maxSilenceMs} (heartbeat, so a quiet
+ * sensor still shows it is alive). A deadband of 0 publishes every reading. The heartbeat is
+ * taken at the first reading after the silence, so it is late by at most one interval.
+ *
+ * All three settings can be changed at runtime with a flat JSON message on the control topic:
+ *
+ * <pre>
+ * {"interval_ms":5000, "deadband":0.5, "max_silence_ms":60000, "sensor":"temperature", "sensor_id":"temp001"}
+ * </pre>
+ *
+ * Every field is optional. Without {@code sensor} and {@code sensor_id} the message applies
+ * to every sensor listening; with them only to matching ones. Fields this class does not know
+ * are ignored. The interval is kept between {@code minIntervalMs} and one day.
+ */
+public class PublishPolicy {
+    private static final long MAX_INTERVAL_MS = 24 * 60 * 60 * 1000L;
+
+    private final long minIntervalMs;
+    private volatile long intervalMs;
+    private volatile double deadband;
+    private volatile long maxSilenceMs;
+
+    private boolean published;
+    private double lastValue;
+    private long lastPublishedMillis;
+
+    private final AtomicLong suppressed = new AtomicLong();
+    private final AtomicLong heartbeats = new AtomicLong();
+    private final AtomicLong controlMessages = new AtomicLong();
+
+    public PublishPolicy(long intervalMs, double deadband, long maxSilenceMs, long minIntervalMs) {
+        this.minIntervalMs = minIntervalMs;
+        this.intervalMs = clampInterval(intervalMs);
+        this.deadband = Math.max(0, deadband);
+        this.maxSilenceMs = Math.max(0, maxSilenceMs);
+    }
+
+    /**
+     * @return true if the reading should be published; it then becomes the reference for the deadband
+     */
+    public synchronized boolean shouldPublish(double value, long nowMillis) {
+        boolean publish;
+        if (!published || deadband <= 0 || !(Math.abs(value - lastValue) <= deadband)) {
+            // First reading, no deadband, a real change or NaN
+            publish = true;
+        } else if (maxSilenceMs > 0 && nowMillis - lastPublishedMillis >= maxSilenceMs) {
+            publish = true;
+            heartbeats.incrementAndGet();
+        } else {
+            publish = false;
+        }
+        if (publish) {
+            published = true;
+            lastValue = value;
+            lastPublishedMillis = nowMillis;
+        } else {
+            suppressed.incrementAndGet();
+        }
+        return publish;
+    }
+
+    /**
+     * Applies a control message addressed to this sensor.
+     * @return a description of the new settings, or null if the message is for other sensors
+     * @throws IllegalArgumentException if the message is not a flat JSON object with valid values
+     */
+    public String applyControl(String message, String sensor, String sensorId) {
+        Map<String, String> fields = parseFlatJson(message);
+        String targetSensor = fields.get("sensor");
+        String targetSensorId = fields.get("sensor_id");
+        if ((targetSensor != null && !targetSensor.equals(sensor))
+                || (targetSensorId != null && !targetSensorId.equals(sensorId))) {
+            return null;
+        }
+        // Validate everything first, so an invalid message changes nothing
+        Long newInterval = parseLong(fields, "interval_ms");
+        Double newDeadband = parseDouble(fields, "deadband");
+        Long newMaxSilence = parseLong(fields, "max_silence_ms");
+        if (newInterval != null) {
+            intervalMs = clampInterval(newInterval);
+        }
+        if (newDeadband != null) {
+            deadband = newDeadband;
+        }
+        if (newMaxSilence != null) {
+            maxSilenceMs = newMaxSilence;
+        }
+        controlMessages.incrementAndGet();
+        return toString();
+    }
+
+    private long clampInterval(long interval) {
+        return Math.max(minIntervalMs, Math.min(MAX_INTERVAL_MS, interval));
+    }
+
+    private static Long parseLong(Map<String, String> fields, String key) {
+        Double value = parseDouble(fields, key);
+        return value == null ? null : (long) (double) value;
+    }
+
+    private static Double parseDouble(Map<String, String> fields, String key) {
+        String text = fields.get(key);
+        if (text == null) {
+            return null;
+        }
+        try {
+            double value = Double.parseDouble(text);
+            if (value >= 0 && !Double.isInfinite(value)) {
+                return value;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException(key + " must be a non-negative number: " + text);
+    }
+
+    /**
+     * Reads {@code {"key":value,...}} with string, number and boolean values into a map of
+     * their text; strings must not contain escapes.
+     */
+    static Map<String, String> parseFlatJson(String text) {
+        Map<String, String> fields = new HashMap<>();
+        String body = text.trim();
+        if (!body.startsWith("{") || !body.endsWith("}")) {
+            throw new IllegalArgumentException("Expected a JSON object");
+        }
+        int pos = 1;
+        int end = body.length() - 1;
+        while (true) {
+            pos = skipWhitespace(body, pos, end);
+            if (pos == end) {
+                return fields;
+            }
+            if (body.charAt(pos) != '"') {
+                throw new IllegalArgumentException("Expected a key at position " + pos);
+            }
+            int keyEnd = body.indexOf('"', pos + 1);
+            if (keyEnd < 0 || keyEnd >= end) {
+                throw new IllegalArgumentException("Unterminated key");
+            }
+            String key = body.substring(pos + 1, keyEnd);
+            pos = skipWhitespace(body, keyEnd + 1, end);
+            if (pos == end || body.charAt(pos) != ':') {
+                throw new IllegalArgumentException("Expected ':' after " + key);
+            }
+            pos = skipWhitespace(body, pos + 1, end);
+            String value;
+            if (pos < end && body.charAt(pos) == '"') {
+                int valueEnd = body.indexOf('"', pos + 1);
+                if (valueEnd < 0 || valueEnd >= end) {
+                    throw new IllegalArgumentException("Unterminated value of " + key);
+                }
+                value = body.substring(pos + 1, valueEnd);
+                pos = valueEnd + 1;
+            } else {
+                int valueEnd = pos;
+                while (valueEnd < end && body.charAt(valueEnd) != ',' && !Character.isWhitespace(body.charAt(valueEnd))) {
+                    valueEnd++;
+                }
+                value = body.substring(pos, valueEnd);
+                pos = valueEnd;
+            }
+            if (value.contains("\\") || value.startsWith("{") || value.startsWith("[")) {
+                throw new IllegalArgumentException("Only flat values are supported: " + key);
+            }
+            fields.put(key, value);
+            pos = skipWhitespace(body, pos, end);
+            if (pos < end) {
+                if (body.charAt(pos) != ',') {
+                    throw new IllegalArgumentException("Expected ',' after " + key);
+                }
+                pos++;
+            }
+        }
+    }
+
+    private static int skipWhitespace(String text, int pos, int end) {
+        while (pos < end && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    public double getDeadband() {
+        return deadband;
+    }
+
+    public long getMaxSilenceMs() {
+        return maxSilenceMs;
+    }
+
+    public long getSuppressed() {
+        return suppressed.get();
+    }
+
+    public long getHeartbeats() {
+        return heartbeats.get();
+    }
+
+    public long getControlMessages() {
+        return controlMessages.get();
+    }
+
+    @Override
+    public String toString() {
+        return "interval=" + intervalMs + "ms deadband=" + deadband
+                + (maxSilenceMs > 0 ? " max silence=" + maxSilenceMs + "ms" : "");
+    }
+}
@@ -0,0 +1,141 @@
+package com.example;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Collects encoded readings and packs them into one MQTT payload, enabled with {@code BATCH_SIZE} > 1.
+ *
+ * A batch is due once it holds {@code maxReadings} readings or its oldest reading is
+ * {@code maxDelayMs} old. JSON readings become a JSON array {@code [{...},{...}]}; binary
+ * ones a {@code 0xB2} payload: the marker, the number of readings as varint, then every
+ * reading with its varint length. With compression the payload is deflated (zlib) behind a
+ * {@code 0xB3} marker, unless that would not make it smaller. The connector recognises all
+ * three and splits them into single readings again.
+ *
+ * Nothing is sent from here: the owner checks what {@link #add} returns and publishes
+ * {@link #drain()}. Not thread-safe.
+ */
+public class ReadingBatcher {
+    public static final int BATCH_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.BATCH;
+    public static final int COMPRESSED_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.COMPRESSED;
+
+    private final boolean binary;
+    private final int maxReadings;
+    private final long maxDelayMs;
+    private final Deflater deflater;
+
+    private byte[] buf = new byte[1024];
+    private int pos;
+    private int count;
+    private long firstAddedMillis;
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream(1024);
+    private final byte[] chunk = new byte[4096];
+
+    /**
+     * @param binary true if the readings come from {@link BinaryPayloadEncoder}, false for JSON objects
+     */
+    public ReadingBatcher(boolean binary, int maxReadings, long maxDelayMs, boolean compress) {
+        this.binary = binary;
+        this.maxReadings = maxReadings;
+        this.maxDelayMs = maxDelayMs;
+        this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+    }
+
+    /**
+     * Adds one encoded reading.
+     * @return true if the batch is now due and should be sent with {@link #drain()}
+     */
+    public boolean add(byte[] reading, long nowMillis) {
+        if (count == 0) {
+            firstAddedMillis = nowMillis;
+        }
+        if (binary) {
+            writeVarint(reading.length);
+        } else if (count > 0) {
+            ensure(1);
+            buf[pos++] = ',';
+        }
+        ensure(reading.length);
+        System.arraycopy(reading, 0, buf, pos, reading.length);
+        pos += reading.length;
+        count++;
+        return isDue(nowMillis);
+    }
+
+    public boolean isDue(long nowMillis) {
+        return count >= maxReadings || (count > 0 && nowMillis - firstAddedMillis >= maxDelayMs);
+    }
+
+    /**
+     * Readings in the current batch.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the payload of the current batch, or null if it is empty; the batcher starts a new one
+     */
+    public byte[] drain() {
+        if (count == 0) {
+            return null;
+        }
+        byte[] payload;
+        if (binary) {
+            byte[] header = new byte[11];
+            header[0] = (byte) BATCH_MARKER;
+            int headerLength = 1;
+            long value = count;
+            while ((value & ~0x7FL) != 0) {
+                header[headerLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            header[headerLength++] = (byte) value;
+            payload = new byte[headerLength + pos];
+            System.arraycopy(header, 0, payload, 0, headerLength);
+            System.arraycopy(buf, 0, payload, headerLength, pos);
+        } else {
+            payload = new byte[pos + 2];
+            payload[0] = '[';
+            System.arraycopy(buf, 0, payload, 1, pos);
+            payload[pos + 1] = ']';
+        }
+        pos = 0;
+        count = 0;
+        return deflater == null ? payload : compress(payload);
+    }
+
+    private byte[] compress(byte[] payload) {
+        deflater.reset();
+        deflater.setInput(payload);
+        deflater.finish();
+        compressed.reset();
+        compressed.write(COMPRESSED_MARKER);
+        while (!deflater.finished()) {
+            int length = deflater.deflate(chunk);
+            compressed.write(chunk, 0, length);
+            if (compressed.size() >= payload.length) {
+                // Small or random batches do not get smaller
+                return payload;
+            }
+        }
+        return compressed.toByteArray();
+    }
+
+    private void writeVarint(long value) {
+        ensure(10);
+        while ((value & ~0x7FL) != 0) {
+            buf[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buf[pos++] = (byte) value;
+    }
+
+    private void ensure(int bytes) {
+        if (pos + bytes > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, pos + bytes));
+        }
+    }
+}
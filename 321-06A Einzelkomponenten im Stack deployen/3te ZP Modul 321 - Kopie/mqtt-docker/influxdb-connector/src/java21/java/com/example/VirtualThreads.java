@@ -0,0 +1,12 @@
+package com.example;
+
+/**
+ * Only part of the Java 21 build ({@code mvn -Pjava21}), see {@link Threads}.
+ */
+final class VirtualThreads implements Threads.Provider {
+
+    @Override
+    public Thread newThread(String name, Runnable task) {
+        return Thread.ofVirtual().name(name).unstarted(task);
+    }
+}
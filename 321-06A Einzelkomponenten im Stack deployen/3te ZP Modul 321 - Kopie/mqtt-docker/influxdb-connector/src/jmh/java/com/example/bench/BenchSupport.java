@@ -0,0 +1,134 @@
+package com.example.bench;
+
+import com.example.InfluxDBConnector;
+import com.hivemq.embedded.EmbeddedHiveMQ;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared pieces of the end-to-end benchmarks: an embedded broker and the connector as a child process.
+ */
+final class BenchSupport {
+
+    private BenchSupport() {
+    }
+
+    /**
+     * Starts an embedded HiveMQ CE broker on a free local port. HiveMQ supports
+     * {@code $share} subscriptions for MQTT 3.1.1 clients like Mosquitto does.
+     * @return the broker handle; its URI is available through {@link Broker#getUri()}
+     */
+    static Broker startEmbeddedBroker() throws Exception {
+        int port = freePort();
+        Path config = Files.createTempDirectory("bench-broker-config");
+        Files.write(config.resolve("config.xml"), ("<hivemq>"
+                + "<listeners><tcp-listener><port>" + port + "</port><bind-address>127.0.0.1</bind-address></tcp-listener></listeners>"
+                + "<persistence><mode>in-memory</mode></persistence>"
+                // The default of 1000 queued messages per client drops readings as soon as a subscriber lags
+                + "<mqtt><queued-messages><max-queue-size>10000000</max-queue-size></queued-messages></mqtt>"
+                + "<anonymous-usage-statistics><enabled>false</enabled></anonymous-usage-statistics>"
+                + "</hivemq>").getBytes(StandardCharsets.UTF_8));
+        EmbeddedHiveMQ hiveMQ = EmbeddedHiveMQ.builder()
+                .withConfigurationFolder(config)
+                .withDataFolder(Files.createTempDirectory("bench-broker-data"))
+                .withExtensionsFolder(Files.createTempDirectory("bench-broker-extensions"))
+                .build();
+        hiveMQ.start().join();
+        return new Broker(hiveMQ, "tcp://127.0.0.1:" + port);
+    }
+
+    /**
+     * Starts InfluxDBConnector in its own JVM and waits until it has subscribed.
+     * Its output goes to {@code target/<logName>.log}.
+     */
+    static Process startConnector(URI broker, int influxPort, Map<String, String> extraEnv, String logName)
+            throws IOException, InterruptedException {
+        String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        ProcessBuilder builder = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                InfluxDBConnector.class.getName());
+        Map<String, String> env = builder.environment();
+        env.put("MQTT_BROKER_HOST", broker.getHost());
+        env.put("MQTT_BROKER_PORT", String.valueOf(broker.getPort()));
+        env.put("INFLUXDB_HOST", "127.0.0.1");
+        env.put("INFLUXDB_PORT", String.valueOf(influxPort));
+        env.putIfAbsent("WRITE_FLUSH_INTERVAL_MS", "100");
+        // Several connectors run on this host; their HTTP endpoints would collide
+        env.putIfAbsent("METRICS_PORT", "0");
+        env.putIfAbsent("QUERY_PORT", "0");
+        env.putAll(extraEnv);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+
+        // Mirror the connector output to a log file and wait for its subscription
+        CountDownLatch subscribed = new CountDownLatch(1);
+        File log = new File("target/" + logName + ".log");
+        log.getParentFile().mkdirs();
+        Thread pump = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                 PrintWriter writer = new PrintWriter(log, "UTF-8")) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    writer.println(line);
+                    writer.flush();
+                    if (line.startsWith("Subscribed to topic")) {
+                        subscribed.countDown();
+                    }
+                }
+            } catch (IOException e) {
+                System.out.println("Error reading connector output: " + e.getMessage());
+            }
+        }, logName + "-log");
+        pump.setDaemon(true);
+        pump.start();
+        if (!subscribed.await(60, TimeUnit.SECONDS)) {
+            process.destroy();
+            throw new IllegalStateException("Connector did not subscribe, see " + log.getAbsolutePath());
+        }
+        return process;
+    }
+
+    static void stopConnector(Process connector) throws InterruptedException {
+        if (connector != null) {
+            connector.destroy();
+            connector.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    static final class Broker implements AutoCloseable {
+        private final EmbeddedHiveMQ hiveMQ;
+        private final String uri;
+
+        Broker(EmbeddedHiveMQ hiveMQ, String uri) {
+            this.hiveMQ = hiveMQ;
+            this.uri = uri;
+        }
+
+        String getUri() {
+            return uri;
+        }
+
+        @Override
+        public void close() {
+            hiveMQ.stop().join();
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package com.example.bench;
+
+import com.example.BrokerSelector;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttCallback;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Kills one of several brokers under load and measures how long the sensors on it are silent
+ * and how the load spreads over the remaining brokers.
+ *
+ * Every simulated sensor is its own client with the failover order of {@link BrokerSelector}
+ * for its sensor ID and Paho's automatic reconnect, as the sensor containers use it. Each
+ * broker has a subscriber that counts what arrives there; the brokers are embedded and not
+ * bridged, so a message counts on the broker it was published to. After a warm-up the harness
+ * stops one broker and reports:
+ * <ul>
+ *   <li>the failover gap of every sensor homed on it, from its last message before the kill to
+ *       its first one through another broker</li>
+ *   <li>where those sensors went; consistent hashing should spread them over all other brokers
+ *       and leave every other sensor where it was</li>
+ *   <li>messages per second per broker before the kill and once all sensors have moved</li>
+ * </ul>
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.FailoverBenchmark}.
+ *
+ * System properties:
+ * <ul>
+ *   <li>{@code bench.brokers} - number of embedded brokers (default 3)</li>
+ *   <li>{@code bench.kill} - index of the broker to stop (default 0)</li>
+ *   <li>{@code bench.sensors} - number of sensor clients (default 60)</li>
+ *   <li>{@code bench.interval} - milliseconds between two readings of a sensor (default 100)</li>
+ *   <li>{@code bench.window} - milliseconds over which the throughput is measured (default 5000)</li>
+ *   <li>{@code bench.output} - result file (default target/failover-benchmark.json)</li>
+ * </ul>
+ */
+public class FailoverBenchmark {
+    private static final int BROKERS = Integer.getInteger("bench.brokers", 3);
+    private static final int KILL = Integer.getInteger("bench.kill", 0);
+    private static final int SENSORS = Integer.getInteger("bench.sensors", 60);
+    private static final long INTERVAL_MS = Long.getLong("bench.interval", 100);
+    private static final long WINDOW_MS = Long.getLong("bench.window", 5000);
+    private static final String OUTPUT = System.getProperty("bench.output", "target/failover-benchmark.json");
+    private static final long FAILOVER_TIMEOUT_MS = 60000;
+    private static final String TOPIC = "bench/failover/";
+
+    private static final AtomicLongArray received = new AtomicLongArray(BROKERS);
+    private static final AtomicLongArray lastArrival = new AtomicLongArray(SENSORS);
+    private static final AtomicLongArray firstAfterKill = new AtomicLongArray(SENSORS);
+    private static volatile long killMillis;
+
+    public static void main(String[] args) throws Exception {
+        List<BenchSupport.Broker> brokers = new ArrayList<>();
+        List<MqttAsyncClient> subscribers = new ArrayList<>();
+        MqttAsyncClient[] sensors = new MqttAsyncClient[SENSORS];
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        try {
+            String[] uris = new String[BROKERS];
+            for (int b = 0; b < BROKERS; b++) {
+                brokers.add(BenchSupport.startEmbeddedBroker());
+                uris[b] = brokers.get(b).getUri();
+                subscribers.add(subscribe(uris[b], b));
+            }
+            String killed = uris[KILL];
+            BrokerSelector selector = new BrokerSelector(String.join(",", uris), "hash");
+
+            String[][] orders = new String[SENSORS][];
+            for (int s = 0; s < SENSORS; s++) {
+                orders[s] = selector.order(String.format("temp%03d", s));
+                sensors[s] = connect(orders[s]);
+            }
+
+            AtomicLong skipped = new AtomicLong();
+            scheduler.scheduleAtFixedRate(() -> {
+                for (int s = 0; s < SENSORS; s++) {
+                    if (!sensors[s].isConnected()) {
+                        skipped.incrementAndGet();
+                        continue;
+                    }
+                    try {
+                        sensors[s].publish(TOPIC + s, String.valueOf(System.currentTimeMillis())
+                                .getBytes(StandardCharsets.UTF_8), 0, false);
+                    } catch (MqttException e) {
+                        skipped.incrementAndGet();
+                    }
+                }
+            }, 0, INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            // Warm-up, then the throughput with every broker up
+            Thread.sleep(WINDOW_MS);
+            long[] before = measure();
+
+            long[] lastBeforeKill = new long[SENSORS];
+            killMillis = System.currentTimeMillis();
+            for (int s = 0; s < SENSORS; s++) {
+                lastBeforeKill[s] = lastArrival.get(s);
+            }
+            brokers.get(KILL).close();
+            System.out.println("Stopped broker " + killed);
+
+            // Wait until every sensor has published through a live broker again
+            long deadline = killMillis + FAILOVER_TIMEOUT_MS;
+            while (countRecovered() < SENSORS && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            long[] after = measure();
+
+            List<Long> movedGaps = new ArrayList<>();
+            long otherMaxGap = 0;
+            int lost = 0;
+            int planned = 0;
+            int movedElsewhere = 0;
+            JsonObject movedTo = new JsonObject();
+            for (int s = 0; s < SENSORS; s++) {
+                long gap = firstAfterKill.get(s) == 0 ? -1 : firstAfterKill.get(s) - lastBeforeKill[s];
+                if (!orders[s][0].equals(killed)) {
+                    otherMaxGap = Math.max(otherMaxGap, gap);
+                    if (!orders[s][0].equals(sensors[s].getCurrentServerURI())) {
+                        movedElsewhere++;
+                    }
+                    continue;
+                }
+                if (gap < 0) {
+                    lost++;
+                    continue;
+                }
+                movedGaps.add(gap);
+                String current = sensors[s].getCurrentServerURI();
+                if (current.equals(orders[s][1])) {
+                    planned++;
+                }
+                movedTo.addProperty(current, movedTo.has(current) ? movedTo.get(current).getAsInt() + 1 : 1);
+            }
+            long[] gaps = movedGaps.stream().mapToLong(Long::longValue).sorted().toArray();
+
+            JsonObject config = new JsonObject();
+            config.addProperty("brokers", BROKERS);
+            config.addProperty("killed", killed);
+            config.addProperty("sensors", SENSORS);
+            config.addProperty("intervalMs", INTERVAL_MS);
+            config.addProperty("windowMs", WINDOW_MS);
+
+            JsonObject failover = new JsonObject();
+            failover.addProperty("sensorsOnKilledBroker", gaps.length + lost);
+            failover.addProperty("notRecovered", lost);
+            failover.addProperty("onPlannedBackup", planned);
+            failover.add("movedTo", movedTo);
+            failover.addProperty("otherSensorsMoved", movedElsewhere);
+            failover.addProperty("otherSensorsMaxGapMs", otherMaxGap);
+            if (gaps.length > 0) {
+                failover.addProperty("gapMinMs", gaps[0]);
+                failover.addProperty("gapMedianMs", gaps[gaps.length / 2]);
+                failover.addProperty("gapP95Ms", gaps[(int) Math.min(gaps.length - 1, Math.ceil(gaps.length * 0.95) - 1)]);
+                failover.addProperty("gapMaxMs", gaps[gaps.length - 1]);
+            }
+            failover.addProperty("recoveredAfterMs", lastRecovery() - killMillis);
+
+            JsonObject throughput = new JsonObject();
+            throughput.addProperty("target", SENSORS * 1000.0 / INTERVAL_MS);
+            throughput.add("before", perBroker(uris, before));
+            throughput.add("after", perBroker(uris, after));
+            throughput.addProperty("skippedWhileDisconnected", skipped.get());
+
+            JsonObject result = new JsonObject();
+            result.addProperty("benchmark", "failover");
+            result.addProperty("time", Instant.now().toString());
+            result.addProperty("javaVersion", System.getProperty("java.version"));
+            result.add("config", config);
+            result.add("failover", failover);
+            result.add("throughput", throughput);
+
+            String json = new GsonBuilder().setPrettyPrinting().create().toJson(result);
+            File output = new File(OUTPUT);
+            if (output.getParentFile() != null) {
+                output.getParentFile().mkdirs();
+            }
+            Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            System.out.println(json);
+            System.out.println("Results written to " + output.getAbsolutePath());
+        } finally {
+            scheduler.shutdownNow();
+            for (MqttAsyncClient client : sensors) {
+                close(client);
+            }
+            for (MqttAsyncClient client : subscribers) {
+                close(client);
+            }
+            for (int b = 0; b < brokers.size(); b++) {
+                if (b != KILL) {
+                    brokers.get(b).close();
+                }
+            }
+        }
+    }
+
+    private static MqttAsyncClient subscribe(String uri, int broker) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(uri, "JavaBenchSubscriber-" + UUID.randomUUID(), new MemoryPersistence());
+        client.setCallback(new MqttCallback() {
+            @Override
+            public void connectionLost(Throwable cause) {
+                // The subscriber of the stopped broker, expected
+            }
+
+            @Override
+            public void messageArrived(String topic, MqttMessage message) {
+                long now = System.currentTimeMillis();
+                int sensor = Integer.parseInt(topic.substring(TOPIC.length()));
+                received.incrementAndGet(broker);
+                lastArrival.set(sensor, now);
+                if (killMillis > 0 && now > killMillis) {
+                    firstAfterKill.compareAndSet(sensor, 0, now);
+                }
+            }
+
+            @Override
+            public void deliveryComplete(IMqttDeliveryToken token) {
+                // Not used for subscriber
+            }
+        });
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        client.connect(options).waitForCompletion();
+        client.subscribe(TOPIC + "#", 0).waitForCompletion();
+        return client;
+    }
+
+    private static MqttAsyncClient connect(String[] order) throws MqttException {
+        MqttAsyncClient client = new MqttAsyncClient(order[0], "JavaBenchSensor-" + UUID.randomUUID(), new MemoryPersistence());
+        MqttConnectOptions options = new MqttConnectOptions();
+        options.setCleanSession(true);
+        options.setAutomaticReconnect(true);
+        options.setConnectionTimeout(10);
+        options.setServerURIs(order);
+        client.connect(options).waitForCompletion();
+        return client;
+    }
+
+    /**
+     * @return messages per broker that arrived during one window
+     */
+    private static long[] measure() throws InterruptedException {
+        long[] start = new long[BROKERS];
+        for (int b = 0; b < BROKERS; b++) {
+            start[b] = received.get(b);
+        }
+        Thread.sleep(WINDOW_MS);
+        long[] counts = new long[BROKERS];
+        for (int b = 0; b < BROKERS; b++) {
+            counts[b] = received.get(b) - start[b];
+        }
+        return counts;
+    }
+
+    private static JsonObject perBroker(String[] uris, long[] counts) {
+        JsonObject rates = new JsonObject();
+        for (int b = 0; b < BROKERS; b++) {
+            rates.addProperty(uris[b], counts[b] * 1000.0 / WINDOW_MS);
+        }
+        rates.addProperty("total", Arrays.stream(counts).sum() * 1000.0 / WINDOW_MS);
+        return rates;
+    }
+
+    private static int countRecovered() {
+        int recovered = 0;
+        for (int s = 0; s < SENSORS; s++) {
+            if (firstAfterKill.get(s) != 0) {
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    private static long lastRecovery() {
+        long last = killMillis;
+        for (int s = 0; s < SENSORS; s++) {
+            last = Math.max(last, firstAfterKill.get(s));
+        }
+        return last;
+    }
+
+    private static void close(MqttAsyncClient client) {
+        if (client == null) {
+            return;
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect().waitForCompletion(5000);
+            }
+            client.close();
+        } catch (MqttException e) {
+            System.out.println("Error closing client: " + e.getMessage());
+        }
+    }
+}
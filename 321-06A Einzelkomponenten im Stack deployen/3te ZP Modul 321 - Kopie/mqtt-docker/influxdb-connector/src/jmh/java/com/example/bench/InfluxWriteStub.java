@@ -0,0 +1,175 @@
+package com.example.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+
+/**
+ * Minimal stand-in for the InfluxDB 1.8 HTTP write endpoint.
+ *
+ * Accepts {@code /write} and the 1.8 compatibility path {@code /api/v2/write},
+ * counts requests and line-protocol lines (also per target database) and answers 204 like InfluxDB does.
+ * An optional per-request delay simulates the round-trip of a real server, and
+ * optional listeners receive every written line or its timestamp. While marked
+ * unavailable it answers 503 without counting anything, like an overloaded server.
+ */
+public class InfluxWriteStub implements AutoCloseable {
+    private final HttpServer server;
+    private final long requestDelayMs;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong lines = new AtomicLong();
+    private final Map<String, AtomicLong> linesByTarget = new ConcurrentHashMap<>();
+    private volatile LongConsumer timestampListener;
+    private volatile Consumer<String> lineListener;
+    private volatile boolean available = true;
+
+    public InfluxWriteStub(int port, long requestDelayMs) throws IOException {
+        this.requestDelayMs = requestDelayMs;
+        this.server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        this.server.createContext("/write", this::handleWrite);
+        this.server.createContext("/api/v2/write", this::handleWrite);
+        this.server.createContext("/ping", exchange -> {
+            exchange.sendResponseHeaders(204, -1);
+            exchange.close();
+        });
+        this.server.setExecutor(Executors.newFixedThreadPool(4));
+        this.server.start();
+    }
+
+    private void handleWrite(HttpExchange exchange) throws IOException {
+        LongConsumer timestamps = timestampListener;
+        Consumer<String> lineConsumer = lineListener;
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = in.readAllBytes();
+        }
+        if (!available) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        long count = 0;
+        int lineStart = 0;
+        for (int i = 0; i <= body.length; i++) {
+            // The last line of a body usually has no trailing newline
+            if (i < body.length && body[i] != '\n') {
+                continue;
+            }
+            if (i > lineStart) {
+                count++;
+                if (timestamps != null) {
+                    timestamps.accept(lastNumber(body, lineStart, i));
+                }
+                if (lineConsumer != null) {
+                    lineConsumer.accept(new String(body, lineStart, i - lineStart, StandardCharsets.UTF_8));
+                }
+            }
+            lineStart = i + 1;
+        }
+        if (requestDelayMs > 0) {
+            try {
+                Thread.sleep(requestDelayMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        requests.incrementAndGet();
+        lines.addAndGet(count);
+        linesByTarget.computeIfAbsent(target(exchange.getRequestURI().getRawQuery()), key -> new AtomicLong())
+                .addAndGet(count);
+        exchange.sendResponseHeaders(204, -1);
+        exchange.close();
+    }
+
+    /**
+     * Database (v1 {@code db}) or bucket (v2 {@code bucket}) a write request goes to.
+     */
+    private static String target(String query) {
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                if (parameter.startsWith("db=") || parameter.startsWith("bucket=")) {
+                    return URLDecoder.decode(parameter.substring(parameter.indexOf('=') + 1), StandardCharsets.UTF_8);
+                }
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Numeric value of the last space-separated token of a line, i.e. its timestamp.
+     */
+    private static long lastNumber(byte[] body, int start, int end) {
+        int i = end;
+        while (i > start && body[i - 1] != ' ') {
+            i--;
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            if (body[i] >= '0' && body[i] <= '9') {
+                value = value * 10 + (body[i] - '0');
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Receives every written line.
+     */
+    public void setLineListener(Consumer<String> listener) {
+        this.lineListener = listener;
+    }
+
+    /**
+     * Receives the line-protocol timestamp of every written line (as sent, usually milliseconds).
+     */
+    public void setTimestampListener(LongConsumer listener) {
+        this.timestampListener = listener;
+    }
+
+    public void setAvailable(boolean available) {
+        this.available = available;
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getUrl() {
+        return "http://127.0.0.1:" + getPort();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getLines() {
+        return lines.get();
+    }
+
+    /**
+     * Written lines per database/bucket.
+     */
+    public Map<String, Long> getLinesByTarget() {
+        Map<String, Long> result = new TreeMap<>();
+        linesByTarget.forEach((target, count) -> result.put(target, count.get()));
+        return result;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        ((java.util.concurrent.ExecutorService) server.getExecutor()).shutdownNow();
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.bench;
+
+import com.example.LastValueCache;
+import com.example.QueryApi;
+import com.example.SensorReading;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Cost of the {@link LastValueCache} on the processing path, its memory per sensor and the
+ * latency of queries, directly and through the {@link QueryApi}. Every simulated sensor
+ * reports once per {@code intervalMs} of event time, replayed as fast as possible.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.LastValueCacheBenchmark [sensors] [historySize] [intervalMs]}.
+ */
+public class LastValueCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int historySize = args.length > 1 ? Integer.parseInt(args[1]) : 120;
+        long intervalMs = args.length > 2 ? Long.parseLong(args[2]) : 5000;
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        String[] sensorIds = new String[sensors];
+        for (int i = 0; i < sensors; i++) {
+            sensorIds[i] = String.format("temp%05d", i);
+        }
+        System.gc();
+        long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+        LastValueCache cache = new LastValueCache(sensors, historySize, Long.MAX_VALUE);
+        SensorReading reading = new SensorReading();
+        // Twice the history, so every ring is full and has wrapped
+        int rounds = historySize * 2;
+        long startMillis = System.currentTimeMillis() - rounds * intervalMs;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            long time = startMillis + round * intervalMs;
+            for (int i = 0; i < sensors; i++) {
+                reading.reset(time);
+                reading.setSensor("temperature");
+                reading.setSensorId(sensorIds[i]);
+                reading.setValue(20.0 + ((round + i) % 100) / 10.0);
+                reading.setUnit("°C");
+                cache.record("temperature", reading);
+            }
+        }
+        long readings = (long) rounds * sensors;
+        double recordNs = (System.nanoTime() - start) / (double) readings;
+
+        System.gc();
+        long heapAfter = memory.getHeapMemoryUsage().getUsed();
+        System.out.printf("%d sensors, history %d: record %.0f ns/reading, %.0f bytes/sensor on the heap%n",
+                sensors, historySize, recordNs, (double) (heapAfter - heapBefore) / sensors);
+
+        // Direct calls, after a warm-up round each
+        long fromMillis = System.currentTimeMillis() - 60_000;
+        for (int pass = 0; pass < 2; pass++) {
+            long t0 = System.nanoTime();
+            double sink = 0;
+            for (int i = 0; i < sensors; i++) {
+                sink += cache.latest(sensorIds[i]).value;
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < sensors; i++) {
+                sink += cache.range(sensorIds[i], fromMillis).max;
+            }
+            long t2 = System.nanoTime();
+            int all = cache.latestAll().size();
+            long t3 = System.nanoTime();
+            if (pass == 1) {
+                System.out.printf("Direct: latest %.0f ns, range(60s) %.0f ns, latestAll %.1f ms for %d sensors (%s)%n",
+                        (t1 - t0) / (double) sensors, (t2 - t1) / (double) sensors, (t3 - t2) / 1e6, all,
+                        sink > 0 ? "ok" : "?");
+            }
+        }
+
+        try (QueryApi api = new QueryApi(cache, 0, 60_000)) {
+            String base = "http://localhost:" + api.getPort() + "/sensors/";
+            int requests = Math.min(sensors, 2000);
+            for (int pass = 0; pass < 2; pass++) {
+                long t0 = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    get(base + "latest?sensor_id=" + sensorIds[i]);
+                }
+                long t1 = System.nanoTime();
+                for (int i = 0; i < requests; i++) {
+                    get(base + "range?seconds=60&sensor_id=" + sensorIds[i]);
+                }
+                long t2 = System.nanoTime();
+                int bytes = get(base + "latest").length;
+                long t3 = System.nanoTime();
+                if (pass == 1) {
+                    System.out.printf("HTTP:   latest %.0f us, range(60s) %.0f us, all sensors %.1f ms (%d KB)%n",
+                            (t1 - t0) / 1e3 / requests, (t2 - t1) / 1e3 / requests, (t3 - t2) / 1e6, bytes / 1024);
+                }
+            }
+        }
+    }
+
+    private static byte[] get(String url) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            in.transferTo(out);
+            return out.toByteArray();
+        }
+    }
+}
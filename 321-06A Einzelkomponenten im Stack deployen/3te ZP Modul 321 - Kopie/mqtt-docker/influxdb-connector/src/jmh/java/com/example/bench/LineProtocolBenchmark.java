@@ -0,0 +1,94 @@
+package com.example.bench;
+
+import com.example.LineProtocolEncoder;
+import com.example.SensorReading;
+import com.example.TopicRouter;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point builder plus toLineProtocol() vs. {@link LineProtocolEncoder} for one reading.
+ * {@code sensors} is the number of distinct sensor IDs cycled through, which decides
+ * how often the encoder's prefix cache is hit. Run with -prof gc to compare allocation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LineProtocolBenchmark {
+
+    @Param({"1", "10000"})
+    public int sensors;
+
+    private String[] sensorIds;
+    private double[] values;
+    private int next;
+    private final SensorReading reading = new SensorReading();
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+    private final TopicRouter.Route route = new TopicRouter.Route("temperature");
+
+    @Setup
+    public void setUp() {
+        sensorIds = new String[sensors];
+        for (int i = 0; i < sensors; i++) {
+            sensorIds[i] = String.format("temp%05d", i);
+        }
+        values = new double[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round((15 + i % 150 / 10.0) * 100) / 100.0;
+        }
+        reading.setSensor("temperature");
+        reading.setUnit("°C");
+
+        // Both paths must produce the same line
+        nextReading();
+        String expected = point();
+        if (!expected.equals(encoder.encode(route, reading))) {
+            throw new IllegalStateException("Encoder output differs from Point: " + expected);
+        }
+    }
+
+    private void nextReading() {
+        int n = next++;
+        reading.setSensorId(sensorIds[n % sensors]);
+        reading.setValue(values[n & (values.length - 1)]);
+        reading.setTimestampMillis(1792202015518L + n);
+    }
+
+    @Benchmark
+    public String pointBuilder() {
+        nextReading();
+        return point();
+    }
+
+    @Benchmark
+    public String directEncoder() {
+        nextReading();
+        return encoder.encode(route, reading);
+    }
+
+    private String point() {
+        return Point.measurement("temperature")
+                .addTag("sensor", reading.getSensor())
+                .addTag("sensor_id", reading.getSensorId())
+                .addField("value", reading.getValue())
+                .addField("unit", reading.getUnit())
+                .time(reading.getTimestampMillis(), WritePrecision.MS)
+                .toLineProtocol();
+    }
+}
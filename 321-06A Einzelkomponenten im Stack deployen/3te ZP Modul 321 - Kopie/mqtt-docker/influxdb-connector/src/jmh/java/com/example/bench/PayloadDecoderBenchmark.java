@@ -0,0 +1,80 @@
+package com.example.bench;
+
+import com.example.InfluxDBConnector;
+import com.example.SensorPayloadDecoder;
+import com.example.SensorReading;
+import com.example.TopicRouter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streaming decoder vs. the Gson path on the payloads our clients publish.
+ * Run with -prof gc to compare allocation per message.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadDecoderBenchmark {
+
+    @Param({"temperature", "humidity", "mysensor"})
+    public String shape;
+
+    private byte[] payload;
+    private String topic;
+    private final SensorPayloadDecoder decoder = new SensorPayloadDecoder();
+    private final SensorReading reading = new SensorReading();
+    // The default routes plus MySensor's sensor/<n> topics
+    private final TopicRouter router = new TopicRouter(TopicRouter.DEFAULT_ROUTES + ";sensor/# measurement={1}", "mqtt");
+
+    @Setup
+    public void setUp() {
+        String json;
+        switch (shape) {
+            case "temperature":
+                // TemperatureSensor: JsonObject via gson.toJson
+                json = "{\"sensor\":\"temperature\",\"sensor_id\":\"temp001\",\"value\":21.3,\"unit\":\"°C\",\"timestamp\":1.792202015518E9}";
+                topic = "sensors/temperature";
+                break;
+            case "humidity":
+                json = "{\"sensor\":\"humidity\",\"sensor_id\":\"hum001\",\"value\":54.7,\"unit\":\"%\",\"timestamp\":1.792202015518E9}";
+                topic = "sensors/humidity";
+                break;
+            default:
+                // MySensor: String.format("{\"value\":%.2f,\"sensor\":%d,\"timestamp\":%d}")
+                json = "{\"value\":12.34,\"sensor\":1,\"timestamp\":1792202015518}";
+                topic = "sensor/1";
+                break;
+        }
+        payload = json.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public SensorReading streaming() {
+        decoder.decode(payload, reading);
+        reading.setSensor(router.route(topic).measurement);
+        return reading;
+    }
+
+    @Benchmark
+    public SensorReading gson() {
+        InfluxDBConnector.decodeWithGson(new String(payload), reading);
+        String[] topicParts = topic.split("/");
+        reading.setSensor(topicParts.length > 1 ? topicParts[1] : "unknown");
+        return reading;
+    }
+}
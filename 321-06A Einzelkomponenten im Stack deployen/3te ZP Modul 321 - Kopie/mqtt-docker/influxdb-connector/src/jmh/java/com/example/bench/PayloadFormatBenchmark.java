@@ -0,0 +1,110 @@
+package com.example.bench;
+
+import com.example.BinaryPayloadEncoder;
+import com.example.SensorPayloadDecoder;
+import com.example.SensorReading;
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON vs. the binary payload format: encoding as the clients do it and decoding in the
+ * connector. The payload sizes of both formats are printed once per trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PayloadFormatBenchmark {
+
+    @Param({"temperature", "mysensor"})
+    public String shape;
+
+    private final Gson gson = new Gson();
+    private final BinaryPayloadEncoder binaryEncoder = new BinaryPayloadEncoder();
+    private final SensorPayloadDecoder decoder = new SensorPayloadDecoder();
+    private final SensorReading reading = new SensorReading();
+    private double[] values;
+    private int next;
+    private byte[] json;
+    private byte[] binary;
+
+    @Setup
+    public void setUp() {
+        values = new double[1024];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round((15 + i % 150 / 10.0) * 100) / 100.0;
+        }
+        json = encodeJson();
+        next = 0;
+        binary = encodeBinary();
+
+        // Both formats must decode to the same reading; the timestamp units differ between the JSON shapes
+        decoder.decode(json, reading);
+        String fromJson = reading.getSensor() + "/" + reading.getSensorId() + "/" + reading.getValue() + "/" + reading.getUnit();
+        decoder.decode(binary, reading);
+        String fromBinary = reading.getSensor() + "/" + reading.getSensorId() + "/" + reading.getValue() + "/" + reading.getUnit();
+        if (!fromJson.equals(fromBinary)) {
+            throw new IllegalStateException("Binary payload decodes to " + fromBinary + ", JSON to " + fromJson);
+        }
+        System.out.printf("%n%s: JSON %d bytes, binary %d bytes per message%n", shape, json.length, binary.length);
+    }
+
+    private double nextValue() {
+        next = (next + 1) & (values.length - 1);
+        return values[next];
+    }
+
+    @Benchmark
+    public byte[] encodeJson() {
+        // Timestamps as the clients send them: seconds for the sensors, milliseconds for MySensor
+        long now = 1792202015518L + next;
+        if (shape.equals("mysensor")) {
+            return String.format("{\"value\":%.2f,\"sensor\":%d,\"timestamp\":%d}", nextValue(), 1, now)
+                    .getBytes(StandardCharsets.UTF_8);
+        }
+        JsonObject message = new JsonObject();
+        message.addProperty("sensor", "temperature");
+        message.addProperty("sensor_id", "temp001");
+        message.addProperty("value", nextValue());
+        message.addProperty("unit", "°C");
+        message.addProperty("timestamp", now / 1000.0);
+        return gson.toJson(message).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        long now = 1792202015518L + next;
+        if (shape.equals("mysensor")) {
+            return binaryEncoder.encode("1", null, nextValue(), null, now);
+        }
+        return binaryEncoder.encode("temperature", "temp001", nextValue(), "°C", now);
+    }
+
+    @Benchmark
+    public SensorReading decodeJson() {
+        decoder.decode(json, reading);
+        return reading;
+    }
+
+    @Benchmark
+    public SensorReading decodeBinary() {
+        decoder.decode(binary, reading);
+        return reading;
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.bench;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * End-to-end benchmark of the MQTT -> InfluxDBConnector -> InfluxDB pipeline.
+ *
+ * Starts a local broker (embedded HiveMQ CE, or an external one such as the
+ * compose Mosquitto), a local {@link InfluxWriteStub} and the real connector as
+ * a child process. Publishers then run at each configured rate for a fixed time;
+ * for every step the harness records the latency from the embedded
+ * {@code timestamp} to the write request, the achieved write throughput and the
+ * number of readings that never arrived. Results are written as JSON.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.PipelineBenchmark}.
+ *
+ * System properties:
+ * <ul>
+ *   <li>{@code bench.broker} - {@code embedded} (default) or a broker URI like {@code tcp://localhost:1883}</li>
+ *   <li>{@code bench.rates} - comma-separated publish rates in msgs/s (default 500,1000,2000,5000,10000)</li>
+ *   <li>{@code bench.stepSeconds} - duration of each rate step (default 10)</li>
+ *   <li>{@code bench.warmupSeconds} - unrecorded warmup at the first rate (default 10)</li>
+ *   <li>{@code bench.sensors} - number of distinct sensor IDs (default 1000)</li>
+ *   <li>{@code bench.connections} - publisher connections (default 4)</li>
+ *   <li>{@code bench.qos} - publish QoS (default 1)</li>
+ *   <li>{@code bench.p99LimitMs} - p99 limit for a step to count as sustainable (default 2000)</li>
+ *   <li>{@code bench.output} - result file (default target/pipeline-benchmark.json)</li>
+ * </ul>
+ * Connector settings such as WRITE_FLUSH_INTERVAL_MS are taken from the environment.
+ */
+public class PipelineBenchmark {
+    private static final String BROKER = System.getProperty("bench.broker", "embedded");
+    private static final String RATES = System.getProperty("bench.rates", "500,1000,2000,5000,10000");
+    private static final int STEP_SECONDS = Integer.getInteger("bench.stepSeconds", 10);
+    private static final int WARMUP_SECONDS = Integer.getInteger("bench.warmupSeconds", 10);
+    private static final int SENSORS = Integer.getInteger("bench.sensors", 1000);
+    private static final int CONNECTIONS = Integer.getInteger("bench.connections", 4);
+    private static final int QOS = Integer.getInteger("bench.qos", 1);
+    private static final long P99_LIMIT_MS = Long.getLong("bench.p99LimitMs", 2000);
+    private static final String OUTPUT = System.getProperty("bench.output", "target/pipeline-benchmark.json");
+    private static final long DRAIN_TIMEOUT_MS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        BenchSupport.Broker embeddedBroker = null;
+        String brokerUri = BROKER;
+        if ("embedded".equals(BROKER)) {
+            embeddedBroker = BenchSupport.startEmbeddedBroker();
+            brokerUri = embeddedBroker.getUri();
+        }
+        URI broker = URI.create(brokerUri);
+
+        LatencyHistogram histogram = new LatencyHistogram(60000);
+        Process connector = null;
+        MqttAsyncClient[] publishers = new MqttAsyncClient[CONNECTIONS];
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, 0)) {
+            stub.setTimestampListener(timestamp -> histogram.record(System.currentTimeMillis() - timestamp));
+            connector = BenchSupport.startConnector(broker, stub.getPort(), Collections.emptyMap(), "pipeline-connector");
+
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            options.setMaxInflight(65535);
+            for (int c = 0; c < CONNECTIONS; c++) {
+                publishers[c] = new MqttAsyncClient(brokerUri, "JavaBenchPublisher-" + UUID.randomUUID(), new MemoryPersistence());
+                publishers[c].connect(options).waitForCompletion();
+            }
+
+            // Warm up the JIT, connections and the connector before recording anything
+            String[] rates = RATES.split(",");
+            long warmupSent = publishAtRate(publishers, Integer.parseInt(rates[0].trim()), WARMUP_SECONDS)[0];
+            long drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+            while (stub.getLines() < warmupSent && System.currentTimeMillis() < drainDeadline) {
+                Thread.sleep(100);
+            }
+
+            JsonArray steps = new JsonArray();
+            double maxSustainable = 0;
+            for (String rateText : rates) {
+                int rate = Integer.parseInt(rateText.trim());
+                histogram.reset();
+                long writtenBefore = stub.getLines();
+
+                long[] sentAndFailed = publishAtRate(publishers, rate, STEP_SECONDS);
+                long sent = sentAndFailed[0];
+
+                // Wait until everything sent has been written or nothing arrives anymore
+                drainDeadline = System.currentTimeMillis() + DRAIN_TIMEOUT_MS;
+                while (stub.getLines() - writtenBefore < sent && System.currentTimeMillis() < drainDeadline) {
+                    Thread.sleep(100);
+                }
+                long written = stub.getLines() - writtenBefore;
+                long dropped = Math.max(0, sent + sentAndFailed[1] - written);
+                double writeThroughput = written / (double) STEP_SECONDS;
+
+                JsonObject step = new JsonObject();
+                step.addProperty("targetRate", rate);
+                step.addProperty("sent", sent);
+                step.addProperty("publishFailures", sentAndFailed[1]);
+                step.addProperty("achievedPublishRate", sent / (double) STEP_SECONDS);
+                step.addProperty("written", written);
+                step.addProperty("writeThroughput", writeThroughput);
+                step.addProperty("dropped", dropped);
+                step.addProperty("latencyP50Ms", histogram.percentile(50));
+                step.addProperty("latencyP99Ms", histogram.percentile(99));
+                step.addProperty("latencyP999Ms", histogram.percentile(99.9));
+                step.addProperty("latencyMaxMs", histogram.max());
+                steps.add(step);
+                System.out.println("Step: " + step);
+
+                boolean sustainable = dropped <= (sent + sentAndFailed[1]) / 1000
+                        && histogram.percentile(99) <= P99_LIMIT_MS;
+                if (sustainable) {
+                    maxSustainable = Math.max(maxSustainable, writeThroughput);
+                }
+            }
+
+            JsonObject config = new JsonObject();
+            config.addProperty("broker", BROKER);
+            config.addProperty("rates", RATES);
+            config.addProperty("stepSeconds", STEP_SECONDS);
+            config.addProperty("warmupSeconds", WARMUP_SECONDS);
+            config.addProperty("sensors", SENSORS);
+            config.addProperty("connections", CONNECTIONS);
+            config.addProperty("qos", QOS);
+            config.addProperty("p99LimitMs", P99_LIMIT_MS);
+            for (Map.Entry<String, String> env : System.getenv().entrySet()) {
+                if (env.getKey().startsWith("WRITE_")) {
+                    config.addProperty(env.getKey(), env.getValue());
+                }
+            }
+
+            JsonObject result = new JsonObject();
+            result.addProperty("benchmark", "pipeline");
+            result.addProperty("time", Instant.now().toString());
+            result.addProperty("javaVersion", System.getProperty("java.version"));
+            result.add("config", config);
+            result.add("steps", steps);
+            result.addProperty("maxSustainableThroughput", maxSustainable);
+
+            String json = new GsonBuilder().setPrettyPrinting().create().toJson(result);
+            File output = new File(OUTPUT);
+            if (output.getParentFile() != null) {
+                output.getParentFile().mkdirs();
+            }
+            Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            System.out.println(json);
+            System.out.println("Results written to " + output.getAbsolutePath());
+        } finally {
+            for (MqttAsyncClient publisher : publishers) {
+                if (publisher != null) {
+                    try {
+                        publisher.disconnect().waitForCompletion(5000);
+                        publisher.close();
+                    } catch (MqttException e) {
+                        System.out.println("Error disconnecting publisher: " + e.getMessage());
+                    }
+                }
+            }
+            BenchSupport.stopConnector(connector);
+            if (embeddedBroker != null) {
+                embeddedBroker.close();
+            }
+        }
+    }
+
+    /**
+     * Publishes at a fixed rate, paced against the clock in 1 ms steps.
+     * @return {sent, failed}
+     */
+    private static long[] publishAtRate(MqttAsyncClient[] publishers, int rate, int seconds) throws InterruptedException {
+        long sent = 0;
+        long failed = 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long now;
+        while ((now = System.nanoTime()) < end) {
+            long due = (now - start) * rate / 1_000_000_000L;
+            while (sent + failed < due) {
+                long n = sent + failed;
+                String sensorId = String.format("temp%05d", n % SENSORS);
+                String payload = "{\"sensor\":\"temperature\",\"sensor_id\":\"" + sensorId
+                        + "\",\"value\":" + (15.0 + (n % 150) / 10.0)
+                        + ",\"unit\":\"°C\",\"timestamp\":" + (System.currentTimeMillis() / 1000.0) + "}";
+                try {
+                    publishers[(int) (n % publishers.length)].publish("sensors/temperature",
+                            payload.getBytes(StandardCharsets.UTF_8), QOS, false);
+                    sent++;
+                } catch (MqttException e) {
+                    failed++;
+                }
+            }
+            Thread.sleep(1);
+        }
+        return new long[] {sent, failed};
+    }
+
+    /**
+     * Millisecond-resolution latency histogram with one bucket per millisecond.
+     */
+    static class LatencyHistogram {
+        private final AtomicLongArray counts;
+
+        LatencyHistogram(int maxMillis) {
+            counts = new AtomicLongArray(maxMillis + 1);
+        }
+
+        void record(long millis) {
+            int bucket = (int) Math.max(0, Math.min(millis, counts.length() - 1));
+            counts.incrementAndGet(bucket);
+        }
+
+        void reset() {
+            for (int i = 0; i < counts.length(); i++) {
+                counts.set(i, 0);
+            }
+        }
+
+        long percentile(double percentile) {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                total += counts.get(i);
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return i;
+                }
+            }
+            return counts.length() - 1;
+        }
+
+        long max() {
+            for (int i = counts.length() - 1; i >= 0; i--) {
+                if (counts.get(i) > 0) {
+                    return i;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.bench;
+
+import com.example.BatchingWriter;
+import com.example.RollupStage;
+import com.example.SensorReading;
+import com.example.TopicRouter;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+
+import java.util.Collections;
+
+/**
+ * Measures how much {@link RollupStage} reduces the points written to InfluxDB and what it
+ * costs per reading. Simulated sensors report at a fixed interval over a span of event time
+ * that is replayed as fast as possible; only the aggregated points go to a local
+ * {@link InfluxWriteStub}.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.RollupBenchmark [sensors] [intervalMs] [minutes] [windows]}.
+ */
+public class RollupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        long intervalMs = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+        int minutes = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        String windows = args.length > 3 ? args[3] : "10s,1m";
+
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, 0)) {
+            InfluxDBClient client = InfluxDBClientFactory.createV1(stub.getUrl(), "admin",
+                    "adminpassword".toCharArray(), "mqtt", null);
+            BatchingWriter writer = new BatchingWriter(client.getWriteApiBlocking(), 50000, 5000, 100, 5000);
+            RollupStage rollup = new RollupStage(RollupStage.Window.parseList(windows), 5000, 60_000, writer);
+            SensorReading reading = new SensorReading();
+            TopicRouter.Route route = new TopicRouter.Route("temperature");
+            String[] sensorIds = new String[sensors];
+            for (int i = 0; i < sensors; i++) {
+                sensorIds[i] = String.format("temp%05d", i);
+            }
+
+            long readings = 0;
+            long startMillis = System.currentTimeMillis() - minutes * 60_000L;
+            long start = System.nanoTime();
+            for (long time = startMillis; time < startMillis + minutes * 60_000L; time += intervalMs) {
+                for (int i = 0; i < sensors; i++) {
+                    reading.reset(time);
+                    reading.setSensor("temperature");
+                    reading.setSensorId(sensorIds[i]);
+                    reading.setValue(20.0 + ((time / intervalMs + i) % 100) / 10.0);
+                    reading.setUnit("°C");
+                    rollup.add(route, reading);
+                    readings++;
+                }
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            rollup.flush();
+            writer.close();
+            client.close();
+
+            System.out.printf("%d raw readings -> %d aggregated points (%s), %.0fx fewer writes%n",
+                    readings, stub.getLines(), windows, (double) readings / stub.getLines());
+            System.out.printf("Rollup cost: %.0f ns/reading (%.0f readings/s, including line-protocol encoding)%n",
+                    seconds * 1e9 / readings, readings / seconds);
+            System.out.println("Rollup stats: " + RollupStage.stats(Collections.singletonList(rollup)));
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.bench;
+
+import com.example.TopicRouter;
+
+/**
+ * Cost of resolving a topic with {@link TopicRouter} as the routing table grows, compared
+ * with testing the rules one after the other on the split topic. The table has
+ * {@code rules} site rules plus the default {@code sensors/#} rule at the end, which is the
+ * worst case for the linear scan; half the topics hit it.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.RoutingBenchmark [topics] [lookups]}.
+ */
+public class RoutingBenchmark {
+
+    public static void main(String[] args) {
+        int topicCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+
+        System.out.printf("%6s %12s %12s %12s%n", "rules", "linear ns", "trie ns", "cached ns");
+        for (int rules : new int[] {1, 10, 100, 1000}) {
+            StringBuilder spec = new StringBuilder();
+            String[][] filters = new String[rules + 1][];
+            for (int i = 0; i < rules; i++) {
+                String filter = "site" + i + "/+/+/#";
+                spec.append(filter).append(" measurement={3} tag.site={0} tag.line={1};");
+                filters[i] = filter.split("/");
+            }
+            spec.append(TopicRouter.DEFAULT_ROUTES);
+            filters[rules] = "sensors/#".split("/");
+            TopicRouter router = new TopicRouter(spec.toString(), "mqtt");
+
+            String[] topics = new String[topicCount];
+            for (int i = 0; i < topicCount; i++) {
+                topics[i] = i % 2 == 0 ? "sensors/sensor" + i
+                        : "site" + (i % rules) + "/line" + (i % 7) + "/cell" + i + "/temperature";
+            }
+
+            long sink = 0;
+            double[] results = new double[3];
+            // Warm-up round, then the measured one
+            for (int pass = 0; pass < 2; pass++) {
+                long t0 = System.nanoTime();
+                for (int n = 0; n < lookups; n++) {
+                    sink += linear(filters, topics[n % topicCount]);
+                }
+                long t1 = System.nanoTime();
+                for (int n = 0; n < lookups; n++) {
+                    sink += router.resolve(topics[n % topicCount]).measurement.length();
+                }
+                long t2 = System.nanoTime();
+                for (int n = 0; n < lookups; n++) {
+                    sink += router.route(topics[n % topicCount]).measurement.length();
+                }
+                long t3 = System.nanoTime();
+                results[0] = (t1 - t0) / (double) lookups;
+                results[1] = (t2 - t1) / (double) lookups;
+                results[2] = (t3 - t2) / (double) lookups;
+            }
+            System.out.printf("%6d %12.0f %12.0f %12.0f%s%n", rules + 1, results[0], results[1], results[2],
+                    sink == 0 ? " ?" : "");
+        }
+    }
+
+    /**
+     * Index of the first filter matching the topic, testing them in order.
+     */
+    private static int linear(String[][] filters, String topic) {
+        String[] levels = topic.split("/");
+        for (int i = 0; i < filters.length; i++) {
+            if (matches(filters[i], levels)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean matches(String[] filter, String[] levels) {
+        for (int i = 0; i < filter.length; i++) {
+            if (filter[i].equals("#")) {
+                return true;
+            }
+            if (i >= levels.length || !filter[i].equals("+") && !filter[i].equals(levels[i])) {
+                return false;
+            }
+        }
+        return filter.length == levels.length;
+    }
+}
@@ -0,0 +1,226 @@
+package com.example.bench;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.eclipse.paho.client.mqttv3.MqttAsyncClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs several InfluxDBConnector replicas against one broker and checks that they
+ * split the load: every published reading must be written exactly once, and the
+ * time to write a fixed number of readings should drop as replicas are added.
+ *
+ * Each reading carries its sequence number as value, so the harness can count
+ * duplicates and gaps from the written lines. Every replica writes to its own
+ * database name, which shows how the load was spread: {@code largestShare} is the part of
+ * the readings the busiest replica wrote, 1/replicas for an even split, and {@code speedup}
+ * the throughput relative to the first run.
+ *
+ * How a {@code $share} group is split depends on the broker. The embedded HiveMQ CE gives
+ * the messages to whichever member has room, so with replicas that keep up the split is
+ * uneven; Mosquitto 2.x, which docker-compose deploys, hands them to the members in turn.
+ * Run with {@code -Dbench.broker=tcp://localhost:1883} against {@code docker compose up -d broker}
+ * to measure the deployed broker. Throughput can only scale on a host with more cores than
+ * one replica uses.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.ScaleOutBenchmark}.
+ *
+ * System properties:
+ * <ul>
+ *   <li>{@code bench.broker} - {@code embedded} (default) or a broker URI like {@code tcp://localhost:1883}</li>
+ *   <li>{@code bench.mode} - {@code shared} ($share subscriptions, default) or {@code hash} (PARTITION_INDEX/PARTITION_COUNT)</li>
+ *   <li>{@code bench.replicas} - comma-separated replica counts (default 1,2,4)</li>
+ *   <li>{@code bench.messages} - readings per run (default 50000)</li>
+ *   <li>{@code bench.sensors} - number of distinct sensor IDs (default 1000)</li>
+ *   <li>{@code bench.output} - result file (default target/scaleout-benchmark.json)</li>
+ * </ul>
+ */
+public class ScaleOutBenchmark {
+    private static final String BROKER = System.getProperty("bench.broker", "embedded");
+    private static final String MODE = System.getProperty("bench.mode", "shared");
+    private static final String REPLICAS = System.getProperty("bench.replicas", "1,2,4");
+    private static final int MESSAGES = Integer.getInteger("bench.messages", 50000);
+    private static final int SENSORS = Integer.getInteger("bench.sensors", 1000);
+    private static final String OUTPUT = System.getProperty("bench.output", "target/scaleout-benchmark.json");
+    private static final long IDLE_TIMEOUT_MS = 15000;
+
+    public static void main(String[] args) throws Exception {
+        JsonArray runs = new JsonArray();
+        boolean exactlyOnce = true;
+        double baseThroughput = 0;
+        for (String replicaText : REPLICAS.split(",")) {
+            JsonObject run = runWithReplicas(Integer.parseInt(replicaText.trim()));
+            exactlyOnce &= run.get("duplicates").getAsLong() == 0 && run.get("missing").getAsLong() == 0;
+            double throughput = run.get("throughput").getAsDouble();
+            if (baseThroughput == 0) {
+                baseThroughput = throughput;
+            }
+            run.addProperty("speedup", throughput / baseThroughput);
+            runs.add(run);
+            System.out.println("Run: " + run);
+        }
+
+        JsonObject config = new JsonObject();
+        config.addProperty("broker", BROKER);
+        config.addProperty("mode", MODE);
+        config.addProperty("messages", MESSAGES);
+        config.addProperty("sensors", SENSORS);
+
+        JsonObject result = new JsonObject();
+        result.addProperty("benchmark", "scale-out");
+        result.addProperty("time", Instant.now().toString());
+        result.addProperty("javaVersion", System.getProperty("java.version"));
+        result.add("config", config);
+        result.add("runs", runs);
+        result.addProperty("exactlyOnce", exactlyOnce);
+
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(result);
+        File output = new File(OUTPUT);
+        if (output.getParentFile() != null) {
+            output.getParentFile().mkdirs();
+        }
+        Files.write(output.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        System.out.println(json);
+        System.out.println("Results written to " + output.getAbsolutePath());
+        if (!exactlyOnce) {
+            System.exit(1);
+        }
+    }
+
+    private static JsonObject runWithReplicas(int replicas) throws Exception {
+        // A fresh broker per run, so no subscription of an earlier run is left over
+        BenchSupport.Broker embeddedBroker = "embedded".equals(BROKER) ? BenchSupport.startEmbeddedBroker() : null;
+        URI broker = URI.create(embeddedBroker != null ? embeddedBroker.getUri() : BROKER);
+        String group = "bench-" + UUID.randomUUID();
+        List<Process> connectors = new ArrayList<>();
+        MqttAsyncClient publisher = null;
+        AtomicIntegerArray writes = new AtomicIntegerArray(MESSAGES);
+        AtomicLong lastWriteMillis = new AtomicLong();
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, 0)) {
+            stub.setLineListener(line -> {
+                int sequence = (int) valueOf(line);
+                if (sequence >= 0 && sequence < MESSAGES) {
+                    writes.incrementAndGet(sequence);
+                }
+                lastWriteMillis.set(System.currentTimeMillis());
+            });
+            for (int i = 0; i < replicas; i++) {
+                Map<String, String> env = new HashMap<>();
+                env.put("INFLUXDB_DATABASE", "replica" + i);
+                if ("hash".equals(MODE)) {
+                    env.put("PARTITION_COUNT", String.valueOf(replicas));
+                    env.put("PARTITION_INDEX", String.valueOf(i));
+                } else {
+                    env.put("SHARED_SUBSCRIPTION_GROUP", group);
+                }
+                connectors.add(BenchSupport.startConnector(broker, stub.getPort(), env, "scaleout-connector-" + i));
+            }
+
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            options.setMaxInflight(65535);
+            publisher = new MqttAsyncClient(broker.toString(), "JavaBenchPublisher-" + UUID.randomUUID(), new MemoryPersistence());
+            publisher.connect(options).waitForCompletion();
+
+            long start = System.currentTimeMillis();
+            for (int n = 0; n < MESSAGES; n++) {
+                String payload = "{\"sensor\":\"temperature\",\"sensor_id\":\"" + String.format("temp%05d", n % SENSORS)
+                        + "\",\"value\":" + n + ",\"unit\":\"°C\",\"timestamp\":" + (System.currentTimeMillis() / 1000.0) + "}";
+                while (true) {
+                    try {
+                        publisher.publish("sensors/temperature", payload.getBytes(StandardCharsets.UTF_8), 1, false);
+                        break;
+                    } catch (MqttException e) {
+                        // Inflight window full, give the broker a moment
+                        Thread.sleep(1);
+                    }
+                }
+            }
+
+            // Wait until everything is written or nothing has arrived for a while
+            lastWriteMillis.set(System.currentTimeMillis());
+            while (stub.getLines() < MESSAGES && System.currentTimeMillis() - lastWriteMillis.get() < IDLE_TIMEOUT_MS) {
+                Thread.sleep(100);
+            }
+            // Give late duplicates a chance to show up
+            Thread.sleep(1000);
+            double seconds = (lastWriteMillis.get() - start) / 1000.0;
+
+            long duplicates = 0;
+            long missing = 0;
+            for (int i = 0; i < MESSAGES; i++) {
+                int count = writes.get(i);
+                if (count == 0) {
+                    missing++;
+                } else if (count > 1) {
+                    duplicates += count - 1;
+                }
+            }
+
+            JsonObject run = new JsonObject();
+            run.addProperty("replicas", replicas);
+            run.addProperty("published", MESSAGES);
+            run.addProperty("written", stub.getLines());
+            run.addProperty("duplicates", duplicates);
+            run.addProperty("missing", missing);
+            run.addProperty("seconds", seconds);
+            run.addProperty("throughput", MESSAGES / seconds);
+            JsonObject perReplica = new JsonObject();
+            long largest = 0;
+            for (Map.Entry<String, Long> target : stub.getLinesByTarget().entrySet()) {
+                perReplica.addProperty(target.getKey(), target.getValue());
+                largest = Math.max(largest, target.getValue());
+            }
+            run.add("writtenPerReplica", perReplica);
+            run.addProperty("largestShare", stub.getLines() == 0 ? 0.0 : (double) largest / stub.getLines());
+            return run;
+        } finally {
+            if (publisher != null) {
+                try {
+                    publisher.disconnect().waitForCompletion(5000);
+                    publisher.close();
+                } catch (MqttException e) {
+                    System.out.println("Error disconnecting publisher: " + e.getMessage());
+                }
+            }
+            for (Process connector : connectors) {
+                BenchSupport.stopConnector(connector);
+            }
+            if (embeddedBroker != null) {
+                embeddedBroker.close();
+            }
+        }
+    }
+
+    /**
+     * The {@code value} field of a line-protocol line, or -1.
+     */
+    private static double valueOf(String line) {
+        int at = line.indexOf("value=");
+        if (at < 0) {
+            return -1;
+        }
+        int end = at + 6;
+        while (end < line.length() && line.charAt(end) != ',' && line.charAt(end) != ' ') {
+            end++;
+        }
+        return Double.parseDouble(line.substring(at + 6, end));
+    }
+}
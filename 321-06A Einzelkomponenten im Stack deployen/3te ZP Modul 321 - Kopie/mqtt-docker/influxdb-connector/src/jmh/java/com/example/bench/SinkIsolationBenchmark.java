@@ -0,0 +1,158 @@
+package com.example.bench;
+
+import com.example.BatchingWriter;
+import com.example.FanOutWriter;
+import com.example.FileSink;
+import com.example.InfluxSink;
+import com.example.RecordSink;
+import com.influxdb.client.InfluxDBClientFactory;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.stream.Stream;
+
+/**
+ * Shows that a stalled sink does not slow down the others behind a {@link FanOutWriter}.
+ *
+ * The same records go through InfluxDB (a local {@link InfluxWriteStub}) and a
+ * {@link FileSink}, once on their own and once next to a sink whose writes hang until the
+ * end of the run. The time until InfluxDB and the file sink have written everything must
+ * stay the same; the stalled sink only drops what no longer fits into its queue.
+ *
+ * Fails with exit code 1 if InfluxDB does not receive every record, if the sinks are not done
+ * within {@value #TIMEOUT_MS} ms, or if the run next to the stalled sink takes more than
+ * {@value #MAX_SLOWDOWN} times as long as the run without it.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.SinkIsolationBenchmark [records] [stubDelayMs] [queueCapacity]}.
+ */
+public class SinkIsolationBenchmark {
+    // Leaves room for timing noise on a busy host; a blocked primary never finishes at all
+    private static final double MAX_SLOWDOWN = 1.5;
+    private static final long TIMEOUT_MS = 120_000;
+
+    /**
+     * A sink whose first write blocks until released.
+     */
+    private static final class StalledSink implements RecordSink {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void write(List<String> records) throws InterruptedException {
+            release.await();
+        }
+
+        @Override
+        public String name() {
+            return "stalled";
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long stubDelayMs = args.length > 1 ? Long.parseLong(args[1]) : 1;
+        int queueCapacity = args.length > 2 ? Integer.parseInt(args[2]) : 50_000;
+
+        String[] lines = new String[1000];
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = "temperature,sensor=temperature,sensor_id=temp" + (i % 100) + " unit=\"°C\",value="
+                    + (20.0 + (i % 10) / 10.0) + " " + (1700000000000L + i);
+        }
+
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, stubDelayMs)) {
+            run(stub, lines, records, queueCapacity, false, "Warm-up:");
+            double alone = run(stub, lines, records, queueCapacity, false, "Without:");
+            double withStalled = run(stub, lines, records, queueCapacity, true, "With stalled sink:");
+            System.out.printf("Throughput next to a stalled sink: %.0f%% of the throughput without it%n",
+                    100 * alone / withStalled);
+            if (withStalled > alone * MAX_SLOWDOWN) {
+                fail(String.format("the stalled sink slowed the other sinks down from %.3fs to %.3fs", alone, withStalled));
+            }
+            System.out.println("OK: the stalled sink did not hold up InfluxDB or the file sink");
+        }
+    }
+
+    private static void fail(String reason) {
+        System.out.println("FAILED: " + reason);
+        System.exit(1);
+    }
+
+    /**
+     * @return seconds until InfluxDB and the file sink have written every record
+     */
+    private static double run(InfluxWriteStub stub, String[] lines, int records, int queueCapacity,
+                              boolean stalled, String label) throws Exception {
+        Path directory = Files.createTempDirectory("sink-isolation");
+        long linesBefore = stub.getLines();
+        // Blocking primary writer, like the connector's InfluxDB writer without spill log
+        BatchingWriter influx = new BatchingWriter(new InfluxSink(InfluxDBClientFactory.createV1(stub.getUrl(),
+                "admin", "adminpassword".toCharArray(), "mqtt", null), "InfluxDB"), queueCapacity, 5000, 100, 5000, null);
+        BatchingWriter file = new BatchingWriter(new FileSink(directory, "bench", 64 << 20, 3_600_000, Long.MAX_VALUE),
+                queueCapacity, 5000, 100, 0, null);
+        StalledSink stalledSink = new StalledSink();
+        List<BatchingWriter> additional = new ArrayList<>(Arrays.asList(file));
+        BatchingWriter stalledWriter = null;
+        if (stalled) {
+            stalledWriter = new BatchingWriter(stalledSink, queueCapacity, 5000, 100, 0, null);
+            additional.add(stalledWriter);
+        }
+        FanOutWriter fanOut = new FanOutWriter(influx, additional);
+
+        long start = System.nanoTime();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        // On its own thread, so a fan-out that blocks still runs into the deadline below
+        Thread producer = new Thread(() -> {
+            try {
+                for (int i = 0; i < records; i++) {
+                    fanOut.write(lines[i % lines.length]);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "producer");
+        producer.setDaemon(true);
+        producer.start();
+        while (influx.getRecordsWritten() + influx.getRecordsDropped() < records
+                || file.getRecordsWritten() + file.getRecordsDropped() < records) {
+            if (System.currentTimeMillis() > deadline) {
+                fail(label + " InfluxDB wrote " + influx.getRecordsWritten() + " and the file sink "
+                        + file.getRecordsWritten() + " of " + records + " records within " + TIMEOUT_MS + " ms");
+            }
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%-20s %.3fs = %8.0f records/s; InfluxDB wrote %d (stub %d), file wrote %d, dropped %d/%d%s%n",
+                label, seconds, records / seconds, influx.getRecordsWritten(),
+                stub.getLines() - linesBefore, file.getRecordsWritten(), influx.getRecordsDropped(),
+                file.getRecordsDropped(), stalledWriter == null ? ""
+                        : ", stalled sink dropped " + stalledWriter.getRecordsDropped() + " and holds "
+                        + stalledWriter.getQueueDepth());
+
+        // The primary blocks instead of dropping, so it must have everything
+        if (influx.getRecordsDropped() != 0 || stub.getLines() - linesBefore != records) {
+            fail(label + " InfluxDB received " + (stub.getLines() - linesBefore) + " of " + records + " records");
+        }
+
+        stalledSink.release.countDown();
+        if (stalledWriter != null) {
+            stalledWriter.close();
+        }
+        influx.close();
+        file.close();
+        long archived = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : (Iterable<Path>) files::iterator) {
+                archived += Files.size(path);
+                Files.delete(path);
+            }
+        }
+        Files.delete(directory);
+        System.out.printf("%-20s archive %.1f MB compressed%n", "", archived / 1e6);
+        return seconds;
+    }
+}
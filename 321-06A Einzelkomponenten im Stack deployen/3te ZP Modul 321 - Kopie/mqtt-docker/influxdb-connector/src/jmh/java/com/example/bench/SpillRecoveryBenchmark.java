@@ -0,0 +1,130 @@
+package com.example.bench;
+
+import com.example.BatchingWriter;
+import com.example.SpillLog;
+import com.example.SpillReplayer;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Checks that spilled records survive a crash and measures how fast they are replayed.
+ *
+ * A child JVM writes {@code points} records through a {@link BatchingWriter} while the
+ * {@link InfluxWriteStub} answers 503, so everything ends up in the {@link SpillLog}, and
+ * then halts without closing anything. This JVM reopens the log, makes the stub available
+ * and lets the {@link SpillReplayer} drain it. Exits with 1 if a record is missing.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.SpillRecoveryBenchmark [points] [segmentBytes] [fsync]}.
+ */
+public class SpillRecoveryBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("crash")) {
+            writeAndCrash(Paths.get(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3]), Integer.parseInt(args[4]),
+                    SpillLog.FsyncPolicy.parse(args[5]));
+            return;
+        }
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int segmentBytes = args.length > 1 ? Integer.parseInt(args[1]) : 4 << 20;
+        String fsync = args.length > 2 ? args[2] : "interval";
+        Path directory = Files.createTempDirectory("spill-benchmark");
+
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, 0)) {
+            stub.setAvailable(false);
+
+            // Spill everything in a child JVM that dies without closing the log
+            String javaBin = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            Process child = new ProcessBuilder(javaBin, "-cp", System.getProperty("java.class.path"),
+                    SpillRecoveryBenchmark.class.getName(), "crash", directory.toString(),
+                    String.valueOf(stub.getPort()), String.valueOf(points), String.valueOf(segmentBytes), fsync)
+                    .redirectErrorStream(true).start();
+            long spilled = -1;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(child.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    System.out.println("  [crash] " + line);
+                    if (line.startsWith("spilled=")) {
+                        spilled = Long.parseLong(line.substring(8).trim());
+                    }
+                }
+            }
+            child.waitFor();
+
+            // Recover and replay
+            long start = System.nanoTime();
+            SpillLog spillLog = new SpillLog(directory, segmentBytes, Long.MAX_VALUE, 0,
+                    SpillLog.FsyncPolicy.parse(fsync), 1000);
+            double recoverMillis = (System.nanoTime() - start) / 1e6;
+            long recovered = spillLog.getPendingRecords();
+            System.out.printf("Recovered %d of %d spilled records in %d segment(s) in %.1fms%n",
+                    recovered, spilled, spillLog.getSegmentCount(), recoverMillis);
+
+            stub.setAvailable(true);
+            InfluxDBClient client = InfluxDBClientFactory.createV1(stub.getUrl(), "admin",
+                    "adminpassword".toCharArray(), "mqtt", null);
+            BatchingWriter writer = new BatchingWriter(client.getWriteApiBlocking(), 50000, 5000, 100, 5000, spillLog);
+            start = System.nanoTime();
+            SpillReplayer replayer = new SpillReplayer(client.getWriteApiBlocking(), spillLog, writer, 20000, 1000);
+            while (spillLog.getPendingRecords() > 0) {
+                Thread.sleep(10);
+            }
+            double replaySeconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("Replayed %d records in %.3fs = %.0f records/s, %d HTTP requests%n",
+                    stub.getLines(), replaySeconds, stub.getLines() / replaySeconds, stub.getRequests());
+            System.out.println("Spill stats: " + replayer.stats());
+            replayer.close();
+            writer.close();
+            spillLog.close();
+            client.close();
+
+            if (stub.getLines() != points || recovered != points) {
+                System.out.println("FAILED: expected " + points + " records, recovered " + recovered
+                        + ", written " + stub.getLines());
+                System.exit(1);
+            }
+            System.out.println("OK: all " + points + " records written after the crash");
+        }
+    }
+
+    private static void writeAndCrash(Path directory, int stubPort, int points, int segmentBytes,
+                                      SpillLog.FsyncPolicy fsync) throws Exception {
+        SpillLog spillLog = new SpillLog(directory, segmentBytes, Long.MAX_VALUE, 0, fsync, 1000);
+        InfluxDBClient client = InfluxDBClientFactory.createV1("http://127.0.0.1:" + stubPort, "admin",
+                "adminpassword".toCharArray(), "mqtt", null);
+        BatchingWriter writer = new BatchingWriter(client.getWriteApiBlocking(), 50000, 5000, 100, 5000, spillLog);
+        long start = System.nanoTime();
+        for (int i = 0; i < points; i++) {
+            writer.write(point(i).toLineProtocol());
+        }
+        while (writer.getQueueDepth() > 0 || writer.getRecordsSpilled() < points) {
+            Thread.sleep(1);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Spilled %d records in %.3fs = %.0f records/s (fsync=%s)%n",
+                writer.getRecordsSpilled(), seconds, writer.getRecordsSpilled() / seconds, fsync);
+        System.out.println("Writer stats: " + writer.stats());
+        System.out.println("spilled=" + spillLog.getAppendedRecords());
+        System.out.flush();
+        // Crash: no close, no final force
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static Point point(int i) {
+        return Point.measurement("temperature")
+                .addTag("sensor", "temperature")
+                .addTag("sensor_id", "temp" + (i % 100))
+                .addField("value", 20.0 + (i % 10) / 10.0)
+                .addField("unit", "°C")
+                .time(1700000000000L + i, WritePrecision.MS);
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.bench;
+
+import com.example.BatchingWriter;
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.InfluxDBClientFactory;
+import com.influxdb.client.WriteApi;
+import com.influxdb.client.domain.WritePrecision;
+import com.influxdb.client.write.Point;
+
+/**
+ * Compares the old one-WriteApi-per-message path with {@link BatchingWriter}
+ * against a local {@link InfluxWriteStub}.
+ *
+ * Build with {@code mvn -Pjmh package}, then run
+ * {@code java -cp target/benchmarks.jar com.example.bench.WriteThroughputBenchmark [points] [stubDelayMs]}.
+ */
+public class WriteThroughputBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long stubDelayMs = args.length > 1 ? Long.parseLong(args[1]) : 1;
+
+        try (InfluxWriteStub stub = new InfluxWriteStub(0, stubDelayMs)) {
+            InfluxDBClient client = InfluxDBClientFactory.createV1(stub.getUrl(), "admin",
+                    "adminpassword".toCharArray(), "mqtt", null);
+            try {
+                // Old path: one WriteApi per message, closed right away
+                long start = System.nanoTime();
+                for (int i = 0; i < points; i++) {
+                    try (WriteApi writeApi = client.makeWriteApi()) {
+                        writeApi.writePoint(point(i));
+                    }
+                }
+                double perMessageSeconds = (System.nanoTime() - start) / 1e9;
+                long perMessageRequests = stub.getRequests();
+                report("per-message WriteApi", points, perMessageSeconds, perMessageRequests);
+
+                // New path: long-lived batching writer
+                long requestsBefore = stub.getRequests();
+                start = System.nanoTime();
+                BatchingWriter writer = new BatchingWriter(client.getWriteApiBlocking(), 50000, 5000, 100, 5000);
+                for (int i = 0; i < points; i++) {
+                    writer.write(point(i).toLineProtocol());
+                }
+                writer.close();
+                double batchedSeconds = (System.nanoTime() - start) / 1e9;
+                report("BatchingWriter", points, batchedSeconds, stub.getRequests() - requestsBefore);
+                System.out.println("Writer stats: " + writer.stats());
+                System.out.printf("Speedup: %.1fx%n", perMessageSeconds / batchedSeconds);
+            } finally {
+                client.close();
+            }
+        }
+    }
+
+    private static Point point(int i) {
+        return Point.measurement("temperature")
+                .addTag("sensor", "temperature")
+                .addTag("sensor_id", "temp" + (i % 100))
+                .addField("value", 20.0 + (i % 10) / 10.0)
+                .addField("unit", "°C")
+                .time(1700000000000L + i, WritePrecision.MS);
+    }
+
+    private static void report(String name, int points, double seconds, long requests) {
+        System.out.printf("%-22s %8d points in %7.3fs = %10.0f points/s, %d HTTP requests%n",
+                name, points, seconds, points / seconds, requests);
+    }
+}
@@ -0,0 +1,296 @@
+package com.example;
+
+import com.influxdb.client.WriteApiBlocking;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived write stage between the MQTT callback and a {@link RecordSink}, by default InfluxDB.
+ *
+ * Line-protocol records are put into a bounded queue and a single writer thread
+ * hands them to the sink in batches of up to {@code batchSize} records, or whatever has
+ * accumulated after {@code flushIntervalMs}. When the queue is full, {@link #write}
+ * blocks the caller for up to {@code enqueueTimeoutMs} (backpressure towards the
+ * broker) and drops the record after that.
+ *
+ * With a {@link SpillLog}, nothing is dropped: records that do not fit into the queue and
+ * batches the sink rejects go to the log instead. Records that do not fit are collected and
+ * spilled together, once {@code batchSize} of them have piled up or after
+ * {@code flushIntervalMs}, so a saturated writer does not append (and fsync) per record. After a failed write the writer treats
+ * the sink as unavailable and spills every batch directly until the {@link SpillReplayer}
+ * has written spilled data again and calls {@link #markSinkAvailable()}.
+ *
+ * Every writer has its own queue and thread, so several sinks fed through a
+ * {@link FanOutWriter} do not wait for each other.
+ */
+public class BatchingWriter implements RecordWriter, AutoCloseable {
+    private final RecordSink sink;
+    private final BlockingQueue<String> queue;
+    private final int batchSize;
+    private final long flushIntervalMs;
+    private final long enqueueTimeoutMs;
+    private final SpillLog spillLog;
+    // Records that did not fit into the queue, waiting to be spilled in one append
+    private final List<String> overflow = new ArrayList<>();
+    private final Thread writerThread;
+    private volatile boolean running = true;
+    private volatile boolean sinkAvailable = true;
+
+    // Counters
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private final AtomicLong recordsSpilled = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong flushNanosTotal = new AtomicLong();
+    private final AtomicLong flushNanosMax = new AtomicLong();
+    private final AtomicLong flushNanosLast = new AtomicLong();
+
+    public BatchingWriter(WriteApiBlocking writeApi, int queueCapacity, int batchSize,
+                          long flushIntervalMs, long enqueueTimeoutMs) {
+        this(writeApi, queueCapacity, batchSize, flushIntervalMs, enqueueTimeoutMs, null);
+    }
+
+    /**
+     * @param spillLog log for records that cannot be written right away, or null to drop them
+     */
+    public BatchingWriter(WriteApiBlocking writeApi, int queueCapacity, int batchSize,
+                          long flushIntervalMs, long enqueueTimeoutMs, SpillLog spillLog) {
+        this(new InfluxSink(writeApi, "InfluxDB"), queueCapacity, batchSize, flushIntervalMs, enqueueTimeoutMs, spillLog);
+    }
+
+    /**
+     * @param sink written by the writer thread only, and closed with the writer
+     * @param spillLog log for records that cannot be written right away, or null to drop them
+     */
+    public BatchingWriter(RecordSink sink, int queueCapacity, int batchSize,
+                          long flushIntervalMs, long enqueueTimeoutMs, SpillLog spillLog) {
+        this.sink = sink;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchSize = batchSize;
+        this.flushIntervalMs = flushIntervalMs;
+        this.enqueueTimeoutMs = enqueueTimeoutMs;
+        this.spillLog = spillLog;
+        this.writerThread = new Thread(this::runLoop, "batch-writer-" + sink.name());
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queues one line-protocol record.
+     * @return false if the record was dropped because the queue stayed full
+     */
+    @Override
+    public boolean write(String record) throws InterruptedException {
+        if (spillLog != null) {
+            // Saturated: go to disk instead of holding up the MQTT client
+            if (queue.offer(record)) {
+                return true;
+            }
+            List<String> full;
+            synchronized (overflow) {
+                overflow.add(record);
+                if (overflow.size() < batchSize) {
+                    return true;
+                }
+                full = new ArrayList<>(overflow);
+                overflow.clear();
+            }
+            if (spill(full)) {
+                return true;
+            }
+            recordsDropped.addAndGet(full.size());
+            return false;
+        } else if (queue.offer(record, enqueueTimeoutMs, TimeUnit.MILLISECONDS)) {
+            return true;
+        }
+        recordsDropped.incrementAndGet();
+        return false;
+    }
+
+    private void runLoop() {
+        List<String> batch = new ArrayList<>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+                // Collect until the batch is full or the flush interval has passed
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    String record = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (record == null) {
+                        break;
+                    }
+                    batch.add(record);
+                    queue.drainTo(batch, batchSize - batch.size());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running = false;
+                queue.drainTo(batch, batchSize - batch.size());
+            }
+            if (!batch.isEmpty()) {
+                flush(batch);
+                batch.clear();
+            }
+            spillOverflow();
+        }
+        spillOverflow();
+    }
+
+    /**
+     * Spills the records collected by {@link #write} that have not reached a full batch yet.
+     */
+    private void spillOverflow() {
+        if (spillLog == null) {
+            return;
+        }
+        List<String> pending;
+        synchronized (overflow) {
+            if (overflow.isEmpty()) {
+                return;
+            }
+            pending = new ArrayList<>(overflow);
+            overflow.clear();
+        }
+        if (!spill(pending)) {
+            recordsDropped.addAndGet(pending.size());
+        }
+    }
+
+    private void flush(List<String> batch) {
+        if (!sinkAvailable && spill(batch)) {
+            // Leave probing the sink to the replayer
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            sink.write(batch);
+            recordsWritten.addAndGet(batch.size());
+            batchesWritten.incrementAndGet();
+        } catch (Exception e) {
+            writeErrors.incrementAndGet();
+            System.out.println("Error writing batch of " + batch.size() + " points to " + sink.name() + ": " + e.getMessage());
+            if (spill(batch)) {
+                if (sinkAvailable) {
+                    System.out.println(sink.name() + " unavailable, spilling to " + spillLog.getDirectory());
+                }
+                sinkAvailable = false;
+            }
+        } finally {
+            long nanos = System.nanoTime() - start;
+            flushNanosTotal.addAndGet(nanos);
+            flushNanosLast.set(nanos);
+            flushNanosMax.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    private boolean spill(List<String> records) {
+        if (spillLog == null || !spillLog.append(records)) {
+            return false;
+        }
+        recordsSpilled.addAndGet(records.size());
+        return true;
+    }
+
+    /**
+     * Called by the replayer once spilled records were written again.
+     */
+    public void markSinkAvailable() {
+        if (!sinkAvailable) {
+            System.out.println(sink.name() + " available again, writing directly");
+        }
+        sinkAvailable = true;
+    }
+
+    /**
+     * Called by the replayer when a replay write failed.
+     */
+    public void markSinkUnavailable() {
+        sinkAvailable = false;
+    }
+
+    public String getSinkName() {
+        return sink.name();
+    }
+
+    public boolean isSinkAvailable() {
+        return sinkAvailable;
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten.get();
+    }
+
+    public long getRecordsDropped() {
+        return recordsDropped.get();
+    }
+
+    public long getRecordsSpilled() {
+        return recordsSpilled.get();
+    }
+
+    public long getBatchesWritten() {
+        return batchesWritten.get();
+    }
+
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    public double getAverageFlushMillis() {
+        long batches = batchesWritten.get() + writeErrors.get();
+        return batches == 0 ? 0.0 : flushNanosTotal.get() / 1e6 / batches;
+    }
+
+    public double getLastFlushMillis() {
+        return flushNanosLast.get() / 1e6;
+    }
+
+    public double getMaxFlushMillis() {
+        return flushNanosMax.get() / 1e6;
+    }
+
+    public String stats() {
+        return String.format("queue=%d written=%d batches=%d dropped=%d spilled=%d errors=%d sink=%s flush avg=%.2fms last=%.2fms max=%.2fms",
+                getQueueDepth(), getRecordsWritten(), getBatchesWritten(), getRecordsDropped(), getRecordsSpilled(),
+                getWriteErrors(), sinkAvailable ? "up" : "down",
+                getAverageFlushMillis(), getLastFlushMillis(), getMaxFlushMillis());
+    }
+
+    /**
+     * Stops accepting new work, writes everything still queued, waits for the writer thread
+     * and closes the sink.
+     */
+    @Override
+    public void close() {
+        // The writer notices this within one flush interval
+        running = false;
+        try {
+            writerThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (writerThread.isAlive()) {
+            // Still stuck in a write; closing the sink under it could corrupt its output
+            System.out.println("Writer for " + sink.name() + " did not finish, leaving the sink open");
+            return;
+        }
+        try {
+            sink.close();
+        } catch (Exception e) {
+            System.out.println("Error closing " + sink.name() + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.example;
+
+import java.util.List;
+
+/**
+ * Hands every record to a primary writer and to a set of additional sinks.
+ *
+ * Each additional sink sits behind its own {@link BatchingWriter}, that is its own bounded
+ * queue, batcher and thread, created with an enqueue timeout of 0 and no spill log. A slow
+ * or stalled sink therefore only fills its own queue and then drops its records, counted by
+ * its writer; the primary writer and the other sinks carry on at their own pace. Only the
+ * primary writer applies backpressure towards the broker, as it did without fan-out.
+ */
+public class FanOutWriter implements RecordWriter {
+    private final RecordWriter primary;
+    private final BatchingWriter[] additional;
+
+    public FanOutWriter(RecordWriter primary, List<BatchingWriter> additional) {
+        this.primary = primary;
+        this.additional = additional.toArray(new BatchingWriter[0]);
+    }
+
+    /**
+     * @return false if the primary writer dropped the record
+     */
+    @Override
+    public boolean write(String record) throws InterruptedException {
+        // These never block, so they go first
+        for (BatchingWriter writer : additional) {
+            writer.write(record);
+        }
+        return primary.write(record);
+    }
+}
@@ -0,0 +1,171 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Archives records as rolling gzip-compressed line-protocol files, which {@code influx write}
+ * or {@code influx -import} can load again.
+ *
+ * A batch is encoded into one byte array and compressed through a 256 KiB deflate buffer
+ * straight into a {@link FileChannel}, then sync-flushed, so the file always ends on a
+ * complete batch. The file being written is named {@code <prefix>-<UTC time>-<n>.lp.gz.part};
+ * when a batch arrives after it has reached {@code rollBytes} or {@code rollIntervalMs} of
+ * age, it is finished, forced to disk and renamed without {@code .part}. After that the oldest
+ * finished files are deleted while all of them together exceed {@code maxBytes}.
+ *
+ * A {@code .part} file left over by a crash holds every batch up to the last flush; it is
+ * renamed when the sink opens, and decompresses with a warning about the missing trailer.
+ *
+ * Not thread-safe: written by the thread of its {@link BatchingWriter} only.
+ */
+public class FileSink implements RecordSink {
+    private static final String SUFFIX = ".lp.gz";
+    private static final String PART_SUFFIX = ".part";
+    private static final int DEFLATE_BUFFER_BYTES = 256 * 1024;
+    private static final DateTimeFormatter FILE_TIME = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+
+    private final Path directory;
+    private final String prefix;
+    private final long rollBytes;
+    private final long rollIntervalMs;
+    private final long maxBytes;
+    // Encoded batch, reused by the writer thread
+    private final StringBuilder text = new StringBuilder();
+
+    private FileChannel channel;
+    private GZIPOutputStream out;
+    private Path current;
+    private long openedMillis;
+    private int sequence;
+
+    /**
+     * @param prefix start of the file names, e.g. the host name when replicas share a directory
+     */
+    public FileSink(Path directory, String prefix, long rollBytes, long rollIntervalMs, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.rollBytes = rollBytes;
+        this.rollIntervalMs = rollIntervalMs;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*" + SUFFIX + PART_SUFFIX)) {
+            for (Path part : stream) {
+                complete(part);
+            }
+        }
+    }
+
+    @Override
+    public void write(List<String> records) throws IOException {
+        long now = System.currentTimeMillis();
+        text.setLength(0);
+        for (String record : records) {
+            text.append(record).append('\n');
+        }
+        try {
+            if (channel != null && (channel.size() >= rollBytes || now - openedMillis >= rollIntervalMs)) {
+                roll();
+            }
+            if (channel == null) {
+                open(now);
+            }
+            out.write(text.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            // Keep what the file already holds and start a new one with the next batch
+            abandon();
+            throw e;
+        }
+    }
+
+    private void open(long now) throws IOException {
+        String time = FILE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
+        current = directory.resolve(String.format("%s-%s-%04d%s%s", prefix, time, sequence++ % 10000, SUFFIX, PART_SUFFIX));
+        channel = FileChannel.open(current, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        // Sync flush: every flush() pushes the compressed batch into the channel
+        out = new GZIPOutputStream(Channels.newOutputStream(channel), DEFLATE_BUFFER_BYTES, true);
+        openedMillis = now;
+    }
+
+    private void roll() throws IOException {
+        out.finish();
+        channel.force(true);
+        channel.close();
+        Path finished = current;
+        channel = null;
+        out = null;
+        current = null;
+        complete(finished);
+        enforceMaxBytes();
+    }
+
+    private void abandon() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+        } catch (IOException e) {
+            // Already failing
+        }
+        channel = null;
+        out = null;
+        current = null;
+    }
+
+    private static void complete(Path part) throws IOException {
+        String name = part.getFileName().toString();
+        Path finished = part.resolveSibling(name.substring(0, name.length() - PART_SUFFIX.length()));
+        Files.move(part, finished, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void enforceMaxBytes() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "-*" + SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        // Names start with the time, so this is oldest first
+        Collections.sort(files);
+        long total = 0;
+        for (Path file : files) {
+            total += Files.size(file);
+        }
+        for (Path file : files) {
+            if (total <= maxBytes) {
+                break;
+            }
+            total -= Files.size(file);
+            Files.delete(file);
+            System.out.println("Deleted archive file " + file + " to stay within " + (maxBytes >> 20) + " MB");
+        }
+    }
+
+    @Override
+    public String name() {
+        return "file:" + directory;
+    }
+
+    /**
+     * Finishes the current file, so it is complete and renamed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            roll();
+        }
+    }
+}
@@ -7,20 +7,39 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonSyntaxException;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
-import com.influxdb.client.WriteApi;
-import com.influxdb.client.domain.WritePrecision;
-import com.influxdb.client.write.Point;
 
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
 
 public class InfluxDBConnector {
     // MQTT settings
     private static final String MQTT_BROKER_HOST = System.getenv().getOrDefault("MQTT_BROKER_HOST", "broker");
     private static final int MQTT_BROKER_PORT = Integer.parseInt(System.getenv().getOrDefault("MQTT_BROKER_PORT", "1883"));
     private static final String CLIENT_ID = "JavaInfluxConnector-" + UUID.randomUUID().toString();
-    private static final String[] MQTT_TOPICS = {"sensors/#"};  // Subscribe to all sensor topics
+    // Several brokers: MQTT_BROKERS=tcp://broker:1883,tcp://broker-2:1883 replaces host and port. The connector
+    // tries them in the given order (BROKER_SELECTION=ordered), so list the hub of a bridged cluster first
+    private static final String MQTT_BROKERS = BrokerSelector.brokerList(MQTT_BROKER_HOST, MQTT_BROKER_PORT);
+    private static final String BROKER_SELECTION = System.getenv().getOrDefault("BROKER_SELECTION", "ordered");
+    // Routing table from topic filters to measurement, extra tags and database, see TopicRouter;
+    // the connector subscribes to the filters of the rules
+    private static final String TOPIC_ROUTES = System.getenv().getOrDefault("TOPIC_ROUTES", TopicRouter.DEFAULT_ROUTES);
+
+    // Scale-out settings: replicas in one shared subscription group split the messages between them.
+    // For brokers without $share support, PARTITION_COUNT replicas with distinct PARTITION_INDEX
+    // each subscribe to everything and only process their share of the sensors.
+    private static final String SHARED_SUBSCRIPTION_GROUP = System.getenv().getOrDefault("SHARED_SUBSCRIPTION_GROUP", "");
+    private static final int PARTITION_COUNT = Integer.parseInt(System.getenv().getOrDefault("PARTITION_COUNT", "1"));
+    private static final int PARTITION_INDEX = Integer.parseInt(System.getenv().getOrDefault("PARTITION_INDEX", "0"));
 
     // InfluxDB settings
     private static final String INFLUXDB_URL = "http://" + System.getenv().getOrDefault("INFLUXDB_HOST", "influxdb") 
@@ -32,83 +51,244 @@ public class InfluxDBConnector {
     private static final String INFLUXDB_PASSWORD = System.getenv().getOrDefault("INFLUXDB_PASSWORD", "adminpassword");
     private static final String INFLUXDB_DATABASE = System.getenv().getOrDefault("INFLUXDB_DATABASE", "mqtt");
 
-    private static InfluxDBClient influxDBClient;
+    // Write batching settings
+    private static final int WRITE_QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("WRITE_QUEUE_CAPACITY", "50000"));
+    private static final int WRITE_BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("WRITE_BATCH_SIZE", "5000"));
+    private static final long WRITE_FLUSH_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("WRITE_FLUSH_INTERVAL_MS", "1000"));
+    private static final long WRITE_ENQUEUE_TIMEOUT_MS = Long.parseLong(System.getenv().getOrDefault("WRITE_ENQUEUE_TIMEOUT_MS", "5000"));
+    // Disk spill settings: when InfluxDB is slow or down, records go to an on-disk log under SPILL_DIR
+    // and are replayed once it recovers. An empty SPILL_DIR keeps the in-memory-only behaviour.
+    private static final String SPILL_DIR = System.getenv().getOrDefault("SPILL_DIR", "");
+    private static final int SPILL_SEGMENT_BYTES = Integer.parseInt(System.getenv().getOrDefault("SPILL_SEGMENT_BYTES", "67108864"));
+    private static final long SPILL_MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("SPILL_MAX_BYTES", "1073741824"));
+    private static final long SPILL_RETENTION_HOURS = Long.parseLong(System.getenv().getOrDefault("SPILL_RETENTION_HOURS", "72"));
+    private static final SpillLog.FsyncPolicy SPILL_FSYNC = SpillLog.FsyncPolicy.parse(
+            System.getenv().getOrDefault("SPILL_FSYNC", "interval"));
+    private static final long SPILL_FSYNC_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SPILL_FSYNC_INTERVAL_MS", "1000"));
+    private static final int SPILL_REPLAY_BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("SPILL_REPLAY_BATCH_SIZE", "20000"));
+    private static final long SPILL_RETRY_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SPILL_RETRY_INTERVAL_MS", "5000"));
+    // Additional sinks, comma-separated: file:<directory> archives rolling gzip line-protocol files,
+    // influx:http://[user:password@]host:port/<database> forwards to a second store with the InfluxDB write API.
+    // They get every record, each with its own queue and thread, and drop records when they fall behind
+    // instead of slowing down InfluxDB or each other. With routes to several databases every sink is
+    // opened once per database: the first database keeps the given directory or database, the others
+    // write to a subdirectory database-<name> or to the database of that name on the same server.
+    private static final String SINKS = System.getenv().getOrDefault("SINKS", "");
+    private static final int SINK_QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("SINK_QUEUE_CAPACITY",
+            String.valueOf(WRITE_QUEUE_CAPACITY)));
+    private static final long FILE_SINK_ROLL_BYTES = Long.parseLong(System.getenv().getOrDefault("FILE_SINK_ROLL_BYTES", "67108864"));
+    private static final long FILE_SINK_ROLL_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("FILE_SINK_ROLL_INTERVAL_MS", "3600000"));
+    private static final long FILE_SINK_MAX_BYTES = Long.parseLong(System.getenv().getOrDefault("FILE_SINK_MAX_BYTES", "10737418240"));
+    // Rollup settings: ROLLUP_WINDOWS like "10s,1m" writes one aggregated point per sensor and window
+    // to <measurement>_<window>; ROLLUP_OUTPUT=rollup drops the raw readings, "both" keeps them
+    private static final List<RollupStage.Window> ROLLUP_WINDOWS = RollupStage.Window.parseList(
+            System.getenv().getOrDefault("ROLLUP_WINDOWS", ""));
+    private static final boolean WRITE_RAW = !"rollup".equalsIgnoreCase(System.getenv().getOrDefault("ROLLUP_OUTPUT", "both"))
+            || ROLLUP_WINDOWS.isEmpty();
+    private static final long ROLLUP_ALLOWED_LATENESS_MS = Long.parseLong(System.getenv().getOrDefault("ROLLUP_ALLOWED_LATENESS_MS", "5000"));
+    // Readings stamped further ahead of the clock are left out of the rollup, as they would make all others late
+    private static final long ROLLUP_MAX_FUTURE_MS = Long.parseLong(System.getenv().getOrDefault("ROLLUP_MAX_FUTURE_MS", "60000"));
+    // Processing worker settings
+    private static final int WORKER_THREADS = Integer.parseInt(System.getenv().getOrDefault("WORKER_THREADS",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int WORKER_QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("WORKER_QUEUE_CAPACITY", "8192"));
+    private static final WorkerPool.OverflowPolicy WORKER_OVERFLOW_POLICY = WorkerPool.OverflowPolicy.parse(
+            System.getenv().getOrDefault("WORKER_OVERFLOW_POLICY", "block"));
+    // Messages each worker keeps behind its queue with WORKER_OVERFLOW_POLICY=spill before dropping
+    private static final int WORKER_OVERFLOW_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("WORKER_OVERFLOW_CAPACITY", "65536"));
+
+    // Upper bound for a compressed client-side batch after inflating
+    private static final int MAX_BATCH_BYTES = Integer.parseInt(System.getenv().getOrDefault("MAX_BATCH_BYTES", "16777216"));
+    // Client-side batches waiting to be split; a full queue blocks the MQTT callback thread
+    private static final int BATCH_QUEUE_CAPACITY = Integer.parseInt(System.getenv().getOrDefault("BATCH_QUEUE_CAPACITY", "1024"));
+
+    // Prometheus endpoint on http://<host>:METRICS_PORT/metrics, 0 to disable
+    private static final int METRICS_PORT = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", "9400"));
+
+    // Last-value cache with a JSON query API on http://<host>:QUERY_PORT/sensors/..., 0 to disable both
+    private static final int QUERY_PORT = Integer.parseInt(System.getenv().getOrDefault("QUERY_PORT", "9401"));
+    private static final int CACHE_MAX_SENSORS = Integer.parseInt(System.getenv().getOrDefault("CACHE_MAX_SENSORS", "10000"));
+    private static final int CACHE_HISTORY_SIZE = Integer.parseInt(System.getenv().getOrDefault("CACHE_HISTORY_SIZE", "120"));
+    private static final long CACHE_IDLE_EVICT_MS = Long.parseLong(System.getenv().getOrDefault("CACHE_IDLE_EVICT_MS", "3600000"));
+    private static final long CACHE_STALE_MS = Long.parseLong(System.getenv().getOrDefault("CACHE_STALE_MS", "60000"));
+
+    private static final boolean LOG_MESSAGES = Boolean.parseBoolean(System.getenv().getOrDefault("LOG_MESSAGES", "false"));
+    private static final long STATS_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("STATS_INTERVAL_MS", "10000"));
+
+    /**
+     * Client, batching writer and spill log of one database the routes write to.
+     */
+    private static final class Sink {
+        final String database;
+        InfluxDBClient client;
+        BatchingWriter writer;
+        SpillLog spillLog;
+        SpillReplayer spillReplayer;
+
+        Sink(String database) {
+            this.database = database;
+        }
+    }
+
+    private static TopicRouter router;
+    private static final List<Sink> sinks = new ArrayList<>();
+    private static final List<BatchingWriter> additionalWriters = new ArrayList<>();
+    // Indexed by the target of a route, like router.getDatabases()
+    private static RecordWriter[] writers;
+    private static WorkerPool workerPool;
+    // Splits client-side batches off the MQTT callback thread
+    private static WorkerPool batchPool;
+    private static LastValueCache lastValues;
+    private static QueryApi queryApi;
     private static Gson gson = new Gson();
+    private static final AtomicLong otherPartitions = new AtomicLong();
+    private static final List<RollupStage> rollupStages = new CopyOnWriteArrayList<>();
+
+    // Hot-path metrics; everything else is read from the components on a scrape
+    private static final Metrics.Counter messagesReceived = Metrics.counter("mqtt_messages_received_total",
+            "MQTT messages received by the connector");
+    private static final Metrics.Counter connectionsLost = Metrics.counter("mqtt_connections_lost_total",
+            "Times the connection to the broker was lost");
+    private static final Metrics.Counter reconnects = Metrics.counter("mqtt_reconnects_total",
+            "Successful automatic reconnects to the broker");
+    private static final Metrics.Counter parseFailures = Metrics.counter("connector_parse_failures_total",
+            "Payloads that could not be parsed");
+    private static final Metrics.Counter batchesReceived = Metrics.counter("connector_batches_received_total",
+            "MQTT messages that carried a client-side batch of readings");
+    private static final Metrics.Counter batchedReadings = Metrics.counter("connector_batched_readings_total",
+            "Readings that arrived inside client-side batches");
+    private static final Metrics.Counter decoderFallbacks = Metrics.counter("connector_decoder_fallbacks_total",
+            "Payloads the streaming decoder handed to Gson");
+    private static final Metrics.Counter unroutedMessages = Metrics.counter("connector_unrouted_messages_total",
+            "Messages on topics no route matches");
 
     public static void main(String[] args) {
         try {
-            // Initialize InfluxDB connection
+            router = new TopicRouter(TOPIC_ROUTES, INFLUXDB_DATABASE);
+            System.out.println("Routing topics with " + router.getRuleCount() + " rules: " + router);
+
+            // Initialize InfluxDB connection, one client per database the routes write to
             // For InfluxDB 1.8 compatibility
             String url = INFLUXDB_URL;
-            influxDBClient = InfluxDBClientFactory.createV1(
-                url, 
-                INFLUXDB_USER, 
-                INFLUXDB_PASSWORD.toCharArray(), 
-                INFLUXDB_DATABASE, 
-                null
-            );
+            List<String> databases = router.getDatabases();
+            writers = new RecordWriter[databases.size()];
+            for (int i = 0; i < databases.size(); i++) {
+                Sink sink = new Sink(databases.get(i));
+                sinks.add(sink);
+                sink.client = InfluxDBClientFactory.createV1(
+                    url, 
+                    INFLUXDB_USER, 
+                    INFLUXDB_PASSWORD.toCharArray(), 
+                    sink.database, 
+                    null
+                );
 
-            System.out.println("Connected to InfluxDB at " + url);
+                System.out.println("Connected to InfluxDB at " + url + " for database " + sink.database);
+
+                if (!SPILL_DIR.isEmpty()) {
+                    // The default database keeps the former layout, the others spill into a subdirectory each
+                    Path spillDir = i == 0 ? Paths.get(SPILL_DIR)
+                            : Paths.get(SPILL_DIR, "database-" + sink.database.replaceAll("[^A-Za-z0-9_.-]", "_"));
+                    sink.spillLog = SpillLog.openFreeSlot(spillDir, SPILL_SEGMENT_BYTES, SPILL_MAX_BYTES,
+                            TimeUnit.HOURS.toMillis(SPILL_RETENTION_HOURS), SPILL_FSYNC, SPILL_FSYNC_INTERVAL_MS);
+                    System.out.println("Spilling to " + sink.spillLog.getDirectory() + " when InfluxDB is unavailable");
+                }
+                sink.writer = new BatchingWriter(sink.client.getWriteApiBlocking(), WRITE_QUEUE_CAPACITY,
+                        WRITE_BATCH_SIZE, WRITE_FLUSH_INTERVAL_MS, WRITE_ENQUEUE_TIMEOUT_MS, sink.spillLog);
+                if (sink.spillLog != null) {
+                    sink.spillReplayer = new SpillReplayer(sink.client.getWriteApiBlocking(), sink.spillLog,
+                            sink.writer, SPILL_REPLAY_BATCH_SIZE, SPILL_RETRY_INTERVAL_MS);
+                }
+                writers[i] = sink.writer;
+            }
+            for (int i = 0; i < writers.length; i++) {
+                // The records of one database only go to that database's instance of each sink
+                List<BatchingWriter> targetWriters = new ArrayList<>();
+                for (String spec : SINKS.split(",")) {
+                    if (!spec.trim().isEmpty()) {
+                        RecordSink sink = createSink(spec.trim(), i, databases.get(i));
+                        // Enqueue timeout 0: a sink that falls behind drops instead of holding up the workers
+                        targetWriters.add(new BatchingWriter(sink, SINK_QUEUE_CAPACITY, WRITE_BATCH_SIZE,
+                                WRITE_FLUSH_INTERVAL_MS, 0, null));
+                        System.out.println("Also writing the records for database " + databases.get(i)
+                                + " to " + sink.name());
+                    }
+                }
+                if (!targetWriters.isEmpty()) {
+                    additionalWriters.addAll(targetWriters);
+                    writers[i] = new FanOutWriter(writers[i], targetWriters);
+                }
+            }
+            if (!ROLLUP_WINDOWS.isEmpty()) {
+                System.out.println("Rolling up readings into windows " + ROLLUP_WINDOWS
+                        + (WRITE_RAW ? " next to the raw readings" : " instead of the raw readings"));
+            }
+            if (QUERY_PORT > 0) {
+                lastValues = new LastValueCache(CACHE_MAX_SENSORS, CACHE_HISTORY_SIZE, CACHE_IDLE_EVICT_MS);
+            }
+            workerPool = new WorkerPool(WORKER_THREADS, WORKER_QUEUE_CAPACITY, WORKER_OVERFLOW_POLICY,
+                    WORKER_OVERFLOW_CAPACITY, SensorMessageHandler::new);
+            System.out.println("Processing messages on " + WORKER_THREADS
+                    + (Threads.isVirtual() ? " virtual" : " platform") + " worker threads");
+            // One splitting worker, so the batches of a sensor reach its processing worker in order
+            batchPool = new WorkerPool(1, BATCH_QUEUE_CAPACITY, WorkerPool.OverflowPolicy.BLOCK, 0, BatchSplitHandler::new);
+            // Before the metrics server, which then shares its TCP_NODELAY setting
+            if (lastValues != null) {
+                queryApi = new QueryApi(lastValues, QUERY_PORT, CACHE_STALE_MS);
+                System.out.println("Serving sensor queries on port " + QUERY_PORT
+                        + " at /sensors/latest, /sensors/range and /sensors/stale");
+            }
+            if (METRICS_PORT > 0) {
+                registerMetrics();
+                Metrics.startServer(METRICS_PORT);
+            }
 
             // Connect to MQTT broker
-            String broker = "tcp://" + MQTT_BROKER_HOST + ":" + MQTT_BROKER_PORT;
+            // With hash selection, replicas of one shared subscription group must end up on the same broker
+            BrokerSelector brokers = new BrokerSelector(MQTT_BROKERS, BROKER_SELECTION);
+            String[] brokerOrder = brokers.order(SHARED_SUBSCRIPTION_GROUP.isEmpty() ? CLIENT_ID : SHARED_SUBSCRIPTION_GROUP);
             MemoryPersistence persistence = new MemoryPersistence();
-            MqttClient mqttClient = new MqttClient(broker, CLIENT_ID, persistence);
+            MqttClient mqttClient = new MqttClient(brokerOrder[0], CLIENT_ID, persistence);
             MqttConnectOptions options = new MqttConnectOptions();
             options.setCleanSession(true);
             options.setAutomaticReconnect(true);
             options.setConnectionTimeout(10);
+            options.setServerURIs(brokerOrder);
 
-            System.out.println("Connecting to MQTT broker: " + broker);
+            System.out.println("Connecting to MQTT broker: " + String.join(", ", brokerOrder));
             
             // Set up callbacks
-            mqttClient.setCallback(new MqttCallback() {
+            mqttClient.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    if (reconnect) {
+                        reconnects.increment();
+                        System.out.println("Reconnected to MQTT broker: " + serverURI);
+                        // The clean session, or another broker after a failover, has no subscriptions.
+                        // Not on the callback thread, which has to deliver the SUBACK.
+                        new Thread(() -> subscribe(mqttClient), "resubscribe").start();
+                    }
+                }
+
                 @Override
                 public void connectionLost(Throwable cause) {
+                    connectionsLost.increment();
                     System.out.println("Connection to MQTT broker lost: " + cause.getMessage());
                 }
 
                 @Override
                 public void messageArrived(String topic, MqttMessage message) throws Exception {
-                    String payload = new String(message.getPayload());
-                    System.out.println("Received message on topic " + topic + ": " + payload);
-                    
-                    try {
-                        // Parse the MQTT message
-                        JsonObject jsonMessage = gson.fromJson(payload, JsonObject.class);
-                        
-                        // Extract the sensor type from the topic
-                        String[] topicParts = topic.split("/");
-                        String measurement = topicParts.length > 1 ? topicParts[1] : "unknown";
-                        
-                        // Extract data from JSON
-                        String sensor = jsonMessage.has("sensor") ? jsonMessage.get("sensor").getAsString() : "unknown";
-                        String sensorId = jsonMessage.has("sensor_id") ? jsonMessage.get("sensor_id").getAsString() : "unknown";
-                        double value = jsonMessage.has("value") ? jsonMessage.get("value").getAsDouble() : 0.0;
-                        String unit = jsonMessage.has("unit") ? jsonMessage.get("unit").getAsString() : "";
-                        long timestamp = jsonMessage.has("timestamp") 
-                                ? (long)(jsonMessage.get("timestamp").getAsDouble() * 1000) 
-                                : System.currentTimeMillis();
-                        
-                        // Create a point for InfluxDB
-                        Point point = Point.measurement(measurement)
-                                .addTag("sensor", sensor)
-                                .addTag("sensor_id", sensorId)
-                                .addField("value", value)
-                                .addField("unit", unit)
-                                .time(timestamp, WritePrecision.MS);
-                        
-                        // Write to InfluxDB
-                        try (WriteApi writeApi = influxDBClient.getWriteApi()) {
-                            writeApi.writePoint(point);
-                            System.out.println("Wrote point to InfluxDB: " + point.toLineProtocol());
-                        }
-                    } catch (JsonSyntaxException e) {
-                        System.out.println("Error parsing JSON: " + e.getMessage());
-                    } catch (Exception e) {
-                        System.out.println("Error processing message: " + e.getMessage());
-                        e.printStackTrace();
+                    byte[] payload = message.getPayload();
+                    messagesReceived.increment();
+                    if (LOG_MESSAGES) {
+                        System.out.println("Received message on topic " + topic + ": " + new String(payload));
                     }
+                    if (ReadingBatchSplitter.isBatch(payload)) {
+                        // Client-side batch: inflating and splitting it happens on the batch worker
+                        batchPool.dispatch(topic, payload);
+                        return;
+                    }
+                    dispatch(topic, payload);
                 }
 
                 @Override
@@ -123,7 +303,7 @@ public class InfluxDBConnector {
                 try {
                     mqttClient.connect(options);
                     connected = true;
-                    System.out.println("Connected to MQTT broker");
+                    System.out.println("Connected to MQTT broker: " + mqttClient.getCurrentServerURI());
                 } catch (MqttException me) {
                     System.out.println("Failed to connect, retrying in 5 seconds: " + me.getMessage());
                     try {
@@ -135,23 +315,376 @@ public class InfluxDBConnector {
             }
             
             // Subscribe to topics
-            for (String topic : MQTT_TOPICS) {
-                mqttClient.subscribe(topic, 1);
-                System.out.println("Subscribed to topic: " + topic);
+            if (PARTITION_COUNT > 1) {
+                System.out.println("Processing partition " + PARTITION_INDEX + " of " + PARTITION_COUNT);
             }
+            subscribe(mqttClient);
             
-            // Keep the application running
+            // Keep the application running and report statistics
             while (true) {
-                Thread.sleep(1000);
+                Thread.sleep(STATS_INTERVAL_MS);
+                System.out.println("Worker stats: " + workerPool.stats()
+                        + (PARTITION_COUNT > 1 ? " other partitions=" + otherPartitions.get() : ""));
+                if (!rollupStages.isEmpty()) {
+                    System.out.println("Rollup stats: " + RollupStage.stats(rollupStages));
+                }
+                System.out.println("Routing stats: topics=" + router.getCachedTopics()
+                        + " unrouted=" + unroutedMessages.get());
+                for (Sink sink : sinks) {
+                    // Only name the database when there is more than one
+                    String label = sinks.size() > 1 ? " [" + sink.database + "]" : "";
+                    System.out.println("Writer stats" + label + ": " + sink.writer.stats());
+                    if (sink.spillReplayer != null) {
+                        System.out.println("Spill stats" + label + ": " + sink.spillReplayer.stats());
+                    }
+                }
+                for (BatchingWriter writer : additionalWriters) {
+                    System.out.println("Sink stats [" + writer.getSinkName() + "]: " + writer.stats());
+                }
+                if (lastValues != null) {
+                    lastValues.evictIdle(System.currentTimeMillis());
+                    System.out.println("Cache stats: " + lastValues.stats());
+                }
             }
             
-        } catch (MqttException | InterruptedException e) {
+        } catch (MqttException | InterruptedException | IOException e) {
             System.out.println("Error in connector: " + e.getMessage());
             e.printStackTrace();
         } finally {
-            if (influxDBClient != null) {
-                influxDBClient.close();
+            if (queryApi != null) {
+                queryApi.close();
+            }
+            // Batches first, as splitting them still dispatches to the processing workers
+            if (batchPool != null) {
+                batchPool.close();
+            }
+            if (workerPool != null) {
+                workerPool.close();
+            }
+            for (BatchingWriter writer : additionalWriters) {
+                writer.close();
+            }
+            for (Sink sink : sinks) {
+                if (sink.writer != null) {
+                    sink.writer.close();
+                }
+                if (sink.spillReplayer != null) {
+                    sink.spillReplayer.close();
+                }
+                if (sink.spillLog != null) {
+                    sink.spillLog.close();
+                }
+                if (sink.client != null) {
+                    sink.client.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Hands one reading to the worker that owns its sensor, unless another replica's partition does.
+     */
+    private static void dispatch(String topic, byte[] payload) {
+        if (PARTITION_COUNT > 1
+                && Math.floorMod(SensorPayloadDecoder.partitionHash(topic, payload), PARTITION_COUNT) != PARTITION_INDEX) {
+            // Another replica writes this sensor
+            otherPartitions.incrementAndGet();
+            return;
+        }
+        // Processing happens on the worker threads
+        workerPool.dispatch(topic, payload);
+    }
+
+    private static void subscribe(MqttClient mqttClient) {
+        for (String topic : router.subscriptions()) {
+            if (!SHARED_SUBSCRIPTION_GROUP.isEmpty()) {
+                topic = "$share/" + SHARED_SUBSCRIPTION_GROUP + "/" + topic;
+            }
+            try {
+                mqttClient.subscribe(topic, 1);
+                System.out.println("Subscribed to topic: " + topic);
+            } catch (MqttException e) {
+                // A lost connection reconnects and subscribes again
+                System.out.println("Failed to subscribe to " + topic + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Exposes the statistics the pipeline components already keep.
+     */
+    private static void registerMetrics() {
+        Metrics.counter("connector_other_partition_messages_total", "Messages left to another partition replica",
+                otherPartitions::get);
+        Metrics.gauge("connector_worker_queue_depth", "Messages queued for the processing workers",
+                workerPool::getQueueDepth);
+        Metrics.counter("connector_worker_processed_total", "Messages processed by the workers", workerPool::getProcessed);
+        Metrics.counter("connector_worker_dropped_total", "Messages dropped because a worker queue or its overflow was full",
+                workerPool::getDropped);
+        Metrics.counter("connector_worker_spilled_total", "Messages put into the in-memory worker overflow",
+                workerPool::getSpilled);
+        Metrics.counter("connector_worker_failed_total", "Messages whose processing threw", workerPool::getFailed);
+        Metrics.gauge("connector_batch_queue_depth", "Client-side batches waiting to be split",
+                batchPool::getQueueDepth);
+        Metrics.gauge("connector_routes_cached_topics", "Distinct topics with a cached route", router::getCachedTopics);
+        // Summed over the databases the routes write to
+        Metrics.gauge("connector_write_queue_depth", "Records waiting for the InfluxDB writer",
+                () -> sumOverSinks(sink -> sink.writer.getQueueDepth()));
+        Metrics.counter("connector_records_written_total", "Records written to InfluxDB",
+                () -> sumOverSinks(sink -> sink.writer.getRecordsWritten()));
+        Metrics.counter("connector_records_dropped_total", "Records dropped because the write queue stayed full",
+                () -> sumOverSinks(sink -> sink.writer.getRecordsDropped()));
+        Metrics.counter("connector_write_errors_total", "Failed InfluxDB batch writes",
+                () -> sumOverSinks(sink -> sink.writer.getWriteErrors()));
+        Metrics.gauge("connector_influxdb_up", "1 while InfluxDB accepts writes, 0 while the connector spills",
+                () -> sumOverSinks(sink -> sink.writer.isSinkAvailable() ? 0 : 1) == 0 ? 1 : 0);
+        if (!additionalWriters.isEmpty()) {
+            // Summed over the additional sinks; the stats log has them one by one
+            Metrics.gauge("connector_sink_queue_depth", "Records waiting for the additional sinks",
+                    () -> sumOverAdditional(BatchingWriter::getQueueDepth));
+            Metrics.counter("connector_sink_records_written_total", "Records written to the additional sinks",
+                    () -> sumOverAdditional(BatchingWriter::getRecordsWritten));
+            Metrics.counter("connector_sink_records_dropped_total", "Records an additional sink dropped because it fell behind",
+                    () -> sumOverAdditional(BatchingWriter::getRecordsDropped));
+            Metrics.counter("connector_sink_write_errors_total", "Failed batch writes to the additional sinks",
+                    () -> sumOverAdditional(BatchingWriter::getWriteErrors));
+        }
+        if (!SPILL_DIR.isEmpty()) {
+            Metrics.counter("connector_records_spilled_total", "Records written to the disk spill log",
+                    () -> sumOverSinks(sink -> sink.writer.getRecordsSpilled()));
+            Metrics.gauge("connector_spill_pending_records", "Records in the spill log waiting for replay",
+                    () -> sumOverSinks(sink -> sink.spillLog.getPendingRecords()));
+            Metrics.gauge("connector_spill_size_bytes", "Size of the spill log segments",
+                    () -> sumOverSinks(sink -> sink.spillLog.getSizeBytes()));
+            Metrics.counter("connector_spill_replayed_total", "Spilled records written to InfluxDB",
+                    () -> sumOverSinks(sink -> sink.spillLog.getReplayedRecords()));
+            Metrics.counter("connector_spill_discarded_total", "Spilled records discarded by size or age retention",
+                    () -> sumOverSinks(sink -> sink.spillLog.getDiscardedRecords()));
+        }
+        if (lastValues != null) {
+            Metrics.gauge("connector_cache_sensors", "Sensors in the last-value cache", lastValues::size);
+            Metrics.counter("connector_cache_evicted_total", "Idle sensors removed from the last-value cache",
+                    lastValues::getEvicted);
+            Metrics.counter("connector_cache_rejected_total", "Readings not cached because the cache was full",
+                    lastValues::getRejected);
+        }
+        if (!ROLLUP_WINDOWS.isEmpty()) {
+            Metrics.counter("connector_rollup_windows_written_total", "Aggregated rollup points written", () -> {
+                long total = 0;
+                for (RollupStage stage : rollupStages) {
+                    total += stage.getWindowsWritten();
+                }
+                return total;
+            });
+            Metrics.counter("connector_rollup_windows_dropped_total", "Aggregated rollup points the writer dropped", () -> {
+                long total = 0;
+                for (RollupStage stage : rollupStages) {
+                    total += stage.getWindowsDropped();
+                }
+                return total;
+            });
+            Metrics.counter("connector_rollup_late_total", "Readings too late for their rollup window", () -> {
+                long total = 0;
+                for (RollupStage stage : rollupStages) {
+                    total += stage.getLateReadings();
+                }
+                return total;
+            });
+            Metrics.counter("connector_rollup_future_total", "Readings left out of the rollup for a timestamp too far ahead",
+                    () -> {
+                        long total = 0;
+                        for (RollupStage stage : rollupStages) {
+                            total += stage.getFutureReadings();
+                        }
+                        return total;
+                    });
+        }
+    }
+
+    private static long sumOverSinks(ToLongFunction<Sink> value) {
+        long total = 0;
+        for (Sink sink : sinks) {
+            total += value.applyAsLong(sink);
+        }
+        return total;
+    }
+
+    private static long sumOverAdditional(ToLongFunction<BatchingWriter> value) {
+        long total = 0;
+        for (BatchingWriter writer : additionalWriters) {
+            total += value.applyAsLong(writer);
+        }
+        return total;
+    }
+
+    /**
+     * Creates the instance of an additional sink from its SINKS entry for one database of the routes.
+     * @param routeTarget index of the database in router.getDatabases(), 0 for the default database
+     */
+    private static RecordSink createSink(String spec, int routeTarget, String routeDatabase) throws IOException {
+        int colon = spec.indexOf(':');
+        String type = colon < 0 ? spec : spec.substring(0, colon);
+        String target = colon < 0 ? "" : spec.substring(colon + 1);
+        switch (type) {
+            case "file":
+                // Same layout as the spill log: the default database in the directory itself
+                Path directory = routeTarget == 0 ? Paths.get(target)
+                        : Paths.get(target, "database-" + routeDatabase.replaceAll("[^A-Za-z0-9_.-]", "_"));
+                // The host name keeps the files of replicas on a shared volume apart
+                return new FileSink(directory, System.getenv().getOrDefault("HOSTNAME", "records"),
+                        FILE_SINK_ROLL_BYTES, FILE_SINK_ROLL_INTERVAL_MS, FILE_SINK_MAX_BYTES);
+            case "influx":
+                URI uri = URI.create(target);
+                String url = uri.getScheme() + "://" + uri.getHost() + (uri.getPort() < 0 ? "" : ":" + uri.getPort());
+                String database = uri.getPath() == null ? "" : uri.getPath().replaceFirst("^/", "");
+                if (uri.getHost() == null || database.isEmpty()) {
+                    throw new IllegalArgumentException("Expected influx:http://host:port/<database>: " + spec);
+                }
+                if (routeTarget != 0) {
+                    database = routeDatabase;
+                }
+                String user = INFLUXDB_USER;
+                String password = INFLUXDB_PASSWORD;
+                if (uri.getUserInfo() != null) {
+                    int separator = uri.getUserInfo().indexOf(':');
+                    user = separator < 0 ? uri.getUserInfo() : uri.getUserInfo().substring(0, separator);
+                    password = separator < 0 ? "" : uri.getUserInfo().substring(separator + 1);
+                }
+                InfluxDBClient client = InfluxDBClientFactory.createV1(url, user, password.toCharArray(), database, null);
+                return new InfluxSink(client, "influx:" + url + "/" + database);
+            default:
+                throw new IllegalArgumentException("Unknown sink type " + type + " in " + spec);
+        }
+    }
+
+    /**
+     * Splits a client-side batch into readings and dispatches each to the worker of its sensor.
+     * Runs on the batch worker, so inflating a large batch does not hold up the MQTT client.
+     */
+    static class BatchSplitHandler implements WorkerPool.MessageHandler {
+        private final ReadingBatchSplitter splitter = new ReadingBatchSplitter(MAX_BATCH_BYTES);
+
+        @Override
+        public void handle(String topic, byte[] payload) throws Exception {
+            int readings = splitter.split(topic, payload, InfluxDBConnector::dispatch);
+            if (readings < 0) {
+                parseFailures.increment();
+                System.out.println("Error parsing batch of " + payload.length + " bytes on " + topic);
+            } else {
+                batchesReceived.increment();
+                batchedReadings.add(readings);
             }
         }
     }
+
+    /**
+     * Turns one sensor message into a line-protocol record for the batching writer.
+     * Each processing worker has its own instance.
+     */
+    static class SensorMessageHandler implements WorkerPool.MessageHandler {
+        private final SensorPayloadDecoder decoder = new SensorPayloadDecoder();
+        private final SensorReading reading = new SensorReading();
+        private final LineProtocolEncoder encoder = new LineProtocolEncoder();
+        private final RollupStage rollup;
+
+        SensorMessageHandler() {
+            if (ROLLUP_WINDOWS.isEmpty()) {
+                rollup = null;
+            } else {
+                rollup = new RollupStage(ROLLUP_WINDOWS, ROLLUP_ALLOWED_LATENESS_MS, ROLLUP_MAX_FUTURE_MS, writers);
+                rollupStages.add(rollup);
+            }
+        }
+
+        @Override
+        public void handle(String topic, byte[] payload) throws Exception {
+            // Measurement, extra tags and database from the routing table
+            TopicRouter.Route route = router.route(topic);
+            if (route == null) {
+                unroutedMessages.increment();
+                if (LOG_MESSAGES) {
+                    System.out.println("No route for topic " + topic);
+                }
+                return;
+            }
+            try {
+                // Parse the MQTT message (JSON or binary), falling back to Gson for unexpected JSON shapes
+                if (!decoder.decode(payload, reading)) {
+                    if (BinaryPayloadEncoder.isBinary(payload)) {
+                        parseFailures.increment();
+                        System.out.println("Error parsing binary payload of " + payload.length + " bytes on " + topic);
+                        return;
+                    }
+                    decoderFallbacks.increment();
+                    decodeWithGson(new String(payload), reading);
+                }
+
+                if (lastValues != null) {
+                    lastValues.record(route.measurement, reading);
+                }
+                if (rollup != null) {
+                    rollup.add(route, reading);
+                }
+                if (!WRITE_RAW) {
+                    return;
+                }
+
+                // Encode the point for InfluxDB and hand it to the batching writer
+                String record = encoder.encode(route, reading);
+                if (writers[route.target].write(record)) {
+                    if (LOG_MESSAGES) {
+                        System.out.println("Queued point for InfluxDB: " + record);
+                    }
+                } else if (LOG_MESSAGES) {
+                    // Counted by the writer (connector_records_dropped_total and the stats log)
+                    System.out.println("Write queue full, dropped point: " + record);
+                }
+            } catch (JsonSyntaxException e) {
+                parseFailures.increment();
+                System.out.println("Error parsing JSON: " + e.getMessage());
+            } catch (RuntimeException e) {
+                // Anything else a bad payload can cause, like an empty payload or a malformed number
+                parseFailures.increment();
+                System.out.println("Error processing message on " + topic + ": " + e);
+            }
+        }
+
+        @Override
+        public void idle() throws Exception {
+            if (rollup != null) {
+                rollup.closeWindows(System.currentTimeMillis());
+            }
+        }
+
+        @Override
+        public void close() throws Exception {
+            if (rollup != null) {
+                // Write the incomplete windows instead of losing them
+                rollup.flush();
+            }
+        }
+    }
+
+    /**
+     * Generic JSON path for payloads the streaming decoder does not handle.
+     */
+    public static void decodeWithGson(String payload, SensorReading reading) {
+        JsonObject jsonMessage = gson.fromJson(payload, JsonObject.class);
+        reading.reset(System.currentTimeMillis());
+        if (jsonMessage.has("sensor")) {
+            reading.setSensor(jsonMessage.get("sensor").getAsString());
+        }
+        if (jsonMessage.has("sensor_id")) {
+            reading.setSensorId(jsonMessage.get("sensor_id").getAsString());
+        }
+        if (jsonMessage.has("value")) {
+            reading.setValue(jsonMessage.get("value").getAsDouble());
+        }
+        if (jsonMessage.has("unit")) {
+            reading.setUnit(jsonMessage.get("unit").getAsString());
+        }
+        if (jsonMessage.has("timestamp")) {
+            reading.setTimestampMillis((long) (jsonMessage.get("timestamp").getAsDouble() * 1000));
+        }
+    }
 }
@@ -0,0 +1,75 @@
+package com.example;
+
+import com.influxdb.client.InfluxDBClient;
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+
+import java.util.List;
+
+/**
+ * Writes batches through the InfluxDB write API, one HTTP request per batch sent as a single
+ * newline-separated body. Also suits other stores that accept line protocol on that API.
+ */
+public class InfluxSink implements RecordSink {
+    private static final Metrics.Histogram BATCH_SIZE = Metrics.histogram("connector_write_batch_size",
+            "Records per InfluxDB write request", 1, 0, 16);
+    private static final Metrics.Histogram WRITE_LATENCY = Metrics.latencyHistogram("connector_write_duration_seconds",
+            "Duration of InfluxDB write requests");
+    private static final StartupTimer FIRST_WRITE = new StartupTimer("startup_to_first_write_seconds",
+            "Seconds from process start until the first batch was written to InfluxDB", "First batch written to InfluxDB");
+
+    private final WriteApiBlocking writeApi;
+    private final String name;
+    // Closed with the sink if the sink created it
+    private final InfluxDBClient client;
+    // Request body of the current batch, reused by the writer thread
+    private final StringBuilder body = new StringBuilder();
+
+    /**
+     * A sink on a write API whose client the caller closes.
+     */
+    public InfluxSink(WriteApiBlocking writeApi, String name) {
+        this(writeApi, name, null);
+    }
+
+    /**
+     * A sink that owns its client and closes it with the sink.
+     */
+    public InfluxSink(InfluxDBClient client, String name) {
+        this(client.getWriteApiBlocking(), name, client);
+    }
+
+    private InfluxSink(WriteApiBlocking writeApi, String name, InfluxDBClient client) {
+        this.writeApi = writeApi;
+        this.name = name;
+        this.client = client;
+    }
+
+    @Override
+    public void write(List<String> records) {
+        long start = System.nanoTime();
+        try {
+            body.setLength(0);
+            for (String record : records) {
+                body.append(record).append('\n');
+            }
+            writeApi.writeRecord(WritePrecision.MS, body.toString());
+            FIRST_WRITE.reached();
+        } finally {
+            BATCH_SIZE.record(records.size());
+            WRITE_LATENCY.record(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public void close() {
+        if (client != null) {
+            client.close();
+        }
+    }
+}
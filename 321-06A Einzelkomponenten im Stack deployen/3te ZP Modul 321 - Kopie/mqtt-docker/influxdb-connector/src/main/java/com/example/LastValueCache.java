@@ -0,0 +1,310 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latest value and a short history per {@code sensor_id}, so dashboards and alerting can ask
+ * the connector for current values instead of querying InfluxDB. Served by {@link QueryApi}.
+ *
+ * Every sensor keeps its readings in two primitive ring buffers, timestamps and values, that
+ * grow on demand up to {@code historySize} entries and then overwrite the oldest entry. A
+ * sensor therefore costs at most 16 bytes per entry plus its strings. At most
+ * {@code maxSensors} sensors are cached; readings of further sensors are counted as rejected
+ * until {@link #evictIdle} has removed sensors that sent nothing for {@code idleEvictMs}.
+ *
+ * The latest value is the reading with the newest timestamp, so readings a client replays
+ * from its offline buffer go into the history without replacing it. Staleness and eviction
+ * use the arrival time instead.
+ *
+ * The worker pool routes each sensor to one worker, so every history has a single writer;
+ * queries from the HTTP threads take the same per-sensor lock.
+ */
+public class LastValueCache {
+    private static final int INITIAL_CAPACITY = 8;
+
+    /**
+     * Copy of the latest reading of a sensor.
+     */
+    public static final class Latest {
+        public final String sensorId;
+        public final String measurement;
+        public final String sensor;
+        public final String unit;
+        public final double value;
+        public final long timestampMillis;
+        public final long receivedMillis;
+
+        Latest(History history) {
+            this.sensorId = history.sensorId;
+            this.measurement = history.measurement;
+            this.sensor = history.sensor;
+            this.unit = history.unit;
+            this.value = history.latestValue;
+            this.timestampMillis = history.latestTimestamp;
+            this.receivedMillis = history.receivedMillis;
+        }
+    }
+
+    /**
+     * Minimum and maximum of the readings of a sensor in a time range.
+     */
+    public static final class Range {
+        public final String sensorId;
+        public final String measurement;
+        public final String unit;
+        public final int count;
+        public final double min;
+        public final double max;
+        // False if older readings in the range were already overwritten in the history
+        public final boolean complete;
+
+        Range(History history, int count, double min, double max, boolean complete) {
+            this.sensorId = history.sensorId;
+            this.measurement = history.measurement;
+            this.unit = history.unit;
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.complete = complete;
+        }
+    }
+
+    private static final class History {
+        final String sensorId;
+        String measurement;
+        String sensor;
+        String unit;
+        long[] timestamps = new long[INITIAL_CAPACITY];
+        double[] values = new double[INITIAL_CAPACITY];
+        // Index of the oldest entry
+        int head;
+        int size;
+        boolean wrapped;
+        double latestValue;
+        long latestTimestamp = Long.MIN_VALUE;
+        long receivedMillis;
+        boolean evicted;
+
+        History(String sensorId) {
+            this.sensorId = sensorId;
+        }
+
+        void add(long timestamp, double value, int historySize) {
+            if (size == timestamps.length && size < historySize) {
+                grow(Math.min(size * 2, historySize));
+            }
+            if (size < timestamps.length) {
+                int tail = (head + size) % timestamps.length;
+                timestamps[tail] = timestamp;
+                values[tail] = value;
+                size++;
+            } else {
+                timestamps[head] = timestamp;
+                values[head] = value;
+                head = (head + 1) % timestamps.length;
+                wrapped = true;
+            }
+            if (timestamp >= latestTimestamp) {
+                latestTimestamp = timestamp;
+                latestValue = value;
+            }
+        }
+
+        private void grow(int capacity) {
+            long[] newTimestamps = new long[capacity];
+            double[] newValues = new double[capacity];
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % timestamps.length;
+                newTimestamps[i] = timestamps[index];
+                newValues[i] = values[index];
+            }
+            timestamps = newTimestamps;
+            values = newValues;
+            head = 0;
+        }
+
+        Range range(long fromMillis) {
+            int count = 0;
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            long oldest = Long.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                int index = (head + i) % timestamps.length;
+                long timestamp = timestamps[index];
+                oldest = Math.min(oldest, timestamp);
+                if (timestamp >= fromMillis) {
+                    double value = values[index];
+                    count++;
+                    min = Math.min(min, value);
+                    max = Math.max(max, value);
+                }
+            }
+            return new Range(this, count, min, max, !wrapped || oldest <= fromMillis);
+        }
+    }
+
+    private final int maxSensors;
+    private final int historySize;
+    private final long idleEvictMs;
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param historySize readings kept per sensor for range queries
+     * @param idleEvictMs sensors without a reading for this long are removed by {@link #evictIdle}
+     */
+    public LastValueCache(int maxSensors, int historySize, long idleEvictMs) {
+        if (historySize < 1) {
+            throw new IllegalArgumentException("History size must be at least 1: " + historySize);
+        }
+        this.maxSensors = maxSensors;
+        this.historySize = historySize;
+        this.idleEvictMs = idleEvictMs;
+    }
+
+    /**
+     * Adds a decoded reading. Called by the processing workers.
+     */
+    public void record(String measurement, SensorReading reading) {
+        String sensorId = reading.getSensorId();
+        long now = System.currentTimeMillis();
+        while (true) {
+            History history = histories.get(sensorId);
+            if (history == null) {
+                if (histories.size() >= maxSensors) {
+                    rejected.incrementAndGet();
+                    return;
+                }
+                history = histories.computeIfAbsent(sensorId, History::new);
+            }
+            synchronized (history) {
+                // Otherwise evictIdle removed it meanwhile and the next round creates a new one
+                if (!history.evicted) {
+                    history.measurement = measurement;
+                    history.sensor = reading.getSensor();
+                    history.unit = reading.getUnit();
+                    history.receivedMillis = now;
+                    history.add(reading.getTimestampMillis(), reading.getValue(), historySize);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the latest reading of a sensor, or null if it is not cached
+     */
+    public Latest latest(String sensorId) {
+        History history = histories.get(sensorId);
+        if (history == null) {
+            return null;
+        }
+        synchronized (history) {
+            return new Latest(history);
+        }
+    }
+
+    /**
+     * The latest reading of every cached sensor, ordered by sensor_id.
+     */
+    public List<Latest> latestAll() {
+        List<Latest> result = new ArrayList<>(histories.size());
+        for (History history : histories.values()) {
+            synchronized (history) {
+                result.add(new Latest(history));
+            }
+        }
+        result.sort(Comparator.comparing(latest -> latest.sensorId));
+        return result;
+    }
+
+    /**
+     * Minimum and maximum of the readings with a timestamp of at least {@code fromMillis}.
+     * @return the range, or null if the sensor is not cached
+     */
+    public Range range(String sensorId, long fromMillis) {
+        History history = histories.get(sensorId);
+        if (history == null) {
+            return null;
+        }
+        synchronized (history) {
+            return history.range(fromMillis);
+        }
+    }
+
+    /**
+     * {@link #range} of every cached sensor with readings in the range, ordered by sensor_id.
+     */
+    public List<Range> rangeAll(long fromMillis) {
+        List<Range> result = new ArrayList<>();
+        for (History history : histories.values()) {
+            Range range;
+            synchronized (history) {
+                range = history.range(fromMillis);
+            }
+            if (range.count > 0) {
+                result.add(range);
+            }
+        }
+        result.sort(Comparator.comparing(range -> range.sensorId));
+        return result;
+    }
+
+    /**
+     * Sensors whose last reading arrived more than {@code silentMs} ago, the longest silent first.
+     */
+    public List<Latest> stale(long silentMs, long nowMillis) {
+        List<Latest> result = new ArrayList<>();
+        for (History history : histories.values()) {
+            synchronized (history) {
+                if (nowMillis - history.receivedMillis > silentMs) {
+                    result.add(new Latest(history));
+                }
+            }
+        }
+        result.sort(Comparator.comparingLong(latest -> latest.receivedMillis));
+        return result;
+    }
+
+    /**
+     * Removes the sensors that sent nothing for the idle eviction time.
+     * @return the number of sensors removed
+     */
+    public int evictIdle(long nowMillis) {
+        int removed = 0;
+        for (History history : histories.values()) {
+            synchronized (history) {
+                if (nowMillis - history.receivedMillis > idleEvictMs) {
+                    history.evicted = true;
+                    histories.remove(history.sensorId, history);
+                    removed++;
+                }
+            }
+        }
+        evicted.addAndGet(removed);
+        return removed;
+    }
+
+    public int size() {
+        return histories.size();
+    }
+
+    public long getEvicted() {
+        return evicted.get();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    public String stats() {
+        return String.format("sensors=%d/%d history=%d evicted=%d rejected=%d",
+                histories.size(), maxSensors, historySize, evicted.get(), rejected.get());
+    }
+}
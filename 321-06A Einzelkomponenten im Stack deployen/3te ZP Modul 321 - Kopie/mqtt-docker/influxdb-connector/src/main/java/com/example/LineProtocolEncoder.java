@@ -0,0 +1,206 @@
+package com.example;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes sensor readings as InfluxDB line protocol without building a
+ * {@link com.influxdb.client.write.Point} first.
+ *
+ * The output matches {@code Point.toLineProtocol()} for the same data: tags and fields in
+ * alphabetical order, the same escaping, and floats in plain notation. The escaped
+ * {@code measurement,sensor=...,sensor_id=... } prefix, including the extra tags of the
+ * {@link TopicRouter.Route}, is built once per series (measurement, sensor, sensor_id and
+ * extra tags) and reused, so a reading costs appending its value, unit and timestamp plus
+ * the one String per record that the writer queue, spill log and sinks work with.
+ *
+ * Not thread-safe: every processing worker has its own encoder.
+ */
+public class LineProtocolEncoder {
+    // A cache that has grown this far is cleared rather than tracked per entry
+    private static final int MAX_CACHED_SERIES = 100_000;
+    private static final long NEGATIVE_ZERO = Double.doubleToRawLongBits(-0.0);
+    static final String[] NO_TAGS = new String[0];
+
+    private static final class Prefix {
+        final String measurement;
+        final String sensor;
+        final String[] tagKeys;
+        final String[] tagValues;
+        final String text;
+        // Another series with the same measurement and sensor_id, e.g. under another site tag
+        Prefix next;
+
+        Prefix(String measurement, String sensor, String[] tagKeys, String[] tagValues, String text) {
+            this.measurement = measurement;
+            this.sensor = sensor;
+            this.tagKeys = tagKeys;
+            this.tagValues = tagValues;
+            this.text = text;
+        }
+    }
+
+    // Measurement -> sensor_id -> the series with that sensor_id, chained through Prefix.next
+    private final Map<String, Map<String, Prefix>> prefixes = new HashMap<>();
+    private int cachedSeries;
+    private final StringBuilder line = new StringBuilder(128);
+
+    /**
+     * @return one line-protocol record with millisecond precision
+     */
+    public String encode(TopicRouter.Route route, SensorReading reading) {
+        line.setLength(0);
+        line.append(prefix(route, reading.getSensor(), reading.getSensorId()));
+        appendStringField(line, "unit", reading.getUnit());
+        if (isDefined(reading.getValue())) {
+            line.append(',');
+            appendDoubleField(line, "value", reading.getValue());
+        }
+        line.append(' ').append(reading.getTimestampMillis());
+        return line.toString();
+    }
+
+    private String prefix(TopicRouter.Route route, String sensor, String sensorId) {
+        Map<String, Prefix> bySensorId = prefixes.get(route.measurement);
+        Prefix first = bySensorId == null ? null : bySensorId.get(sensorId);
+        for (Prefix prefix = first; prefix != null; prefix = prefix.next) {
+            // Routes are cached per topic, so the tag arrays are usually the same instances
+            if (prefix.sensor.equals(sensor) && Arrays.equals(prefix.tagValues, route.tagValues)
+                    && Arrays.equals(prefix.tagKeys, route.tagKeys)) {
+                return prefix.text;
+            }
+        }
+        if (cachedSeries >= MAX_CACHED_SERIES) {
+            prefixes.clear();
+            cachedSeries = 0;
+            bySensorId = null;
+            first = null;
+        }
+        if (bySensorId == null) {
+            bySensorId = new HashMap<>();
+            prefixes.put(route.measurement, bySensorId);
+        }
+        Prefix prefix = new Prefix(route.measurement, sensor, route.tagKeys, route.tagValues,
+                seriesPrefix(route.measurement, sensor, sensorId, route.tagKeys, route.tagValues));
+        prefix.next = first;
+        bySensorId.put(sensorId, prefix);
+        cachedSeries++;
+        return prefix.text;
+    }
+
+    /**
+     * The escaped {@code measurement,sensor=...,sensor_id=...} part of a line followed by a space,
+     * with the extra tags ({@code tagKeys} sorted) merged in alphabetical order.
+     */
+    static String seriesPrefix(String measurement, String sensor, String sensorId, String[] tagKeys, String[] tagValues) {
+        StringBuilder prefix = new StringBuilder(measurement.length() + sensor.length() + sensorId.length() + 20);
+        escape(prefix, measurement, false);
+        int tag = 0;
+        for (; tag < tagKeys.length && tagKeys[tag].compareTo("sensor") < 0; tag++) {
+            appendTag(prefix, tagKeys[tag], tagValues[tag]);
+        }
+        appendTag(prefix, "sensor", sensor);
+        for (; tag < tagKeys.length && tagKeys[tag].compareTo("sensor_id") < 0; tag++) {
+            appendTag(prefix, tagKeys[tag], tagValues[tag]);
+        }
+        appendTag(prefix, "sensor_id", sensorId);
+        for (; tag < tagKeys.length; tag++) {
+            appendTag(prefix, tagKeys[tag], tagValues[tag]);
+        }
+        return prefix.append(' ').toString();
+    }
+
+    private static void appendTag(StringBuilder target, String key, String value) {
+        // Like Point, tags with an empty value are left out
+        if (!value.isEmpty()) {
+            target.append(',');
+            escape(target, key, true);
+            target.append('=');
+            escape(target, value, true);
+        }
+    }
+
+    static void appendStringField(StringBuilder target, String key, String value) {
+        escape(target, key, true);
+        target.append("=\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                target.append('\\');
+            }
+            target.append(c);
+        }
+        target.append('"');
+    }
+
+    static void appendLongField(StringBuilder target, String key, long value) {
+        escape(target, key, true);
+        target.append('=').append(value).append('i');
+    }
+
+    /**
+     * Appends a float field in plain notation with at least one fraction digit, like Point does.
+     * Callers skip NaN and infinite values, which line protocol cannot represent.
+     */
+    static void appendDoubleField(StringBuilder target, String key, double value) {
+        escape(target, key, true);
+        target.append('=');
+        if (value == (long) value && Math.abs(value) < 1e15 && Double.doubleToRawLongBits(value) != NEGATIVE_ZERO) {
+            // Whole numbers, including most counters, skip the floating-point formatting
+            target.append((long) value).append(".0");
+            return;
+        }
+        int start = target.length();
+        target.append(value);
+        for (int i = start; i < target.length(); i++) {
+            if (target.charAt(i) == 'E') {
+                // Scientific notation: rare, so the slow exact conversion is fine
+                String plain = new BigDecimal(target.substring(start)).stripTrailingZeros().toPlainString();
+                target.setLength(start);
+                target.append(plain);
+                if (plain.indexOf('.') < 0) {
+                    target.append(".0");
+                }
+                return;
+            }
+        }
+    }
+
+    static boolean isDefined(double value) {
+        return !Double.isNaN(value) && !Double.isInfinite(value);
+    }
+
+    /**
+     * Escapes a measurement ({@code escapeEquals} false), tag key, tag value or field key.
+     */
+    private static void escape(StringBuilder target, String text, boolean escapeEquals) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\n':
+                    target.append("\\n");
+                    continue;
+                case '\r':
+                    target.append("\\r");
+                    continue;
+                case '\t':
+                    target.append("\\t");
+                    continue;
+                case ' ':
+                case ',':
+                    target.append('\\');
+                    break;
+                case '=':
+                    if (escapeEquals) {
+                        target.append('\\');
+                    }
+                    break;
+                default:
+                    break;
+            }
+            target.append(c);
+        }
+    }
+}
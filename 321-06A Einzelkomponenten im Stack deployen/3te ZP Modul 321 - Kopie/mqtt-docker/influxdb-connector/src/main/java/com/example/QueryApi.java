@@ -0,0 +1,248 @@
+package com.example;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * HTTP/JSON API on the {@link LastValueCache}, so current values do not have to be queried
+ * from InfluxDB:
+ *
+ * <pre>
+ * GET /sensors/latest[?sensor_id=ID]             latest reading of one or all sensors
+ * GET /sensors/range?seconds=N[&amp;sensor_id=ID]    min and max over the last N seconds
+ * GET /sensors/stale[?seconds=N]                 sensors without a reading for N seconds
+ * </pre>
+ *
+ * Timestamps are epoch milliseconds. A replica only knows the sensors it processes, so with
+ * a shared subscription or partitions every replica answers for its own share.
+ */
+public class QueryApi implements AutoCloseable {
+    private static final Metrics.Histogram QUERY_LATENCY = Metrics.latencyHistogram("connector_query_duration_seconds",
+            "Time to answer a sensor query from the last-value cache");
+
+    static {
+        // The server writes headers and body separately; without TCP_NODELAY the second write waits
+        // for the client's delayed ACK, 40 ms per request. Read once, when the first server is created.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final LastValueCache cache;
+    private final long defaultStaleMs;
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * @param defaultStaleMs silence after which a sensor is stale when the query gives no seconds
+     */
+    public QueryApi(LastValueCache cache, int port, long defaultStaleMs) throws IOException {
+        this.cache = cache;
+        this.defaultStaleMs = defaultStaleMs;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        // Off the dispatcher thread, so a slow client does not hold up the others
+        this.executor = Executors.newFixedThreadPool(2, task -> {
+            Thread thread = new Thread(task, "query-api");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/sensors/latest", exchange -> handle(exchange, this::latest));
+        server.createContext("/sensors/range", exchange -> handle(exchange, this::range));
+        server.createContext("/sensors/stale", exchange -> handle(exchange, this::stale));
+        server.start();
+    }
+
+    /**
+     * Port the server listens on, useful when it was created with port 0.
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private interface Query {
+        /**
+         * @return the HTTP status; the body has been written to {@code json}
+         */
+        int run(Map<String, String> params, JsonWriter json) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Query query) throws IOException {
+        long start = System.nanoTime();
+        try {
+            StringWriter body = new StringWriter(256);
+            JsonWriter json = new JsonWriter(body);
+            int status;
+            if (!exchange.getRequestMethod().equals("GET")) {
+                status = error(json, 405, "Only GET is supported");
+            } else {
+                try {
+                    status = query.run(parseQuery(exchange.getRequestURI().getRawQuery()), json);
+                } catch (IllegalArgumentException e) {
+                    body.getBuffer().setLength(0);
+                    json = new JsonWriter(body);
+                    status = error(json, 400, e.getMessage());
+                }
+            }
+            json.flush();
+            byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        } finally {
+            exchange.close();
+            QUERY_LATENCY.record(System.nanoTime() - start);
+        }
+    }
+
+    private int latest(Map<String, String> params, JsonWriter json) throws IOException {
+        String sensorId = params.get("sensor_id");
+        if (sensorId != null) {
+            LastValueCache.Latest latest = cache.latest(sensorId);
+            if (latest == null) {
+                return error(json, 404, "Unknown sensor_id " + sensorId);
+            }
+            writeLatest(json, latest, System.currentTimeMillis());
+            return 200;
+        }
+        writeLatestList(json, cache.latestAll());
+        return 200;
+    }
+
+    private int range(Map<String, String> params, JsonWriter json) throws IOException {
+        long seconds = parseSeconds(params.get("seconds"));
+        if (seconds < 0) {
+            throw new IllegalArgumentException("seconds is required");
+        }
+        long from = System.currentTimeMillis() - seconds * 1000;
+        String sensorId = params.get("sensor_id");
+        if (sensorId != null) {
+            LastValueCache.Range range = cache.range(sensorId, from);
+            if (range == null) {
+                return error(json, 404, "Unknown sensor_id " + sensorId);
+            }
+            writeRange(json, range, from);
+            return 200;
+        }
+        json.beginArray();
+        for (LastValueCache.Range range : cache.rangeAll(from)) {
+            writeRange(json, range, from);
+        }
+        json.endArray();
+        return 200;
+    }
+
+    private int stale(Map<String, String> params, JsonWriter json) throws IOException {
+        long seconds = parseSeconds(params.get("seconds"));
+        long silentMs = seconds < 0 ? defaultStaleMs : seconds * 1000;
+        writeLatestList(json, cache.stale(silentMs, System.currentTimeMillis()));
+        return 200;
+    }
+
+    private static void writeLatestList(JsonWriter json, List<LastValueCache.Latest> list) throws IOException {
+        long now = System.currentTimeMillis();
+        json.beginArray();
+        for (LastValueCache.Latest latest : list) {
+            writeLatest(json, latest, now);
+        }
+        json.endArray();
+    }
+
+    private static void writeLatest(JsonWriter json, LastValueCache.Latest latest, long now) throws IOException {
+        json.beginObject();
+        json.name("sensor_id").value(latest.sensorId);
+        json.name("measurement").value(latest.measurement);
+        json.name("sensor").value(latest.sensor);
+        json.name("value");
+        writeNumber(json, latest.value);
+        json.name("unit").value(latest.unit);
+        json.name("timestamp").value(latest.timestampMillis);
+        json.name("received").value(latest.receivedMillis);
+        json.name("age_ms").value(now - latest.receivedMillis);
+        json.endObject();
+    }
+
+    private static void writeRange(JsonWriter json, LastValueCache.Range range, long from) throws IOException {
+        json.beginObject();
+        json.name("sensor_id").value(range.sensorId);
+        json.name("measurement").value(range.measurement);
+        json.name("unit").value(range.unit);
+        json.name("from").value(from);
+        json.name("count").value(range.count);
+        if (range.count > 0) {
+            json.name("min");
+            writeNumber(json, range.min);
+            json.name("max");
+            writeNumber(json, range.max);
+        }
+        json.name("complete").value(range.complete);
+        json.endObject();
+    }
+
+    private static void writeNumber(JsonWriter json, double value) throws IOException {
+        // JSON has no NaN or infinity
+        if (Double.isFinite(value)) {
+            json.value(value);
+        } else {
+            json.nullValue();
+        }
+    }
+
+    private static int error(JsonWriter json, int status, String message) throws IOException {
+        json.beginObject();
+        json.name("error").value(message);
+        json.endObject();
+        return status;
+    }
+
+    /**
+     * @return the number of seconds, or -1 if the parameter is missing
+     */
+    private static long parseSeconds(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            long seconds = Long.parseLong(value);
+            if (seconds >= 0) {
+                return Math.min(seconds, Integer.MAX_VALUE);
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("seconds must be a non-negative integer: " + value);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            params.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,195 @@
+package com.example;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits the batch payloads of client-side batching ({@code ReadingBatcher} in the clients)
+ * into single readings, so they are routed, decoded and written like separately published ones.
+ *
+ * Recognised are JSON arrays of reading objects, binary batches ({@code 0xB2}, a varint count
+ * and length-prefixed {@link BinaryPayloadEncoder} readings) and either of them deflated
+ * behind a {@code 0xB3} marker. Splitting happens on its own worker ahead of the processing
+ * workers, because the readings of one batch usually belong to different sensors and so to
+ * different workers.
+ *
+ * Not thread-safe: each splitting worker owns an instance.
+ */
+public class ReadingBatchSplitter {
+    private static final int BATCH_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.BATCH;
+    private static final int COMPRESSED_MARKER = BinaryPayloadEncoder.MARKER | BinaryPayloadEncoder.COMPRESSED;
+
+    public interface ReadingConsumer {
+        void accept(String topic, byte[] reading) throws Exception;
+    }
+
+    private final int maxInflatedBytes;
+    private final Inflater inflater = new Inflater();
+    private byte[] inflated = new byte[8192];
+
+    /**
+     * @param maxInflatedBytes compressed batches that inflate to more than this are rejected
+     */
+    public ReadingBatchSplitter(int maxInflatedBytes) {
+        this.maxInflatedBytes = maxInflatedBytes;
+    }
+
+    /**
+     * True if a payload is a batch rather than a single reading.
+     */
+    public static boolean isBatch(byte[] payload) {
+        if (payload.length == 0) {
+            return false;
+        }
+        int first = payload[0] & 0xFF;
+        if (first == BATCH_MARKER || first == COMPRESSED_MARKER) {
+            return true;
+        }
+        for (byte b : payload) {
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands every reading of a batch to {@code consumer}, in batch order.
+     * @return the number of readings, or -1 if the batch is malformed; readings before the
+     *         malformed part have been handed over already
+     */
+    public int split(String topic, byte[] payload, ReadingConsumer consumer) throws Exception {
+        int first = payload[0] & 0xFF;
+        if (first == COMPRESSED_MARKER) {
+            int length = inflate(payload);
+            if (length < 0) {
+                return -1;
+            }
+            byte[] batch = Arrays.copyOf(inflated, length);
+            return isBatch(batch) && (batch[0] & 0xFF) != COMPRESSED_MARKER ? split(topic, batch, consumer) : -1;
+        }
+        if (first == BATCH_MARKER) {
+            return splitBinary(topic, payload, consumer);
+        }
+        return splitJson(topic, payload, consumer);
+    }
+
+    private int inflate(byte[] payload) {
+        inflater.reset();
+        inflater.setInput(payload, 1, payload.length - 1);
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == inflated.length) {
+                    if (length >= maxInflatedBytes) {
+                        return -1;
+                    }
+                    inflated = Arrays.copyOf(inflated, Math.min(length * 2, maxInflatedBytes));
+                }
+                int n = inflater.inflate(inflated, length, inflated.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return -1;
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            return -1;
+        }
+        return length;
+    }
+
+    private static int splitBinary(String topic, byte[] payload, ReadingConsumer consumer) throws Exception {
+        int[] pos = {1};
+        long count = readVarint(payload, pos);
+        if (count < 0) {
+            return -1;
+        }
+        for (long i = 0; i < count; i++) {
+            long length = readVarint(payload, pos);
+            if (length < 0 || length > payload.length - pos[0]) {
+                return -1;
+            }
+            consumer.accept(topic, Arrays.copyOfRange(payload, pos[0], pos[0] + (int) length));
+            pos[0] += (int) length;
+        }
+        return pos[0] == payload.length ? (int) count : -1;
+    }
+
+    /**
+     * Splits a JSON array at its top-level commas, honouring strings and nested values.
+     */
+    private static int splitJson(String topic, byte[] payload, ReadingConsumer consumer) throws Exception {
+        int pos = skipWhitespace(payload, 0);
+        if (pos >= payload.length || payload[pos] != '[') {
+            return -1;
+        }
+        pos = skipWhitespace(payload, pos + 1);
+        if (pos < payload.length && payload[pos] == ']') {
+            return skipWhitespace(payload, pos + 1) == payload.length ? 0 : -1;
+        }
+        int count = 0;
+        int start = pos;
+        int depth = 0;
+        boolean inString = false;
+        for (; pos < payload.length; pos++) {
+            byte b = payload[pos];
+            if (inString) {
+                if (b == '\\') {
+                    pos++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && depth > 0) {
+                depth--;
+            } else if ((b == ',' || b == ']') && depth == 0) {
+                int end = pos;
+                while (end > start && isWhitespace(payload[end - 1])) {
+                    end--;
+                }
+                if (end == start) {
+                    return -1;
+                }
+                consumer.accept(topic, Arrays.copyOfRange(payload, start, end));
+                count++;
+                if (b == ']') {
+                    return skipWhitespace(payload, pos + 1) == payload.length ? count : -1;
+                }
+                start = skipWhitespace(payload, pos + 1);
+                pos = start - 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint at {@code pos[0]} and advances it.
+     * @return the value, or -1 if it is truncated or does not fit in 31 bits
+     */
+    private static long readVarint(byte[] data, int[] pos) {
+        long value = 0;
+        for (int shift = 0; shift < 35 && pos[0] < data.length; shift += 7) {
+            byte b = data[pos[0]++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value <= Integer.MAX_VALUE ? value : -1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] data, int pos) {
+        while (pos < data.length && isWhitespace(data[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\r' || b == '\t';
+    }
+}
@@ -0,0 +1,28 @@
+package com.example;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination of line-protocol records, fed in batches by the thread of a {@link BatchingWriter}.
+ */
+public interface RecordSink extends AutoCloseable {
+
+    /**
+     * Writes one batch. Only called from the thread of the owning writer.
+     * @throws Exception if the batch could not be written; the writer then spills or drops it
+     */
+    void write(List<String> records) throws Exception;
+
+    /**
+     * Short description for log messages and statistics.
+     */
+    String name();
+
+    /**
+     * Called by the owning writer after its last batch.
+     */
+    @Override
+    default void close() throws IOException {
+    }
+}
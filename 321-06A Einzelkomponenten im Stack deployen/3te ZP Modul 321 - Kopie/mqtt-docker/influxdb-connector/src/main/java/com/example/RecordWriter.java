@@ -0,0 +1,12 @@
+package com.example;
+
+/**
+ * Accepts the line-protocol records produced by the processing workers.
+ */
+public interface RecordWriter {
+
+    /**
+     * @return false if the record was dropped
+     */
+    boolean write(String record) throws InterruptedException;
+}
@@ -0,0 +1,402 @@
+package com.example;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downsamples readings into fixed windows per (measurement, sensor_id) before they are written.
+ *
+ * For every configured window length, each series keeps one open window with primitive
+ * count/min/max/sum/last fields. When a window is closed it is written as one point to
+ * {@code <measurement>_<window>} (e.g. {@code temperature_10s}) at the window start, with
+ * the tags of the raw readings, the fields {@code count}, {@code min}, {@code max},
+ * {@code mean}, {@code sum}, {@code last} and {@code unit}, and into the database of the
+ * series' {@link TopicRouter.Route}.
+ *
+ * Windows are aligned to the epoch. A window closes when a reading of the same series for a
+ * later window arrives, or when the watermark passes its end. The watermark is the newest
+ * reading timestamp seen, moved on with the wall clock while no newer one arrives, minus
+ * the allowed lateness; a reading for a window that is already closed counts as late and
+ * only goes into the raw stream. The watermark is shared by all series of a stage, so a
+ * reading stamped more than {@code maxFutureMs} ahead of the wall clock (a sensor clock
+ * running fast, a bad {@code timestamp}) is rejected before it can move the watermark and
+ * make every other series late; rejections are counted and logged once per second.
+ *
+ * Not thread-safe: every processing worker has its own stage. Since the worker pool routes
+ * each sensor to one worker, every series lives in exactly one stage.
+ */
+public class RollupStage {
+
+    public static final class Window {
+        final String name;
+        final long millis;
+
+        Window(String name, long millis) {
+            this.name = name;
+            this.millis = millis;
+        }
+
+        /**
+         * Parses a comma-separated list of window lengths such as {@code 10s,1m,1h}
+         * (units ms, s, m, h).
+         */
+        public static List<Window> parseList(String spec) {
+            List<Window> windows = new ArrayList<>();
+            for (String part : spec.split(",")) {
+                String name = part.trim();
+                if (name.isEmpty()) {
+                    continue;
+                }
+                int unitStart = 0;
+                while (unitStart < name.length() && Character.isDigit(name.charAt(unitStart))) {
+                    unitStart++;
+                }
+                long amount = Long.parseLong(name.substring(0, unitStart));
+                String unit = name.substring(unitStart);
+                long millis;
+                switch (unit) {
+                    case "ms":
+                        millis = amount;
+                        break;
+                    case "s":
+                        millis = amount * 1000;
+                        break;
+                    case "m":
+                        millis = amount * 60_000;
+                        break;
+                    case "h":
+                        millis = amount * 3_600_000;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown unit in rollup window " + name);
+                }
+                if (millis <= 0) {
+                    throw new IllegalArgumentException("Rollup window must be positive: " + name);
+                }
+                windows.add(new Window(name, millis));
+            }
+            return windows;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private static final class Accumulator {
+        long start;
+        long count;
+        double min;
+        double max;
+        double sum;
+        double last;
+        long lastTimestamp;
+        // End of the newest window already written for this series
+        long closedUntil = Long.MIN_VALUE;
+    }
+
+    private static final class Series {
+        final String measurement;
+        final String sensorId;
+        final Accumulator[] accumulators;
+        // Escaped measurement and tags per window, built on the first write
+        final String[] prefixes;
+        String sensor;
+        String[] tagKeys;
+        String[] tagValues;
+        RecordWriter writer;
+        String unit;
+        long lastSeenMillis;
+        int index;
+
+        Series(String measurement, String sensorId, int windows) {
+            this.measurement = measurement;
+            this.sensorId = sensorId;
+            this.accumulators = new Accumulator[windows];
+            this.prefixes = new String[windows];
+            for (int i = 0; i < windows; i++) {
+                accumulators[i] = new Accumulator();
+            }
+        }
+    }
+
+    private static final long MAINTENANCE_INTERVAL_MS = 1000;
+
+    private final Window[] windows;
+    private final String[] measurementSuffixes;
+    private final long allowedLatenessMs;
+    private final long evictAfterMs;
+    private final RecordWriter[] writers;
+    private final StringBuilder line = new StringBuilder(256);
+
+    private final Map<String, Map<String, Series>> seriesByMeasurement = new HashMap<>();
+    private final List<Series> series = new ArrayList<>();
+    private long maxEventMillis = Long.MIN_VALUE;
+    private long maxEventSeenAtMillis;
+    private long nextMaintenanceMillis;
+    private final long maxFutureMs;
+    // Latest reading rejected since the last log line
+    private long futureSinceLog;
+    private String futureSensorId;
+    private long futureTimestamp;
+
+    // Counters, read by the stats thread; late counts once per window a reading misses
+    private final AtomicLong readings = new AtomicLong();
+    private final AtomicLong windowsWritten = new AtomicLong();
+    private final AtomicLong windowsDropped = new AtomicLong();
+    private final AtomicLong lateReadings = new AtomicLong();
+    private final AtomicLong futureReadings = new AtomicLong();
+
+    /**
+     * @param allowedLatenessMs how long after its end a window still accepts readings
+     * @param maxFutureMs how far ahead of the wall clock a reading's timestamp may be
+     * @param writers writer per database, indexed like {@link TopicRouter#getDatabases()}
+     */
+    public RollupStage(List<Window> windows, long allowedLatenessMs, long maxFutureMs, RecordWriter... writers) {
+        this.windows = windows.toArray(new Window[0]);
+        this.measurementSuffixes = new String[this.windows.length];
+        long longest = 0;
+        for (int i = 0; i < this.windows.length; i++) {
+            measurementSuffixes[i] = "_" + this.windows[i].name;
+            longest = Math.max(longest, this.windows[i].millis);
+        }
+        this.allowedLatenessMs = allowedLatenessMs;
+        this.maxFutureMs = maxFutureMs;
+        // Forget a sensor once it has been silent for a few of the longest windows
+        this.evictAfterMs = 3 * longest + allowedLatenessMs;
+        this.writers = writers;
+    }
+
+    /**
+     * Adds one reading to the open windows of its series.
+     */
+    public void add(TopicRouter.Route route, SensorReading reading) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long timestamp = reading.getTimestampMillis();
+        if (timestamp > now + maxFutureMs) {
+            // Would close the windows of every other series on this worker
+            futureReadings.incrementAndGet();
+            futureSinceLog++;
+            futureSensorId = reading.getSensorId();
+            futureTimestamp = timestamp;
+            if (now >= nextMaintenanceMillis) {
+                closeWindows(now);
+            }
+            return;
+        }
+        if (timestamp > maxEventMillis) {
+            maxEventMillis = timestamp;
+            maxEventSeenAtMillis = now;
+        }
+        long watermark = watermark(now);
+
+        Series current = lookup(route.measurement, reading.getSensorId());
+        if (!reading.getSensor().equals(current.sensor) || !Arrays.equals(route.tagValues, current.tagValues)
+                || !Arrays.equals(route.tagKeys, current.tagKeys)) {
+            current.sensor = reading.getSensor();
+            current.tagKeys = route.tagKeys;
+            current.tagValues = route.tagValues;
+            Arrays.fill(current.prefixes, null);
+        }
+        current.writer = writers[route.target];
+        current.unit = reading.getUnit();
+        current.lastSeenMillis = now;
+        readings.incrementAndGet();
+
+        double value = reading.getValue();
+        for (int i = 0; i < windows.length; i++) {
+            long length = windows[i].millis;
+            long start = timestamp - Math.floorMod(timestamp, length);
+            Accumulator accumulator = current.accumulators[i];
+            if (start + length <= watermark || start < accumulator.closedUntil
+                    || (accumulator.count > 0 && start < accumulator.start)) {
+                lateReadings.incrementAndGet();
+                continue;
+            }
+            if (accumulator.count > 0 && start > accumulator.start) {
+                // First reading of the next window: the previous one is complete
+                emit(current, i);
+            }
+            if (accumulator.count == 0) {
+                accumulator.start = start;
+                accumulator.min = value;
+                accumulator.max = value;
+                accumulator.sum = 0;
+                accumulator.lastTimestamp = timestamp;
+            } else {
+                accumulator.min = Math.min(accumulator.min, value);
+                accumulator.max = Math.max(accumulator.max, value);
+            }
+            accumulator.count++;
+            accumulator.sum += value;
+            if (timestamp >= accumulator.lastTimestamp) {
+                accumulator.last = value;
+                accumulator.lastTimestamp = timestamp;
+            }
+        }
+
+        if (now >= nextMaintenanceMillis) {
+            closeWindows(now);
+        }
+    }
+
+    /**
+     * Writes every window the watermark has passed and forgets long-silent series.
+     * Called from {@link #add} about once a second and by the worker while it is idle.
+     */
+    public void closeWindows(long now) throws InterruptedException {
+        nextMaintenanceMillis = now + MAINTENANCE_INTERVAL_MS;
+        if (futureSinceLog > 0) {
+            System.out.println("Rollup skipped " + futureSinceLog + " readings stamped more than " + maxFutureMs
+                    + " ms ahead of the clock, latest sensor_id=" + futureSensorId + " timestamp=" + futureTimestamp);
+            futureSinceLog = 0;
+        }
+        if (maxEventMillis == Long.MIN_VALUE) {
+            return;
+        }
+        long watermark = watermark(now);
+        for (int n = series.size() - 1; n >= 0; n--) {
+            Series current = series.get(n);
+            boolean open = false;
+            for (int i = 0; i < windows.length; i++) {
+                Accumulator accumulator = current.accumulators[i];
+                if (accumulator.count > 0 && accumulator.start + windows[i].millis <= watermark) {
+                    emit(current, i);
+                }
+                open |= accumulator.count > 0;
+            }
+            if (!open && now - current.lastSeenMillis > evictAfterMs) {
+                remove(current);
+            }
+        }
+    }
+
+    /**
+     * Writes all open windows, including incomplete ones, e.g. on shutdown.
+     */
+    public void flush() throws InterruptedException {
+        for (Series current : series) {
+            for (int i = 0; i < windows.length; i++) {
+                if (current.accumulators[i].count > 0) {
+                    emit(current, i);
+                }
+            }
+        }
+    }
+
+    private long watermark(long now) {
+        // Event time, carried forward by the wall clock while no newer reading arrives
+        return maxEventMillis + (now - maxEventSeenAtMillis) - allowedLatenessMs;
+    }
+
+    private Series lookup(String measurement, String sensorId) {
+        Map<String, Series> bySensor = seriesByMeasurement.get(measurement);
+        if (bySensor == null) {
+            bySensor = new HashMap<>();
+            seriesByMeasurement.put(measurement, bySensor);
+        }
+        Series current = bySensor.get(sensorId);
+        if (current == null) {
+            current = new Series(measurement, sensorId, windows.length);
+            current.index = series.size();
+            series.add(current);
+            bySensor.put(sensorId, current);
+        }
+        return current;
+    }
+
+    private void remove(Series current) {
+        // Swap with the last entry so removal stays O(1)
+        Series last = series.remove(series.size() - 1);
+        if (last != current) {
+            series.set(current.index, last);
+            last.index = current.index;
+        }
+        Map<String, Series> bySensor = seriesByMeasurement.get(current.measurement);
+        bySensor.remove(current.sensorId);
+        if (bySensor.isEmpty()) {
+            seriesByMeasurement.remove(current.measurement);
+        }
+    }
+
+    private void emit(Series current, int window) throws InterruptedException {
+        Accumulator accumulator = current.accumulators[window];
+        if (current.prefixes[window] == null) {
+            current.prefixes[window] = LineProtocolEncoder.seriesPrefix(
+                    current.measurement + measurementSuffixes[window], current.sensor, current.sensorId,
+                    current.tagKeys, current.tagValues);
+        }
+        // Fields in the alphabetical order Point would use
+        line.setLength(0);
+        line.append(current.prefixes[window]);
+        LineProtocolEncoder.appendLongField(line, "count", accumulator.count);
+        appendDouble("last", accumulator.last);
+        appendDouble("max", accumulator.max);
+        appendDouble("mean", accumulator.sum / accumulator.count);
+        appendDouble("min", accumulator.min);
+        appendDouble("sum", accumulator.sum);
+        line.append(',');
+        LineProtocolEncoder.appendStringField(line, "unit", current.unit);
+        line.append(' ').append(accumulator.start);
+        if (current.writer.write(line.toString())) {
+            windowsWritten.incrementAndGet();
+        } else {
+            // The writer dropped it; the window stays closed, as reopening it would write a partial aggregate
+            windowsDropped.incrementAndGet();
+        }
+        accumulator.closedUntil = accumulator.start + windows[window].millis;
+        accumulator.count = 0;
+    }
+
+    private void appendDouble(String key, double value) {
+        if (LineProtocolEncoder.isDefined(value)) {
+            line.append(',');
+            LineProtocolEncoder.appendDoubleField(line, key, value);
+        }
+    }
+
+    public long getReadings() {
+        return readings.get();
+    }
+
+    public long getWindowsWritten() {
+        return windowsWritten.get();
+    }
+
+    public long getWindowsDropped() {
+        return windowsDropped.get();
+    }
+
+    public long getLateReadings() {
+        return lateReadings.get();
+    }
+
+    public long getFutureReadings() {
+        return futureReadings.get();
+    }
+
+    /**
+     * Summary over the stages of all workers.
+     */
+    public static String stats(List<RollupStage> stages) {
+        long readings = 0;
+        long written = 0;
+        long dropped = 0;
+        long late = 0;
+        long future = 0;
+        for (RollupStage stage : stages) {
+            readings += stage.getReadings();
+            written += stage.getWindowsWritten();
+            dropped += stage.getWindowsDropped();
+            late += stage.getLateReadings();
+            future += stage.getFutureReadings();
+        }
+        return String.format("readings=%d windows written=%d dropped=%d late=%d future=%d reduction=%.1fx",
+                readings, written, dropped, late, future, written == 0 ? 0.0 : (double) readings / written);
+    }
+}
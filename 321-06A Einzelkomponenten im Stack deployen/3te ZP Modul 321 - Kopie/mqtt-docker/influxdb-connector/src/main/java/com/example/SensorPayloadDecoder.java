@@ -0,0 +1,530 @@
+package com.example;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming decoder for the flat JSON payloads our sensors publish, e.g.
+ * {@code {"sensor":"temperature","sensor_id":"temp001","value":21.3,"unit":"°C","timestamp":1.7E9}}
+ * or MySensor's {@code {"value":12.34,"sensor":1,"timestamp":1700000000000}}.
+ *
+ * Reads {@code sensor}, {@code sensor_id}, {@code value}, {@code unit} and
+ * {@code timestamp} straight from the payload bytes into a reused
+ * {@link SensorReading}. String values are looked up in a small byte-keyed cache,
+ * so a steady stream of known sensors does not allocate. Anything the decoder does
+ * not fully understand (escapes, nested values, quoted numbers, ...) makes
+ * {@link #decode} return false and the caller falls back to Gson.
+ *
+ * Payloads in the binary format of {@link BinaryPayloadEncoder} are recognised by
+ * their first byte and decoded the same way; a malformed one also returns false.
+ *
+ * Not thread-safe: use one instance per processing thread.
+ */
+public class SensorPayloadDecoder {
+    private static final byte[] KEY_SENSOR = ascii("sensor");
+    private static final byte[] KEY_SENSOR_ID = ascii("sensor_id");
+    private static final byte[] KEY_VALUE = ascii("value");
+    private static final byte[] KEY_UNIT = ascii("unit");
+    private static final byte[] KEY_TIMESTAMP = ascii("timestamp");
+    private static final byte[] KEY_SENSOR_ID_QUOTED = ascii("\"sensor_id\"");
+
+    // Exactly representable powers of ten for the fast double path
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private static final int STRING_CACHE_SIZE = 4096;  // must be a power of two
+
+    private final byte[][] cachedBytes = new byte[STRING_CACHE_SIZE][];
+    private final String[] cachedStrings = new String[STRING_CACHE_SIZE];
+
+    // Parser state for the current payload
+    private byte[] buf;
+    private int pos;
+    private int end;
+    private double number;
+
+    /**
+     * Decodes a payload into {@code reading}.
+     * @return false if the payload is not in the expected flat shape; {@code reading} is then unspecified
+     */
+    public boolean decode(byte[] payload, SensorReading reading) {
+        reading.reset(System.currentTimeMillis());
+        buf = payload;
+        pos = 0;
+        end = payload.length;
+        try {
+            if (BinaryPayloadEncoder.isBinary(payload)) {
+                return decodeBinary(reading);
+            }
+            skipWhitespace();
+            if (!consume('{')) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume('}')) {
+                return atEnd();
+            }
+            while (true) {
+                if (!consume('"')) {
+                    return false;
+                }
+                int keyStart = pos;
+                int keyEnd = scanString();
+                if (keyEnd < 0) {
+                    return false;
+                }
+                skipWhitespace();
+                if (!consume(':')) {
+                    return false;
+                }
+                skipWhitespace();
+                if (!readField(keyStart, keyEnd - keyStart, reading)) {
+                    return false;
+                }
+                skipWhitespace();
+                if (consume(',')) {
+                    skipWhitespace();
+                } else if (consume('}')) {
+                    return atEnd();
+                } else {
+                    return false;
+                }
+            }
+        } finally {
+            buf = null;
+        }
+    }
+
+    private boolean decodeBinary(SensorReading reading) {
+        if ((buf[pos++] & 0xFF & ~BinaryPayloadEncoder.MARKER_MASK) != BinaryPayloadEncoder.VERSION_1 || pos >= end) {
+            return false;
+        }
+        int flags = buf[pos++];
+        if ((flags & BinaryPayloadEncoder.FLAG_SENSOR) != 0) {
+            String s = readBinaryString();
+            if (s == null) {
+                return false;
+            }
+            reading.setSensor(s);
+        }
+        if ((flags & BinaryPayloadEncoder.FLAG_SENSOR_ID) != 0) {
+            String s = readBinaryString();
+            if (s == null) {
+                return false;
+            }
+            reading.setSensorId(s);
+        }
+        if ((flags & BinaryPayloadEncoder.FLAG_UNIT) != 0) {
+            String s = readBinaryString();
+            if (s == null) {
+                return false;
+            }
+            reading.setUnit(s);
+        }
+        if ((flags & BinaryPayloadEncoder.FLAG_VALUE) != 0) {
+            if ((flags & BinaryPayloadEncoder.FLAG_DECIMAL) != 0) {
+                long zigzag = readVarint();
+                if (pos < 0 || pos >= end) {
+                    return false;
+                }
+                int scale = buf[pos++];
+                if (scale < 0 || scale > BinaryPayloadEncoder.MAX_SCALE) {
+                    return false;
+                }
+                long mantissa = (zigzag >>> 1) ^ -(zigzag & 1);
+                reading.setValue(mantissa / BinaryPayloadEncoder.POWERS_OF_TEN[scale]);
+            } else {
+                if (end - pos < 8) {
+                    return false;
+                }
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | (buf[pos++] & 0xFF);
+                }
+                reading.setValue(Double.longBitsToDouble(bits));
+            }
+        }
+        if ((flags & BinaryPayloadEncoder.FLAG_TIMESTAMP) != 0) {
+            long timestamp = readVarint();
+            if (pos < 0) {
+                return false;
+            }
+            reading.setTimestampMillis(timestamp);
+        }
+        return pos == end;
+    }
+
+    private String readBinaryString() {
+        long length = readVarint();
+        if (pos < 0 || length < 0 || length > end - pos) {
+            return null;
+        }
+        String s = cachedString(pos, (int) length);
+        pos += (int) length;
+        return s;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint; sets {@link #pos} to -1 if it is truncated or too long.
+     */
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            if (pos >= end) {
+                break;
+            }
+            byte b = buf[pos++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        pos = -1;
+        return 0;
+    }
+
+    /**
+     * Hashes the {@code sensor_id} value of a payload without decoding it, for
+     * partitioning messages by sensor.
+     * @return a non-negative hash, or -1 if the payload has no sensor_id
+     */
+    public static long sensorIdHash(byte[] payload) {
+        if (BinaryPayloadEncoder.isBinary(payload)) {
+            return binarySensorIdHash(payload);
+        }
+        int keyAt = indexOf(payload, KEY_SENSOR_ID_QUOTED, 0);
+        if (keyAt < 0) {
+            return -1;
+        }
+        int i = keyAt + KEY_SENSOR_ID_QUOTED.length;
+        while (i < payload.length && (payload[i] == ' ' || payload[i] == ':' || payload[i] == '\t')) {
+            i++;
+        }
+        if (i < payload.length && payload[i] == '"') {
+            i++;
+        }
+        int hash = 1;
+        while (i < payload.length && payload[i] != '"' && payload[i] != ',' && payload[i] != '}') {
+            hash = 31 * hash + payload[i];
+            i++;
+        }
+        return hash & 0xffffffffL;
+    }
+
+    /**
+     * Same hash as for JSON over the sensor_id bytes of a binary payload, so a sensor
+     * lands on the same partition whichever format it uses.
+     */
+    private static long binarySensorIdHash(byte[] payload) {
+        if (payload.length < 2) {
+            return -1;
+        }
+        int flags = payload[1];
+        if ((flags & BinaryPayloadEncoder.FLAG_SENSOR_ID) == 0) {
+            return -1;
+        }
+        int i = 2;
+        for (int field = 0; field < 2; field++) {
+            // Length of sensor (if present), then of sensor_id
+            if (field == 0 && (flags & BinaryPayloadEncoder.FLAG_SENSOR) == 0) {
+                continue;
+            }
+            long length = 0;
+            int shift = 0;
+            while (i < payload.length && shift < 35) {
+                byte b = payload[i++];
+                length |= (long) (b & 0x7F) << shift;
+                shift += 7;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            if (field == 0) {
+                i += (int) Math.min(length, payload.length);
+                continue;
+            }
+            if (length > payload.length - i) {
+                return -1;
+            }
+            int hash = 1;
+            for (int end = i + (int) length; i < end; i++) {
+                hash = 31 * hash + payload[i];
+            }
+            return hash & 0xffffffffL;
+        }
+        return -1;
+    }
+
+    /**
+     * Partition key of a message: the sensor_id hash, or the topic hash if there is no sensor_id.
+     */
+    public static int partitionHash(String topic, byte[] payload) {
+        long keyHash = sensorIdHash(payload);
+        return keyHash >= 0 ? (int) keyHash : topic.hashCode();
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = from; i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private boolean readField(int keyStart, int keyLength, SensorReading reading) {
+        if (keyEquals(keyStart, keyLength, KEY_VALUE)) {
+            if (!readNumber()) {
+                return false;
+            }
+            reading.setValue(number);
+        } else if (keyEquals(keyStart, keyLength, KEY_TIMESTAMP)) {
+            if (!readNumber()) {
+                return false;
+            }
+            // Sensors send seconds as a double
+            reading.setTimestampMillis((long) (number * 1000));
+        } else if (keyEquals(keyStart, keyLength, KEY_SENSOR)) {
+            String s = readText();
+            if (s == null) {
+                return false;
+            }
+            reading.setSensor(s);
+        } else if (keyEquals(keyStart, keyLength, KEY_SENSOR_ID)) {
+            String s = readText();
+            if (s == null) {
+                return false;
+            }
+            reading.setSensorId(s);
+        } else if (keyEquals(keyStart, keyLength, KEY_UNIT)) {
+            String s = readText();
+            if (s == null) {
+                return false;
+            }
+            reading.setUnit(s);
+        } else {
+            return skipScalar();
+        }
+        return true;
+    }
+
+    /**
+     * Reads a string or a number as text, like Gson's getAsString().
+     */
+    private String readText() {
+        if (pos < end && buf[pos] == '"') {
+            pos++;
+            int start = pos;
+            int stringEnd = scanString();
+            return stringEnd < 0 ? null : cachedString(start, stringEnd - start);
+        }
+        int start = pos;
+        if (!readNumber()) {
+            return null;
+        }
+        return cachedString(start, pos - start);
+    }
+
+    /**
+     * Scans to the closing quote of a string without escapes.
+     * @return index of the closing quote, or -1
+     */
+    private int scanString() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b == '"') {
+                return pos++;
+            }
+            if (b == '\\' || (b >= 0 && b < 0x20)) {
+                return -1;
+            }
+            pos++;
+        }
+        return -1;
+    }
+
+    private boolean skipScalar() {
+        if (pos >= end) {
+            return false;
+        }
+        byte b = buf[pos];
+        if (b == '"') {
+            pos++;
+            return scanString() >= 0;
+        }
+        if (b == 't') {
+            return consumeLiteral("true");
+        }
+        if (b == 'f') {
+            return consumeLiteral("false");
+        }
+        if (b == 'n') {
+            return consumeLiteral("null");
+        }
+        // Objects and arrays are left to Gson
+        return readNumber();
+    }
+
+    /**
+     * Parses a JSON number into {@link #number}. Uses the exact fast path when the
+     * mantissa and power of ten are exactly representable, otherwise Double.parseDouble.
+     */
+    private boolean readNumber() {
+        int start = pos;
+        boolean negative = false;
+        if (pos < end && buf[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean exact = true;
+        int intStart = pos;
+        while (pos < end && isDigit(buf[pos])) {
+            exact = accumulate(mantissa, digits, exact);
+            if (exact) {
+                mantissa = mantissa * 10 + (buf[pos] - '0');
+            }
+            digits++;
+            pos++;
+        }
+        if (pos == intStart) {
+            return false;
+        }
+        if (pos < end && buf[pos] == '.') {
+            pos++;
+            int fractionStart = pos;
+            while (pos < end && isDigit(buf[pos])) {
+                exact = accumulate(mantissa, digits, exact);
+                if (exact) {
+                    mantissa = mantissa * 10 + (buf[pos] - '0');
+                    exponent--;
+                }
+                digits++;
+                pos++;
+            }
+            if (pos == fractionStart) {
+                return false;
+            }
+        }
+        if (pos < end && (buf[pos] == 'e' || buf[pos] == 'E')) {
+            pos++;
+            boolean negativeExponent = false;
+            if (pos < end && (buf[pos] == '+' || buf[pos] == '-')) {
+                negativeExponent = buf[pos] == '-';
+                pos++;
+            }
+            int expStart = pos;
+            int exp = 0;
+            while (pos < end && isDigit(buf[pos])) {
+                if (exp < 10000) {
+                    exp = exp * 10 + (buf[pos] - '0');
+                }
+                pos++;
+            }
+            if (pos == expStart) {
+                return false;
+            }
+            exponent += negativeExponent ? -exp : exp;
+        }
+
+        if (exact && mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            double d = (double) mantissa;
+            d = exponent < 0 ? d / POWERS_OF_TEN[-exponent] : d * POWERS_OF_TEN[exponent];
+            number = negative ? -d : d;
+        } else {
+            number = Double.parseDouble(new String(buf, start, pos - start, StandardCharsets.ISO_8859_1));
+        }
+        return true;
+    }
+
+    private static boolean accumulate(long mantissa, int digits, boolean exact) {
+        // Leading zeros do not count against the 18 digits a long can hold
+        return exact && (mantissa == 0 || digits < 18);
+    }
+
+    private String cachedString(int start, int length) {
+        int hash = 1;
+        for (int i = start; i < start + length; i++) {
+            hash = 31 * hash + buf[i];
+        }
+        int slot = (hash ^ (hash >>> 16)) & (STRING_CACHE_SIZE - 1);
+        byte[] cached = cachedBytes[slot];
+        if (cached != null && rangeEquals(start, length, cached)) {
+            return cachedStrings[slot];
+        }
+        byte[] copy = new byte[length];
+        System.arraycopy(buf, start, copy, 0, length);
+        String s = new String(copy, StandardCharsets.UTF_8);
+        cachedBytes[slot] = copy;
+        cachedStrings[slot] = s;
+        return s;
+    }
+
+    private boolean keyEquals(int start, int length, byte[] key) {
+        return length == key.length && rangeEquals(start, length, key);
+    }
+
+    private boolean rangeEquals(int start, int length, byte[] other) {
+        if (other.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buf[start + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean consumeLiteral(String literal) {
+        if (end - pos < literal.length()) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (buf[pos + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        pos += literal.length();
+        return true;
+    }
+
+    private boolean consume(char c) {
+        if (pos < end && buf[pos] == c) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean atEnd() {
+        skipWhitespace();
+        return pos == end;
+    }
+
+    private void skipWhitespace() {
+        while (pos < end) {
+            byte b = buf[pos];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            pos++;
+        }
+    }
+
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
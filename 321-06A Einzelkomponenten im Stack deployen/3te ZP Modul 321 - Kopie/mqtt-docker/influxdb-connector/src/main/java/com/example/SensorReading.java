@@ -0,0 +1,77 @@
+package com.example;
+
+/**
+ * Mutable holder for one decoded sensor message.
+ *
+ * One instance is reused per processing thread, so nothing is allocated per
+ * message. Defaults match what the connector used for missing JSON fields.
+ */
+public class SensorReading {
+    private String sensor;
+    private String sensorId;
+    private double value;
+    private String unit;
+    private long timestampMillis;
+
+    public SensorReading() {
+        reset(System.currentTimeMillis());
+    }
+
+    /**
+     * Restores the defaults for a missing field.
+     * @param nowMillis timestamp used when the payload carries none
+     */
+    public void reset(long nowMillis) {
+        sensor = "unknown";
+        sensorId = "unknown";
+        value = 0.0;
+        unit = "";
+        timestampMillis = nowMillis;
+    }
+
+    public String getSensor() {
+        return sensor;
+    }
+
+    public void setSensor(String sensor) {
+        this.sensor = sensor;
+    }
+
+    public String getSensorId() {
+        return sensorId;
+    }
+
+    public void setSensorId(String sensorId) {
+        this.sensorId = sensorId;
+    }
+
+    public double getValue() {
+        return value;
+    }
+
+    public void setValue(double value) {
+        this.value = value;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    public long getTimestampMillis() {
+        return timestampMillis;
+    }
+
+    public void setTimestampMillis(long timestampMillis) {
+        this.timestampMillis = timestampMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "SensorReading{sensor=" + sensor + ", sensorId=" + sensorId + ", value=" + value
+                + ", unit=" + unit + ", timestamp=" + timestampMillis + "}";
+    }
+}
@@ -0,0 +1,535 @@
+package com.example;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Durable append-only log for line-protocol records that could not be written to InfluxDB.
+ *
+ * The log is a directory of memory-mapped segment files ({@code segment-<id>.log}) of a fixed
+ * size. Records are appended as entries of {@code [int length][int crc32][int count]} followed by
+ * {@code count} times {@code [int size][UTF-8 bytes]}. The length is written last and the header
+ * after an entry is zeroed first, so when the log is opened again every segment is scanned and
+ * ends at the first entry that is missing or fails its checksum.
+ *
+ * A small checkpoint file remembers how far {@link #commit} got. After a crash the replay resumes
+ * there; the records of a batch that was written but not yet committed are written once more,
+ * which InfluxDB treats as an overwrite of the same points.
+ */
+public class SpillLog implements AutoCloseable {
+
+    public enum FsyncPolicy {
+        /** Force every append to disk before returning. */
+        ALWAYS,
+        /** Force at most once per fsync interval; a process crash loses nothing, a power loss up to one interval. */
+        INTERVAL,
+        /** Leave writing back to the operating system. */
+        NEVER;
+
+        public static FsyncPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * Records read from the log and the position right after them.
+     */
+    public static final class Batch {
+        private final List<String> records;
+        private final long endSegment;
+        private final int endOffset;
+
+        Batch(List<String> records, long endSegment, int endOffset) {
+            this.records = records;
+            this.endSegment = endSegment;
+            this.endOffset = endOffset;
+        }
+
+        public List<String> getRecords() {
+            return records;
+        }
+    }
+
+    private static final class Segment {
+        final long id;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // End of the last complete entry
+        int end;
+        long lastAppendMillis;
+
+        Segment(long id, Path path, MappedByteBuffer buffer, long lastAppendMillis) {
+            this.id = id;
+            this.path = path;
+            this.buffer = buffer;
+            this.lastAppendMillis = lastAppendMillis;
+        }
+
+        int capacity() {
+            return buffer.capacity();
+        }
+    }
+
+    private static final class DirectoryLockedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        DirectoryLockedException(Path directory) {
+            super("Spill directory " + directory + " is used by another process");
+        }
+    }
+
+    private static final int HEADER_BYTES = 8;
+    private static final int CHECKPOINT_BYTES = 20;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long retentionMillis;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMs;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final FileChannel checkpointChannel;
+    private final ByteBuffer checkpointBuffer = ByteBuffer.allocate(CHECKPOINT_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    // Guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment active;
+    private long readSegment;
+    private int readOffset;
+    private long totalBytes;
+    private boolean dirty;
+    private long lastForceMillis;
+
+    // Counters
+    private final AtomicLong pendingRecords = new AtomicLong();
+    private final AtomicLong appendedRecords = new AtomicLong();
+    private final AtomicLong replayedRecords = new AtomicLong();
+    private final AtomicLong discardedRecords = new AtomicLong();
+    private final AtomicLong appendErrors = new AtomicLong();
+
+    /**
+     * Opens (or creates) the log in {@code directory} and recovers its state.
+     * @param segmentBytes size of one segment file
+     * @param maxBytes total size above which the oldest segments are discarded
+     * @param retentionMillis age after which a segment is discarded, 0 to keep segments regardless of age
+     * @throws IOException also if another process already uses the directory
+     */
+    public SpillLog(Path directory, int segmentBytes, long maxBytes, long retentionMillis,
+                    FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.retentionMillis = retentionMillis;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+
+        Files.createDirectories(directory);
+        this.lockChannel = FileChannel.open(directory.resolve("spill.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock acquired;
+        try {
+            acquired = lockChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            acquired = null;
+        }
+        if (acquired == null) {
+            lockChannel.close();
+            throw new DirectoryLockedException(directory);
+        }
+        this.lock = acquired;
+        this.checkpointChannel = FileChannel.open(directory.resolve("checkpoint"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        recover();
+    }
+
+    /**
+     * Opens the log in the first {@code slot-<n>} directory below {@code baseDirectory} that no other
+     * process holds, so several connector replicas can share one volume. A restarted replica picks up
+     * whatever slot a crashed one left behind.
+     */
+    public static SpillLog openFreeSlot(Path baseDirectory, int segmentBytes, long maxBytes, long retentionMillis,
+                                        FsyncPolicy fsyncPolicy, long fsyncIntervalMs) throws IOException {
+        for (int slot = 0; ; slot++) {
+            try {
+                return new SpillLog(baseDirectory.resolve("slot-" + slot), segmentBytes, maxBytes, retentionMillis,
+                        fsyncPolicy, fsyncIntervalMs);
+            } catch (DirectoryLockedException e) {
+                // Taken by another replica, try the next one
+            }
+        }
+    }
+
+    private void recover() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (Path file : files) {
+            Segment segment = new Segment(segmentId(file), file, map(file, Files.size(file)),
+                    Files.getLastModifiedTime(file).toMillis());
+            segment.end = scan(segment);
+            segments.put(segment.id, segment);
+            totalBytes += segment.capacity();
+        }
+
+        // Resume where the last commit left off
+        readCheckpoint();
+        if (segments.isEmpty()) {
+            active = createSegment(readSegment);
+        } else {
+            active = segments.lastEntry().getValue();
+            if (segments.get(readSegment) == null) {
+                readSegment = segments.firstKey();
+                readOffset = 0;
+            }
+            readOffset = Math.min(readOffset, segments.get(readSegment).end);
+        }
+        long pending = 0;
+        for (Segment segment : segments.tailMap(readSegment, true).values()) {
+            pending += countRecords(segment, segment.id == readSegment ? readOffset : 0);
+        }
+        pendingRecords.set(pending);
+        lastForceMillis = System.currentTimeMillis();
+        if (pending > 0) {
+            System.out.println("Recovered " + pending + " spilled records in " + segments.size() + " segment(s) from " + directory);
+        }
+    }
+
+    /**
+     * Validates the entries of a segment and returns the end of the last intact one.
+     */
+    private int scan(Segment segment) {
+        ByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while (offset + HEADER_BYTES <= buffer.capacity()) {
+            int length = buffer.getInt(offset);
+            if (length <= 0 || length > buffer.capacity() - offset - HEADER_BYTES
+                    || checksum(buffer, offset + HEADER_BYTES, length) != buffer.getInt(offset + 4)) {
+                break;
+            }
+            offset += HEADER_BYTES + length;
+        }
+        return offset;
+    }
+
+    private long countRecords(Segment segment, int from) {
+        long records = 0;
+        for (int offset = from; offset < segment.end; offset += HEADER_BYTES + segment.buffer.getInt(offset)) {
+            records += segment.buffer.getInt(offset + HEADER_BYTES);
+        }
+        return records;
+    }
+
+    /**
+     * Appends records as one entry.
+     * @return false if the entry could not be stored, e.g. because a new segment could not be created
+     */
+    public synchronized boolean append(List<String> records) {
+        byte[][] encoded = new byte[records.size()][];
+        int length = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = records.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        try {
+            if (active.capacity() - active.end < HEADER_BYTES + length) {
+                roll(HEADER_BYTES + length);
+            }
+        } catch (IOException e) {
+            appendErrors.incrementAndGet();
+            System.out.println("Error creating spill segment: " + e.getMessage());
+            return false;
+        }
+
+        MappedByteBuffer buffer = active.buffer;
+        int start = active.end;
+        ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER_BYTES);
+        body.putInt(encoded.length);
+        for (byte[] record : encoded) {
+            body.putInt(record.length);
+            body.put(record);
+        }
+        int next = start + HEADER_BYTES + length;
+        if (next + HEADER_BYTES <= buffer.capacity()) {
+            // A leftover of an entry torn by an earlier crash must not look like a valid successor
+            buffer.putInt(next, 0);
+        }
+        buffer.putInt(start + 4, checksum(buffer, start + HEADER_BYTES, length));
+        buffer.putInt(start, length);
+        active.end = next;
+        active.lastAppendMillis = System.currentTimeMillis();
+        dirty = true;
+        pendingRecords.addAndGet(encoded.length);
+        appendedRecords.addAndGet(encoded.length);
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS
+                || (fsyncPolicy == FsyncPolicy.INTERVAL && active.lastAppendMillis - lastForceMillis >= fsyncIntervalMs)) {
+            force();
+        }
+        return true;
+    }
+
+    public boolean append(String record) {
+        return append(Collections.singletonList(record));
+    }
+
+    /**
+     * Reads whole entries from the oldest unreplayed position until at least one entry
+     * and at most about {@code maxRecords} records are collected. The position only moves
+     * on {@link #commit}.
+     * @return null if the log holds no unreplayed records
+     */
+    public synchronized Batch read(int maxRecords) {
+        List<String> records = new ArrayList<>();
+        long segmentId = readSegment;
+        int offset = readOffset;
+        while (true) {
+            Segment segment = segments.get(segmentId);
+            if (offset >= segment.end) {
+                Long next = segments.higherKey(segmentId);
+                if (next == null) {
+                    break;
+                }
+                segmentId = next;
+                offset = 0;
+                continue;
+            }
+            int count = segment.buffer.getInt(offset + HEADER_BYTES);
+            if (!records.isEmpty() && records.size() + count > maxRecords) {
+                break;
+            }
+            ByteBuffer entry = segment.buffer.duplicate();
+            entry.position(offset + HEADER_BYTES + 4);
+            for (int i = 0; i < count; i++) {
+                byte[] bytes = new byte[entry.getInt()];
+                entry.get(bytes);
+                records.add(new String(bytes, StandardCharsets.UTF_8));
+            }
+            offset += HEADER_BYTES + segment.buffer.getInt(offset);
+        }
+        return records.isEmpty() ? null : new Batch(records, segmentId, offset);
+    }
+
+    /**
+     * Marks a batch from {@link #read} as written and deletes segments that are fully replayed.
+     */
+    public synchronized void commit(Batch batch) {
+        if (batch.endSegment < readSegment || (batch.endSegment == readSegment && batch.endOffset <= readOffset)) {
+            // Already discarded by retention in the meantime
+            return;
+        }
+        readSegment = batch.endSegment;
+        readOffset = batch.endOffset;
+        pendingRecords.addAndGet(-batch.records.size());
+        replayedRecords.addAndGet(batch.records.size());
+        while (segments.firstKey() < readSegment) {
+            deleteSegment(segments.firstEntry().getValue());
+        }
+        writeCheckpoint();
+    }
+
+    /**
+     * Forces pending appends to disk if the fsync interval has passed and applies the age retention.
+     * Called periodically by the replayer.
+     */
+    public synchronized void maintain() {
+        if (fsyncPolicy == FsyncPolicy.INTERVAL && System.currentTimeMillis() - lastForceMillis >= fsyncIntervalMs) {
+            force();
+        }
+        enforceRetention();
+    }
+
+    private void roll(int entryBytes) throws IOException {
+        if (fsyncPolicy != FsyncPolicy.NEVER) {
+            force();
+        }
+        Segment segment = createSegment(active.id + 1, Math.max(segmentBytes, entryBytes + HEADER_BYTES));
+        active = segment;
+        enforceRetention();
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        return createSegment(id, segmentBytes);
+    }
+
+    private Segment createSegment(long id, int size) throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        Segment segment = new Segment(id, path, map(path, size), System.currentTimeMillis());
+        segments.put(id, segment);
+        totalBytes += size;
+        return segment;
+    }
+
+    /**
+     * Discards the oldest segments while the log is larger than {@code maxBytes} or their
+     * newest record is older than the retention. The active segment is always kept.
+     */
+    private void enforceRetention() {
+        long now = System.currentTimeMillis();
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean tooLarge = totalBytes > maxBytes;
+            boolean tooOld = retentionMillis > 0 && now - oldest.lastAppendMillis > retentionMillis;
+            if (!tooLarge && !tooOld) {
+                return;
+            }
+            if (oldest.id >= readSegment) {
+                long lost = countRecords(oldest, oldest.id == readSegment ? readOffset : 0);
+                pendingRecords.addAndGet(-lost);
+                discardedRecords.addAndGet(lost);
+                System.out.println("Spill log " + (tooLarge ? "full" : "retention exceeded")
+                        + ", discarded " + lost + " records of " + oldest.path.getFileName());
+                readSegment = segments.higherKey(oldest.id);
+                readOffset = 0;
+                writeCheckpoint();
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        totalBytes -= segment.capacity();
+        try {
+            // The mapping itself is released once the buffer is garbage collected
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            System.out.println("Error deleting spill segment " + segment.path + ": " + e.getMessage());
+        }
+    }
+
+    private void force() {
+        if (dirty) {
+            active.buffer.force();
+            dirty = false;
+        }
+        lastForceMillis = System.currentTimeMillis();
+    }
+
+    private void readCheckpoint() throws IOException {
+        checkpointBuffer.clear();
+        int read = checkpointChannel.read(checkpointBuffer, 0);
+        if (read == CHECKPOINT_BYTES && checksum(checkpointBuffer, 0, 16) == checkpointBuffer.getInt(16)) {
+            readSegment = checkpointBuffer.getLong(0);
+            readOffset = (int) checkpointBuffer.getLong(8);
+        } else {
+            readSegment = segments.isEmpty() ? 0 : segments.firstKey();
+            readOffset = 0;
+        }
+    }
+
+    private void writeCheckpoint() {
+        checkpointBuffer.clear();
+        checkpointBuffer.putLong(0, readSegment);
+        checkpointBuffer.putLong(8, readOffset);
+        checkpointBuffer.putInt(16, checksum(checkpointBuffer, 0, 16));
+        try {
+            checkpointChannel.write(checkpointBuffer, 0);
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                checkpointChannel.force(false);
+            }
+        } catch (IOException e) {
+            System.out.println("Error writing spill checkpoint: " + e.getMessage());
+        }
+    }
+
+    private int checksum(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer region = buffer.duplicate();
+        region.limit(offset + length).position(offset);
+        crc.reset();
+        crc.update(region);
+        return (int) crc.getValue();
+    }
+
+    private static MappedByteBuffer map(Path path, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // Mapping beyond the end grows the file; the new pages read as zeros
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long segmentId(Path file) {
+        String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public long getPendingRecords() {
+        return pendingRecords.get();
+    }
+
+    public long getAppendedRecords() {
+        return appendedRecords.get();
+    }
+
+    public long getReplayedRecords() {
+        return replayedRecords.get();
+    }
+
+    public long getDiscardedRecords() {
+        return discardedRecords.get();
+    }
+
+    public long getAppendErrors() {
+        return appendErrors.get();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return totalBytes;
+    }
+
+    public String stats() {
+        return String.format("pending=%d segments=%d size=%dMB appended=%d replayed=%d discarded=%d errors=%d",
+                getPendingRecords(), getSegmentCount(), getSizeBytes() >> 20, getAppendedRecords(),
+                getReplayedRecords(), getDiscardedRecords(), getAppendErrors());
+    }
+
+    /**
+     * Forces everything to disk and releases the directory.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            if (dirty) {
+                active.buffer.force();
+                dirty = false;
+            }
+            writeCheckpoint();
+            checkpointChannel.close();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            System.out.println("Error closing spill log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example;
+
+import com.influxdb.client.WriteApiBlocking;
+import com.influxdb.client.domain.WritePrecision;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread that drains the {@link SpillLog} into InfluxDB.
+ *
+ * While the log holds records they are written in batches of up to {@code batchSize},
+ * back to back. A failed write marks InfluxDB as unavailable for the {@link BatchingWriter}
+ * and is retried after {@code retryIntervalMs}; the first successful one marks it available
+ * again, so the replayer also acts as the health probe while InfluxDB is down.
+ */
+public class SpillReplayer implements AutoCloseable {
+    private static final long IDLE_POLL_MS = 200;
+
+    private final WriteApiBlocking writeApi;
+    private final SpillLog spillLog;
+    private final BatchingWriter writer;
+    private final int batchSize;
+    private final long retryIntervalMs;
+    private final Thread replayThread;
+    private volatile boolean running = true;
+
+    // Counters
+    private final AtomicLong batchesReplayed = new AtomicLong();
+    private final AtomicLong replayErrors = new AtomicLong();
+    private final AtomicLong replayNanosLast = new AtomicLong();
+
+    public SpillReplayer(WriteApiBlocking writeApi, SpillLog spillLog, BatchingWriter writer,
+                         int batchSize, long retryIntervalMs) {
+        this.writeApi = writeApi;
+        this.spillLog = spillLog;
+        this.writer = writer;
+        this.batchSize = batchSize;
+        this.retryIntervalMs = retryIntervalMs;
+        this.replayThread = new Thread(this::runLoop, "spill-replayer");
+        this.replayThread.setDaemon(true);
+        this.replayThread.start();
+    }
+
+    private void runLoop() {
+        while (running) {
+            spillLog.maintain();
+            SpillLog.Batch batch = spillLog.read(batchSize);
+            long pause = 0;
+            if (batch == null) {
+                pause = IDLE_POLL_MS;
+            } else {
+                long start = System.nanoTime();
+                try {
+                    writeApi.writeRecords(WritePrecision.MS, batch.getRecords());
+                    spillLog.commit(batch);
+                    batchesReplayed.incrementAndGet();
+                    writer.markSinkAvailable();
+                } catch (Exception e) {
+                    replayErrors.incrementAndGet();
+                    writer.markSinkUnavailable();
+                    System.out.println("Error replaying " + batch.getRecords().size() + " spilled points, retrying in "
+                            + retryIntervalMs + "ms: " + e.getMessage());
+                    pause = retryIntervalMs;
+                } finally {
+                    replayNanosLast.set(System.nanoTime() - start);
+                }
+            }
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public long getBatchesReplayed() {
+        return batchesReplayed.get();
+    }
+
+    public long getReplayErrors() {
+        return replayErrors.get();
+    }
+
+    public double getLastReplayMillis() {
+        return replayNanosLast.get() / 1e6;
+    }
+
+    public String stats() {
+        return String.format("%s batches=%d replay errors=%d last replay=%.2fms",
+                spillLog.stats(), getBatchesReplayed(), getReplayErrors(), getLastReplayMillis());
+    }
+
+    /**
+     * Stops replaying; whatever is still in the log stays there for the next start.
+     */
+    @Override
+    public void close() {
+        running = false;
+        replayThread.interrupt();
+        try {
+            replayThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,432 @@
+package com.example;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the MQTT topic of a reading to its measurement, extra tags and target database.
+ *
+ * The routing table is a semicolon-separated list of rules, each an MQTT topic filter with
+ * the usual {@code +} and {@code #} wildcards followed by options:
+ *
+ * <pre>
+ * sensors/# measurement={1}; plant/+/+/# measurement={3} tag.site={1} tag.line={2} database=plant
+ * </pre>
+ *
+ * {@code measurement} is required; {@code tag.<key>} adds a tag next to {@code sensor} and
+ * {@code sensor_id}; {@code database} defaults to the connector's database. Measurement and
+ * tag values are templates in which {@code {N}} stands for topic level N, counted from 0 as
+ * in {@code topic.split("/")}: a level the topic does not have, including trailing empty
+ * levels, becomes "unknown". When several rules match a topic, the first one wins.
+ *
+ * The filters are compiled into a trie over the topic levels, so resolving a topic follows
+ * its levels instead of testing every rule, and templates are parsed once. Resolved routes
+ * are cached per topic string, so a steady set of topics only costs a map lookup. Beyond
+ * {@value #TOPIC_CACHE_LIMIT} topics the cache evicts with the second-chance (clock) policy:
+ * topics looked up since the clock last passed them stay, so a burst of one-off topics does
+ * not push out the busy ones.
+ *
+ * Thread-safe: the table is immutable, lookups read a concurrent map and only inserting
+ * into the cache takes a lock.
+ */
+public class TopicRouter {
+    // Same behaviour as the former fixed subscription to sensors/# with topic.split("/")[1]
+    public static final String DEFAULT_ROUTES = "sensors/# measurement={1}";
+
+    // Topics with a cached route
+    private static final int TOPIC_CACHE_LIMIT = 10000;
+    private static final int NO_RULE = Integer.MAX_VALUE;
+    private static final String MISSING_LEVEL = "unknown";
+
+    /**
+     * Where the readings of one topic go.
+     */
+    public static final class Route {
+        public final String measurement;
+        // Index into getDatabases(), 0 for the default database
+        final int target;
+        // Extra tags, sorted by key
+        final String[] tagKeys;
+        final String[] tagValues;
+
+        /**
+         * A route to the default database without extra tags.
+         */
+        public Route(String measurement) {
+            this(measurement, 0, LineProtocolEncoder.NO_TAGS, LineProtocolEncoder.NO_TAGS);
+        }
+
+        Route(String measurement, int target, String[] tagKeys, String[] tagValues) {
+            this.measurement = measurement;
+            this.target = target;
+            this.tagKeys = tagKeys;
+            this.tagValues = tagValues;
+        }
+    }
+
+    /**
+     * A value with {@code {N}} placeholders, split into literal text and level numbers.
+     */
+    private static final class Template {
+        final String[] literals;
+        final int[] levels;
+
+        Template(String spec) {
+            List<String> literalList = new ArrayList<>();
+            List<Integer> levelList = new ArrayList<>();
+            int start = 0;
+            int open;
+            while ((open = spec.indexOf('{', start)) >= 0) {
+                int close = spec.indexOf('}', open);
+                if (close < 0) {
+                    throw new IllegalArgumentException("Unclosed { in route template " + spec);
+                }
+                int level;
+                try {
+                    level = Integer.parseInt(spec.substring(open + 1, close));
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("Expected a topic level number in route template " + spec);
+                }
+                if (level < 0) {
+                    throw new IllegalArgumentException("Negative topic level in route template " + spec);
+                }
+                literalList.add(spec.substring(start, open));
+                levelList.add(level);
+                start = close + 1;
+            }
+            literalList.add(spec.substring(start));
+            this.literals = literalList.toArray(new String[0]);
+            this.levels = new int[levelList.size()];
+            for (int i = 0; i < levels.length; i++) {
+                levels[i] = levelList.get(i);
+            }
+        }
+
+        String resolve(String[] topicLevels, int usedLevels) {
+            if (levels.length == 1 && literals[0].isEmpty() && literals[1].isEmpty()) {
+                return level(topicLevels, usedLevels, levels[0]);
+            }
+            StringBuilder value = new StringBuilder(literals[0]);
+            for (int i = 0; i < levels.length; i++) {
+                value.append(level(topicLevels, usedLevels, levels[i])).append(literals[i + 1]);
+            }
+            return value.toString();
+        }
+
+        private static String level(String[] topicLevels, int usedLevels, int level) {
+            return level < usedLevels ? topicLevels[level] : MISSING_LEVEL;
+        }
+    }
+
+    private static final class Rule {
+        final String filter;
+        final Template measurement;
+        final String[] tagKeys;
+        final Template[] tagValues;
+        final int target;
+
+        Rule(String filter, Template measurement, String[] tagKeys, Template[] tagValues, int target) {
+            this.filter = filter;
+            this.measurement = measurement;
+            this.tagKeys = tagKeys;
+            this.tagValues = tagValues;
+            this.target = target;
+        }
+
+        Route resolve(String[] levels) {
+            // Like split(), which leaves out trailing empty levels
+            int usedLevels = levels.length;
+            while (usedLevels > 0 && levels[usedLevels - 1].isEmpty()) {
+                usedLevels--;
+            }
+            String[] values = tagValues.length == 0 ? LineProtocolEncoder.NO_TAGS : new String[tagValues.length];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = tagValues[i].resolve(levels, usedLevels);
+            }
+            return new Route(measurement.resolve(levels, usedLevels), target, tagKeys, values);
+        }
+    }
+
+    private static final class CachedRoute {
+        final Route route;
+        // Set on every hit, cleared when the clock passes the topic
+        volatile boolean referenced;
+
+        CachedRoute(Route route) {
+            this.route = route;
+        }
+    }
+
+    private static final class Node {
+        final Map<String, Node> children = new HashMap<>();
+        Node plus;
+        // Lowest rule whose filter ends here, and whose filter ends here with /#
+        int endRule = NO_RULE;
+        int hashRule = NO_RULE;
+    }
+
+    // Cached for topics no rule matches
+    private static final Route UNROUTED = new Route("");
+
+    private final List<Rule> rules = new ArrayList<>();
+    private final List<String> databases = new ArrayList<>();
+    private final Node root = new Node();
+    private final Map<String, CachedRoute> routes = new ConcurrentHashMap<>();
+    // Cached topics in clock order, oldest first; guarded by itself
+    private final ArrayDeque<String> clock = new ArrayDeque<>();
+
+    /**
+     * @param spec the routing table, see the class comment
+     * @param defaultDatabase database of rules without a {@code database} option
+     */
+    public TopicRouter(String spec, String defaultDatabase) {
+        databases.add(defaultDatabase);
+        for (String part : spec.split(";")) {
+            String ruleSpec = part.trim();
+            if (!ruleSpec.isEmpty()) {
+                addRule(ruleSpec);
+            }
+        }
+        if (rules.isEmpty()) {
+            throw new IllegalArgumentException("No routes configured");
+        }
+    }
+
+    private void addRule(String spec) {
+        String[] words = spec.split("\\s+");
+        String filter = words[0];
+        String[] filterLevels = levels(filter);
+        for (int i = 0; i < filterLevels.length; i++) {
+            String level = filterLevels[i];
+            if ((level.contains("+") || level.contains("#")) && level.length() > 1
+                    || level.equals("#") && i < filterLevels.length - 1) {
+                throw new IllegalArgumentException("Invalid topic filter " + filter);
+            }
+        }
+
+        Template measurement = null;
+        String database = databases.get(0);
+        // Sorted, so the tags can be merged into the line in the order Point would use
+        Map<String, Template> tags = new TreeMap<>();
+        for (int i = 1; i < words.length; i++) {
+            int eq = words[i].indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value in route " + spec + ": " + words[i]);
+            }
+            String key = words[i].substring(0, eq);
+            String value = words[i].substring(eq + 1);
+            if (key.equals("measurement")) {
+                measurement = new Template(value);
+            } else if (key.equals("database")) {
+                if (value.isEmpty() || value.contains("{")) {
+                    throw new IllegalArgumentException("The database of a route must be a fixed name: " + spec);
+                }
+                database = value;
+            } else if (key.startsWith("tag.") && key.length() > 4) {
+                String tag = key.substring(4);
+                if (tag.equals("sensor") || tag.equals("sensor_id")) {
+                    throw new IllegalArgumentException("Tag " + tag + " comes from the payload: " + spec);
+                }
+                tags.put(tag, new Template(value));
+            } else {
+                throw new IllegalArgumentException("Unknown option " + key + " in route " + spec);
+            }
+        }
+        if (measurement == null) {
+            throw new IllegalArgumentException("Route without measurement: " + spec);
+        }
+
+        int target = databases.indexOf(database);
+        if (target < 0) {
+            target = databases.size();
+            databases.add(database);
+        }
+        String[] tagKeys = tags.isEmpty() ? LineProtocolEncoder.NO_TAGS : tags.keySet().toArray(new String[0]);
+        rules.add(new Rule(filter, measurement, tagKeys, tags.values().toArray(new Template[0]), target));
+
+        int index = rules.size() - 1;
+        Node node = root;
+        for (String level : filterLevels) {
+            if (level.equals("#")) {
+                node.hashRule = Math.min(node.hashRule, index);
+                return;
+            }
+            if (level.equals("+")) {
+                if (node.plus == null) {
+                    node.plus = new Node();
+                }
+                node = node.plus;
+            } else {
+                node = node.children.computeIfAbsent(level, key -> new Node());
+            }
+        }
+        node.endRule = Math.min(node.endRule, index);
+    }
+
+    /**
+     * @return the route of a topic, or null if no rule matches it
+     */
+    public Route route(String topic) {
+        CachedRoute cached = routes.get(topic);
+        Route route;
+        if (cached != null) {
+            // Only write when it changes, so workers sharing a busy topic do not contend on it
+            if (!cached.referenced) {
+                cached.referenced = true;
+            }
+            route = cached.route;
+        } else {
+            route = resolve(topic);
+            if (route == null) {
+                route = UNROUTED;
+            }
+            cache(topic, route);
+        }
+        return route == UNROUTED ? null : route;
+    }
+
+    private void cache(String topic, Route route) {
+        synchronized (clock) {
+            if (routes.putIfAbsent(topic, new CachedRoute(route)) != null) {
+                // Another worker resolved it meanwhile
+                return;
+            }
+            clock.addLast(topic);
+            while (clock.size() > TOPIC_CACHE_LIMIT) {
+                String oldest = clock.pollFirst();
+                CachedRoute entry = routes.get(oldest);
+                if (entry.referenced) {
+                    // Second chance; the clock comes back to it after all other topics
+                    entry.referenced = false;
+                    clock.addLast(oldest);
+                } else {
+                    routes.remove(oldest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Resolves a topic without the cache.
+     * @return the route, or null if no rule matches the topic
+     */
+    public Route resolve(String topic) {
+        String[] levels = levels(topic);
+        int rule = match(root, levels, 0);
+        return rule == NO_RULE ? null : rules.get(rule).resolve(levels);
+    }
+
+    /**
+     * @return the lowest rule matching {@code levels} from {@code depth} on below {@code node}
+     */
+    private static int match(Node node, String[] levels, int depth) {
+        // Wildcards at the first level do not match topics starting with $, such as $SYS
+        boolean wildcards = depth > 0 || !levels[0].startsWith("$");
+        int best = wildcards ? node.hashRule : NO_RULE;
+        if (depth == levels.length) {
+            return Math.min(best, node.endRule);
+        }
+        Node child = node.children.get(levels[depth]);
+        if (child != null) {
+            best = Math.min(best, match(child, levels, depth + 1));
+        }
+        if (node.plus != null && wildcards) {
+            best = Math.min(best, match(node.plus, levels, depth + 1));
+        }
+        return best;
+    }
+
+    /**
+     * Databases the routes write to; a {@link Route}'s target indexes this list, the default
+     * database comes first.
+     */
+    public List<String> getDatabases() {
+        return databases;
+    }
+
+    /**
+     * The topic filters to subscribe to: every rule filter that no other filter already
+     * covers, so overlapping rules do not make the broker deliver a message twice.
+     */
+    public List<String> subscriptions() {
+        List<String> filters = new ArrayList<>();
+        for (int i = 0; i < rules.size(); i++) {
+            String[] filter = levels(rules.get(i).filter);
+            boolean covered = false;
+            for (int j = 0; j < rules.size() && !covered; j++) {
+                String[] other = levels(rules.get(j).filter);
+                // Of two identical filters the first one is kept
+                covered = j != i && covers(other, filter) && (j < i || !covers(filter, other));
+            }
+            if (!covered) {
+                filters.add(rules.get(i).filter);
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * @return true if every topic matching {@code filter} also matches {@code cover}
+     */
+    static boolean covers(String[] cover, String[] filter) {
+        for (int i = 0; i < cover.length; i++) {
+            boolean wildcard = cover[i].equals("+") || cover[i].equals("#");
+            if (wildcard && i == 0 && filter.length > 0 && filter[0].startsWith("$")) {
+                return false;
+            }
+            if (cover[i].equals("#")) {
+                return true;
+            }
+            if (i >= filter.length || filter[i].equals("#")) {
+                return false;
+            }
+            if (!cover[i].equals("+") && (filter[i].equals("+") || !cover[i].equals(filter[i]))) {
+                return false;
+            }
+        }
+        return cover.length == filter.length;
+    }
+
+    /**
+     * Splits a topic or filter at every '/', keeping empty levels.
+     */
+    private static String[] levels(String topic) {
+        int count = 1;
+        for (int i = 0; i < topic.length(); i++) {
+            if (topic.charAt(i) == '/') {
+                count++;
+            }
+        }
+        String[] levels = new String[count];
+        int start = 0;
+        for (int i = 0; i < count - 1; i++) {
+            int slash = topic.indexOf('/', start);
+            levels[i] = topic.substring(start, slash);
+            start = slash + 1;
+        }
+        levels[count - 1] = topic.substring(start);
+        return levels;
+    }
+
+    public int getRuleCount() {
+        return rules.size();
+    }
+
+    public int getCachedTopics() {
+        return routes.size();
+    }
+
+    @Override
+    public String toString() {
+        List<String> descriptions = new ArrayList<>();
+        for (Rule rule : rules) {
+            descriptions.add(rule.filter + (rule.target == 0 ? "" : " -> " + databases.get(rule.target)));
+        }
+        return descriptions.toString();
+    }
+}
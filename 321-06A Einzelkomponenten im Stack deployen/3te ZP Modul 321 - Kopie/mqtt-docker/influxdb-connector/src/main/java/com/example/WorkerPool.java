@@ -0,0 +1,268 @@
+package com.example;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Hands MQTT messages from the Paho callback thread to a pool of processing workers.
+ *
+ * Each worker owns a lock-free {@link BoundedMpmcQueue}. Messages are routed by a
+ * hash of their {@code sensor_id} (or the topic if the payload has none), so all
+ * readings of one sensor are processed in order by the same worker. What happens
+ * when a worker queue is full is decided by the {@link OverflowPolicy}.
+ */
+public class WorkerPool implements AutoCloseable {
+
+    public enum OverflowPolicy {
+        /** Wait until the worker has room again; this slows down the MQTT client. */
+        BLOCK,
+        /** Discard the oldest queued message of that worker. */
+        DROP_OLDEST,
+        /**
+         * Keep accepting into an overflow queue behind the ring, up to {@code overflowCapacity}
+         * messages per worker; beyond that new messages are dropped.
+         */
+        SPILL;
+
+        public static OverflowPolicy parse(String value) {
+            return valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    /**
+     * Processes one message. Every worker gets its own instance, so handlers may keep
+     * unsynchronized per-thread state such as a decoder.
+     */
+    public interface MessageHandler {
+        void handle(String topic, byte[] payload) throws Exception;
+
+        /**
+         * Called when the worker has nothing to do, at least every 100 ms while it stays idle.
+         */
+        default void idle() throws Exception {
+        }
+
+        /**
+         * Called on the worker thread after its last message when the pool closes.
+         */
+        default void close() throws Exception {
+        }
+    }
+
+    private static final class Message {
+        final String topic;
+        final byte[] payload;
+
+        Message(String topic, byte[] payload) {
+            this.topic = topic;
+            this.payload = payload;
+        }
+    }
+
+    private final Worker[] workers;
+    private final OverflowPolicy policy;
+    private final int overflowCapacity;
+
+    // Counters
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong spilled = new AtomicLong();
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * @param overflowCapacity messages each worker holds behind its ring with the SPILL policy
+     */
+    public WorkerPool(int workerCount, int queueCapacity, OverflowPolicy policy, int overflowCapacity,
+                      Supplier<MessageHandler> handlers) {
+        this.policy = policy;
+        this.overflowCapacity = overflowCapacity;
+        this.workers = new Worker[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Worker(i, queueCapacity, handlers.get());
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Queues a message for the worker responsible for its sensor.
+     * Called from the MQTT callback thread and the batch-splitting worker.
+     */
+    public void dispatch(String topic, byte[] payload) {
+        // Spread the key again so replica partitioning (same key, modulo replica count) does not skew workers
+        int hash = SensorPayloadDecoder.partitionHash(topic, payload) * 0x9E3779B9;
+        Worker worker = workers[Math.floorMod(hash ^ (hash >>> 16), workers.length)];
+        worker.enqueue(new Message(topic, payload));
+        dispatched.incrementAndGet();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Worker worker : workers) {
+            depth += worker.queue.size() + worker.overflowSize.get();
+        }
+        return depth;
+    }
+
+    public long getDispatched() {
+        return dispatched.get();
+    }
+
+    public long getProcessed() {
+        return processed.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    public long getFailed() {
+        return failed.get();
+    }
+
+    public String stats() {
+        return String.format("workers=%d policy=%s queued=%d dispatched=%d processed=%d dropped=%d spilled=%d failed=%d",
+                workers.length, policy, getQueueDepth(), getDispatched(), getProcessed(), getDropped(), getSpilled(), getFailed());
+    }
+
+    /**
+     * Lets the workers finish everything already queued, then stops them.
+     */
+    @Override
+    public void close() {
+        for (Worker worker : workers) {
+            worker.running = false;
+            LockSupport.unpark(worker.thread);
+        }
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(TimeUnit.SECONDS.toMillis(30));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        private static final int SPINS_BEFORE_PARK = 100;
+
+        final BoundedMpmcQueue<Message> queue;
+        // Only used by the SPILL policy; holds messages newer than everything in the ring
+        final Queue<Message> overflow = new ConcurrentLinkedQueue<>();
+        // ConcurrentLinkedQueue.size() walks the whole queue
+        final AtomicInteger overflowSize = new AtomicInteger();
+        final MessageHandler handler;
+        final Thread thread;
+        volatile boolean parked;
+        volatile boolean running = true;
+
+        Worker(int index, int queueCapacity, MessageHandler handler) {
+            this.queue = new BoundedMpmcQueue<>(queueCapacity);
+            this.handler = handler;
+            // Virtual in the Java 21 build
+            this.thread = Threads.newThread("message-worker-" + index, this);
+        }
+
+        void enqueue(Message message) {
+            switch (policy) {
+                case BLOCK:
+                    while (!queue.offer(message)) {
+                        LockSupport.parkNanos(50_000);
+                    }
+                    break;
+                case DROP_OLDEST:
+                    while (!queue.offer(message)) {
+                        if (queue.poll() != null) {
+                            dropped.incrementAndGet();
+                        }
+                    }
+                    break;
+                case SPILL:
+                    // Once spilling, keep appending to the overflow until the worker has drained it
+                    if (!overflow.isEmpty() || !queue.offer(message)) {
+                        if (overflowSize.get() >= overflowCapacity) {
+                            // Sustained overload; keep the heap bounded
+                            dropped.incrementAndGet();
+                            break;
+                        }
+                        overflowSize.incrementAndGet();
+                        overflow.add(message);
+                        spilled.incrementAndGet();
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown overflow policy " + policy);
+            }
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        private Message next() {
+            Message message = queue.poll();
+            if (message != null) {
+                return message;
+            }
+            message = overflow.poll();
+            if (message != null) {
+                overflowSize.decrementAndGet();
+            }
+            return message;
+        }
+
+        @Override
+        public void run() {
+            int idle = 0;
+            while (true) {
+                Message message = next();
+                if (message == null) {
+                    if (!running) {
+                        try {
+                            handler.close();
+                        } catch (Exception e) {
+                            System.out.println("Error closing message handler: " + e.getMessage());
+                        }
+                        return;
+                    }
+                    if (++idle < SPINS_BEFORE_PARK) {
+                        Thread.onSpinWait();
+                        continue;
+                    }
+                    try {
+                        handler.idle();
+                    } catch (Exception e) {
+                        System.out.println("Error in idle message handler: " + e.getMessage());
+                    }
+                    parked = true;
+                    // Re-check after publishing the flag so a concurrent enqueue cannot be missed
+                    if (queue.isEmpty() && overflow.isEmpty() && running) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    parked = false;
+                    continue;
+                }
+                idle = 0;
+                try {
+                    handler.handle(message.topic, message.payload);
+                    processed.incrementAndGet();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println("Error processing message: " + e.getMessage());
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -5,35 +5,118 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.UUID;
 
 public class Publisher {
     private static final String BROKER_HOST = System.getenv().getOrDefault("MQTT_BROKER_HOST", "broker");
     private static final int BROKER_PORT = Integer.parseInt(System.getenv().getOrDefault("MQTT_BROKER_PORT", "1883"));
     private static final String TOPIC = System.getenv().getOrDefault("MQTT_TOPIC", "test/message");
+    // Several brokers: MQTT_BROKERS=tcp://broker:1883,tcp://broker-2:1883 replaces host and port. With
+    // BROKER_SELECTION=hash the topic picks a home broker on a hash ring and the others follow as failover
+    private static final String BROKERS = BrokerSelector.brokerList(BROKER_HOST, BROKER_PORT);
+    private static final String BROKER_SELECTION = System.getenv().getOrDefault("BROKER_SELECTION", "hash");
     private static final String CLIENT_ID = "JavaPublisher-" + UUID.randomUUID().toString();
 
+    // sync waits for every PUBACK, async keeps up to MAX_INFLIGHT messages in flight
+    private static final String PUBLISH_MODE = System.getenv().getOrDefault("PUBLISH_MODE", "sync");
+    private static final int QOS = Integer.parseInt(System.getenv().getOrDefault("QOS", "1"));
+    private static final int MAX_INFLIGHT = Integer.parseInt(System.getenv().getOrDefault("MAX_INFLIGHT", "100"));
+    private static final AsyncPublisher.OverflowPolicy OVERFLOW_POLICY = AsyncPublisher.OverflowPolicy.parse(
+            System.getenv().getOrDefault("OVERFLOW_POLICY", "block"));
+
+    // Burst mode: publish BURST_MESSAGES as fast as possible once per QoS in BURST_QOS, report the rate and exit
+    private static final int BURST_MESSAGES = Integer.parseInt(System.getenv().getOrDefault("BURST_MESSAGES", "0"));
+    private static final String BURST_QOS = System.getenv().getOrDefault("BURST_QOS", "0,1,2");
+    private static final int BURST_PAYLOAD_BYTES = Integer.parseInt(System.getenv().getOrDefault("BURST_PAYLOAD_BYTES", "100"));
+
+    // Prometheus endpoint on http://<host>:METRICS_PORT/metrics, 0 to disable
+    private static final int METRICS_PORT = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", "9400"));
+
+    private static final Metrics.Counter published = Metrics.counter("mqtt_messages_published_total",
+            "MQTT messages published");
+    private static final Metrics.Counter publishErrors = Metrics.counter("mqtt_publish_errors_total",
+            "Publish calls that failed");
+    private static final Metrics.Counter connectionsLost = Metrics.counter("mqtt_connections_lost_total",
+            "Times the connection to the broker was lost");
+    private static final Metrics.Counter reconnects = Metrics.counter("mqtt_reconnects_total",
+            "Successful automatic reconnects to the broker");
+    private static final Metrics.Histogram publishLatency = Metrics.latencyHistogram("mqtt_publish_duration_seconds",
+            "Time a publish call blocked, including the PUBACK in sync mode");
+    private static final StartupTimer firstPublish = new StartupTimer("startup_to_first_publish_seconds",
+            "Seconds from process start until the first message was published", "First message published");
+
+    private static AsyncPublisher publisher;
+
     public static void main(String[] args) {
-        String broker = "tcp://" + BROKER_HOST + ":" + BROKER_PORT;
+        String[] brokers = new BrokerSelector(BROKERS, BROKER_SELECTION).order(TOPIC);
         MemoryPersistence persistence = new MemoryPersistence();
         Gson gson = new Gson();
 
+        if (BURST_MESSAGES > 0) {
+            try {
+                runBursts(brokers);
+            } catch (MqttException | InterruptedException e) {
+                System.out.println("Error in publisher burst: " + e.getMessage());
+                e.printStackTrace();
+            }
+            return;
+        }
+
         try {
-            MqttClient client = new MqttClient(broker, CLIENT_ID, persistence);
+            MqttAsyncClient client = new MqttAsyncClient(brokers[0], CLIENT_ID, persistence);
+            publisher = new AsyncPublisher(client, MAX_INFLIGHT, OVERFLOW_POLICY,
+                    Metrics.latencyHistogram("mqtt_delivery_duration_seconds",
+                            "Time from publish until the broker acknowledged the message"));
             MqttConnectOptions options = new MqttConnectOptions();
             options.setCleanSession(true);
             options.setAutomaticReconnect(true);
             options.setConnectionTimeout(10);
+            options.setMaxInflight(MAX_INFLIGHT);
+            options.setServerURIs(brokers);
+            client.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    if (reconnect) {
+                        reconnects.increment();
+                        System.out.println("Reconnected to MQTT broker: " + serverURI);
+                    }
+                }
 
-            System.out.println("Connecting to MQTT broker: " + broker);
+                @Override
+                public void connectionLost(Throwable cause) {
+                    connectionsLost.increment();
+                    System.out.println("Connection to MQTT broker lost: " + cause.getMessage());
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    // Not used for publisher
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                    publisher.deliveryComplete(token);
+                }
+            });
+            if (METRICS_PORT > 0) {
+                Metrics.counter("mqtt_messages_delivered_total", "Messages the broker acknowledged", publisher::getDelivered);
+                Metrics.counter("mqtt_messages_dropped_total", "Messages dropped because the in-flight window was full",
+                        publisher::getDropped);
+                Metrics.gauge("mqtt_inflight_messages", "Messages waiting for the broker", publisher::getInflight);
+                Metrics.startServer(METRICS_PORT);
+            }
+
+            System.out.println("Connecting to MQTT broker: " + String.join(", ", brokers));
             
             // Retry connection until successful
             boolean connected = false;
             while (!connected) {
                 try {
-                    client.connect(options);
+                    client.connect(options).waitForCompletion();
                     connected = true;
-                    System.out.println("Connected to MQTT broker");
+                    System.out.println("Connected to MQTT broker: " + client.getCurrentServerURI());
                 } catch (MqttException me) {
                     System.out.println("Failed to connect, retrying in 5 seconds: " + me.getMessage());
                     Thread.sleep(5000);
@@ -47,18 +130,87 @@ public class Publisher {
                 message.addProperty("timestamp", System.currentTimeMillis() / 1000.0);
 
                 String content = gson.toJson(message);
-                MqttMessage mqttMessage = new MqttMessage(content.getBytes());
-                mqttMessage.setQos(1);
 
                 System.out.println("Publishing message: " + content);
-                client.publish(TOPIC, mqttMessage);
+                long start = System.nanoTime();
+                try {
+                    IMqttDeliveryToken token = publisher.publish(TOPIC, content.getBytes(), QOS);
+                    if (token != null) {
+                        if (PUBLISH_MODE.equals("sync")) {
+                            token.waitForCompletion();
+                        }
+                        published.increment();
+                        firstPublish.reached();
+                    }
+                } catch (MqttException e) {
+                    publishErrors.increment();
+                    throw e;
+                } finally {
+                    publishLatency.record(System.nanoTime() - start);
+                }
                 
                 messageCount++;
                 Thread.sleep(5000);  // Publish a message every 5 seconds
             }
-        } catch (MqttException | InterruptedException e) {
+        } catch (MqttException | InterruptedException | IOException e) {
             System.out.println("Error in publisher: " + e.getMessage());
             e.printStackTrace();
         }
     }
+
+    /**
+     * Measures the publish rate: one run of BURST_MESSAGES per QoS level, each on a fresh connection.
+     */
+    private static void runBursts(String[] brokers) throws MqttException, InterruptedException {
+        byte[] payload = new byte[BURST_PAYLOAD_BYTES];
+        Arrays.fill(payload, (byte) 'x');
+        boolean sync = PUBLISH_MODE.equals("sync");
+        System.out.printf("Burst: %d messages of %d bytes per QoS, mode=%s%s%n", BURST_MESSAGES, BURST_PAYLOAD_BYTES,
+                PUBLISH_MODE, sync ? "" : " max inflight=" + MAX_INFLIGHT + " overflow=" + OVERFLOW_POLICY);
+
+        for (String level : BURST_QOS.split(",")) {
+            int qos = Integer.parseInt(level.trim());
+            MqttAsyncClient client = new MqttAsyncClient(brokers[0], CLIENT_ID + "-burst-qos" + qos, new MemoryPersistence());
+            Metrics.Histogram latency = new Metrics.Histogram(1e-9, 10, 36);
+            AsyncPublisher burst = new AsyncPublisher(client, MAX_INFLIGHT, OVERFLOW_POLICY, latency);
+            client.setCallback(new MqttCallback() {
+                @Override
+                public void connectionLost(Throwable cause) {
+                    System.out.println("Connection to MQTT broker lost: " + cause.getMessage());
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    // Not used for publisher
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                    burst.deliveryComplete(token);
+                }
+            });
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            options.setMaxInflight(MAX_INFLIGHT);
+            options.setServerURIs(brokers);
+            client.connect(options).waitForCompletion();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < BURST_MESSAGES; i++) {
+                IMqttDeliveryToken token = burst.publish(TOPIC, payload, qos);
+                if (token != null && sync) {
+                    token.waitForCompletion();
+                }
+            }
+            boolean complete = burst.awaitCompletion(60000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.printf("QoS %d: %.0f msgs/s (%.3fs), delivery p50=%.3fms p99=%.3fms, %s%s%n",
+                    qos, burst.getDelivered() / seconds, seconds,
+                    latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6, burst.stats(),
+                    complete ? "" : " (timed out waiting for completions)");
+
+            client.disconnect().waitForCompletion();
+            client.close();
+        }
+    }
 }
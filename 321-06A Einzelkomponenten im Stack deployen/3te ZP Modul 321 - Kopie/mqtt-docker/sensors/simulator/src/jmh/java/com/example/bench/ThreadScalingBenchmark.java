@@ -0,0 +1,76 @@
+package com.example.bench;
+
+import com.example.SensorSimulator;
+import com.example.Threads;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread count and memory of the simulator with one thread per sensor (SCHEDULING=threads)
+ * or the timer wheel, against a running broker. Platform or virtual threads depend on the
+ * build and THREAD_MODE, see {@link Threads}; run once per sensor count and mode, as RSS
+ * does not shrink within a JVM.
+ *
+ * Build with {@code mvn -Pjmh package} (add {@code -Pjava21} for virtual threads), then run
+ * {@code java -cp target/sensor-simulator-1.0-SNAPSHOT.jar com.example.bench.ThreadScalingBenchmark [sensors] [threads|wheel] [seconds]}
+ * with MQTT_BROKER_HOST / MQTT_BROKER_PORT pointing at the broker (default localhost:1883).
+ */
+public class ThreadScalingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sensors = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        boolean sensorThreads = args.length < 2 || args[1].equals("threads");
+        long seconds = args.length > 2 ? Long.parseLong(args[2]) : 30;
+        String broker = "tcp://" + System.getenv().getOrDefault("MQTT_BROKER_HOST", "localhost") + ":"
+                + System.getenv().getOrDefault("MQTT_BROKER_PORT", "1883");
+
+        // Every sensor publishes every 5 seconds, 2000 msgs/s at 10k sensors
+        SensorSimulator simulator = new SensorSimulator(broker, "temperature", sensors, 1, 5000,
+                "sensors/{type}", 4, 0, 65535, 10, false);
+        if (sensorThreads) {
+            simulator.useSensorThreads();
+        }
+        simulator.start(TimeUnit.SECONDS.toMillis(seconds * 2));
+
+        // First interval as warm-up, then measure the rate over the rest
+        long warmUpSeconds = Math.min(5, seconds / 3);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmUpSeconds));
+        long publishedBefore = simulator.getPublished();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds - warmUpSeconds));
+        double rate = (simulator.getPublished() - publishedBefore) * 1e9 / (System.nanoTime() - start);
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        System.out.printf("%-6s sensors=%6d scheduling=%-7s threads: live=%5d peak=%5d  RSS=%4d MB (peak %4d MB)"
+                        + "  heap used=%4d MB  rate=%6.0f/%6.0f msgs/s  skipped=%d%n",
+                sensorThreads ? (Threads.isVirtual() ? "virt" : "plat") : "-", sensors,
+                sensorThreads ? "threads" : "wheel", threads.getThreadCount(), threads.getPeakThreadCount(),
+                procStatusKb("VmRSS") / 1024, procStatusKb("VmHWM") / 1024,
+                memory.getHeapMemoryUsage().getUsed() >> 20, rate, simulator.getTargetRate(), simulator.getSkipped());
+        simulator.stop();
+        System.exit(0);
+    }
+
+    /**
+     * A value from /proc/self/status in kB, -1 if not on Linux.
+     */
+    private static long procStatusKb(String key) {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith(key + ":")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (Exception e) {
+            // Not available
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,496 @@
+package com.example;
+
+import org.eclipse.paho.client.mqttv3.*;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator that hosts many virtual sensors in one JVM.
+ *
+ * Sensors are spread over the slots of a timer wheel that a single scheduler
+ * thread advances every {@code TICK_MS}; each slot is visited once per publish
+ * interval, so every sensor publishes once per interval without a thread or
+ * timer of its own. Messages go out over a small pool of shared asynchronous
+ * MQTT connections (sensor i uses connection i % CONNECTIONS) and use the same
+ * JSON shape as TemperatureSensor and HumiditySensor, or with PAYLOAD_FORMAT=binary
+ * the same binary format. With BATCH_SIZE > 1 the readings of all sensors that share a
+ * topic and a connection are packed into batches (see {@link ReadingBatcher}).
+ *
+ * With several brokers in MQTT_BROKERS every connection is placed on the hash ring of
+ * {@link BrokerSelector} by the ID of its first sensor, so the connections, and with them the
+ * sensors, spread over the brokers, and a connection whose broker fails moves to its next one.
+ *
+ * With SCHEDULING=threads every sensor instead runs its own sleep loop on its own thread,
+ * like a real sensor process; in the Java 21 build these are virtual threads (see {@link Threads}).
+ */
+public class SensorSimulator {
+    private static final String BROKER_HOST = System.getenv().getOrDefault("MQTT_BROKER_HOST", "broker");
+    private static final int BROKER_PORT = Integer.parseInt(System.getenv().getOrDefault("MQTT_BROKER_PORT", "1883"));
+    // Several brokers: MQTT_BROKERS=tcp://broker:1883,tcp://broker-2:1883 replaces host and port
+    private static final String BROKERS = BrokerSelector.brokerList(BROKER_HOST, BROKER_PORT);
+    private static final String BROKER_SELECTION = System.getenv().getOrDefault("BROKER_SELECTION", "hash");
+
+    // Simulation settings
+    private static final String SENSOR_TYPE = System.getenv().getOrDefault("SENSOR_TYPE", "temperature");  // temperature, humidity or mixed
+    private static final int SENSOR_COUNT = Integer.parseInt(System.getenv().getOrDefault("SENSOR_COUNT", "1000"));
+    private static final int SENSOR_ID_START = Integer.parseInt(System.getenv().getOrDefault("SENSOR_ID_START", "1"));
+    private static final long PUBLISH_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("PUBLISH_INTERVAL_MS", "10000"));
+    private static final String TOPIC_TEMPLATE = System.getenv().getOrDefault("TOPIC_TEMPLATE", "sensors/{type}");
+    private static final int CONNECTIONS = Integer.parseInt(System.getenv().getOrDefault("CONNECTIONS", "4"));
+    private static final int QOS = Integer.parseInt(System.getenv().getOrDefault("QOS", "0"));
+    private static final int MAX_INFLIGHT = Integer.parseInt(System.getenv().getOrDefault("MAX_INFLIGHT", "1000"));
+    private static final long TICK_MS = Long.parseLong(System.getenv().getOrDefault("TICK_MS", "10"));
+    // wheel: one scheduler thread for all sensors; threads: one thread per sensor
+    private static final String SCHEDULING = System.getenv().getOrDefault("SCHEDULING", "wheel");
+    private static final String PAYLOAD_FORMAT = System.getenv().getOrDefault("PAYLOAD_FORMAT", "json");  // json or binary
+    private static final int BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("BATCH_SIZE", "1"));
+    private static final long BATCH_MAX_DELAY_MS = Long.parseLong(System.getenv().getOrDefault("BATCH_MAX_DELAY_MS", "1000"));
+    private static final boolean BATCH_COMPRESS = Boolean.parseBoolean(System.getenv().getOrDefault("BATCH_COMPRESS", "false"));
+    private static final long REPORT_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("REPORT_INTERVAL_MS", "10000"));
+    // Prometheus endpoint on http://<host>:METRICS_PORT/metrics, 0 to disable
+    private static final int METRICS_PORT = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", "9400"));
+
+    private static final Metrics.Counter connectionsLost = Metrics.counter("mqtt_connections_lost_total",
+            "Times a connection to the broker was lost");
+    private static final Metrics.Counter reconnects = Metrics.counter("mqtt_reconnects_total",
+            "Successful automatic reconnects to the broker");
+    private static final Metrics.Histogram deliveryLatency = Metrics.latencyHistogram("mqtt_delivery_duration_seconds",
+            "Time from publish until the client reported the delivery complete");
+    private static final StartupTimer firstPublish = new StartupTimer("startup_to_first_publish_seconds",
+            "Seconds from process start until the first message was published", "First message published");
+
+    private final int qos;
+    private final long tickMs;
+    private final long intervalNanos;
+
+    // Per-sensor state, indexed by sensor number
+    private final String[] sensorIds;
+    private final String[] topics;
+    private final boolean[] humidity;
+
+    // Timer wheel: slot -> sensors due in that slot
+    private final int[][] wheel;
+    private int cursor;
+
+    // One thread per sensor instead of the wheel, null while disabled
+    private Thread[] sensorThreads;
+    private volatile boolean running = true;
+
+    private final MqttAsyncClient[] clients;
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final StringBuilder payload = new StringBuilder(128);
+    private final BinaryPayloadEncoder binaryEncoder;
+
+    // Batching: one batcher per distinct topic and connection, null while disabled
+    private ReadingBatcher[] batchers;
+    private String[] batchTopics;
+    private int[] batchOf;
+
+    // Counters
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong messagesPublished = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong lateTicks = new AtomicLong();
+    private final double targetRate;
+
+    /**
+     * @param brokers one broker URI or a comma-separated list, see {@link BrokerSelector}
+     */
+    public SensorSimulator(String brokers, String sensorType, int sensorCount, int idStart, long intervalMs,
+                           String topicTemplate, int connections, int qos, int maxInflight, long tickMs,
+                           boolean binaryPayload) throws MqttException {
+        this.binaryEncoder = binaryPayload ? new BinaryPayloadEncoder() : null;
+        this.qos = qos;
+        this.tickMs = tickMs;
+        this.sensorIds = new String[sensorCount];
+        this.topics = new String[sensorCount];
+        this.humidity = new boolean[sensorCount];
+
+        for (int i = 0; i < sensorCount; i++) {
+            boolean isHumidity = "humidity".equals(sensorType) || ("mixed".equals(sensorType) && i % 2 == 1);
+            String type = isHumidity ? "humidity" : "temperature";
+            String id = String.format("%s%03d", isHumidity ? "hum" : "temp", idStart + i);
+            humidity[i] = isHumidity;
+            sensorIds[i] = id;
+            topics[i] = topicTemplate.replace("{type}", type).replace("{id}", id);
+        }
+
+        // Spread the sensors evenly over one publish interval
+        int slots = (int) Math.max(1, intervalMs / tickMs);
+        int[] slotSizes = new int[slots];
+        for (int i = 0; i < sensorCount; i++) {
+            slotSizes[i % slots]++;
+        }
+        wheel = new int[slots][];
+        for (int s = 0; s < slots; s++) {
+            wheel[s] = new int[slotSizes[s]];
+        }
+        for (int i = 0; i < sensorCount; i++) {
+            wheel[i % slots][i / slots] = i;
+        }
+        targetRate = sensorCount * 1000.0 / (slots * tickMs);
+        intervalNanos = TimeUnit.MILLISECONDS.toNanos(slots * tickMs);
+
+        BrokerSelector selector = new BrokerSelector(brokers, BROKER_SELECTION);
+        clients = new MqttAsyncClient[connections];
+        for (int c = 0; c < connections; c++) {
+            // Connection c carries sensor c first, its ID places the connection
+            String[] order = selector.order(c < sensorCount ? sensorIds[c] : "connection" + c);
+            MqttConnectOptions options = new MqttConnectOptions();
+            options.setCleanSession(true);
+            options.setAutomaticReconnect(true);
+            options.setConnectionTimeout(10);
+            options.setMaxInflight(maxInflight);
+            options.setServerURIs(order);
+            clients[c] = new MqttAsyncClient(order[0], "JavaSimulator-" + UUID.randomUUID(), new MemoryPersistence());
+            clients[c].setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    if (reconnect) {
+                        reconnects.increment();
+                        System.out.println("Reconnected to MQTT broker: " + serverURI);
+                    }
+                }
+
+                @Override
+                public void connectionLost(Throwable cause) {
+                    connectionsLost.increment();
+                    System.out.println("Connection to MQTT broker lost: " + cause.getMessage());
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    // Not used for publisher
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                    delivered.incrementAndGet();
+                    Object started = token.getUserContext();
+                    if (started instanceof Long) {
+                        deliveryLatency.record(System.nanoTime() - (Long) started);
+                    }
+                }
+            });
+            connect(clients[c], options);
+        }
+    }
+
+    private void connect(MqttAsyncClient client, MqttConnectOptions options) {
+        // Retry connection until successful
+        boolean connected = false;
+        while (!connected) {
+            try {
+                client.connect(options).waitForCompletion();
+                connected = true;
+                System.out.println("Connected to MQTT broker: " + client.getCurrentServerURI());
+            } catch (MqttException me) {
+                System.out.println("Failed to connect, retrying in 5 seconds: " + me.getMessage());
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    public void start(long reportIntervalMs) {
+        System.out.printf("Simulating %d sensors over %d connections, target %.1f msgs/s%n",
+                sensorIds.length, clients.length, targetRate);
+        if (sensorThreads == null) {
+            scheduler.scheduleAtFixedRate(this::tick, 0, tickMs, TimeUnit.MILLISECONDS);
+        } else {
+            System.out.printf("One %s thread per sensor%n", Threads.isVirtual() ? "virtual" : "platform");
+            long startNanos = System.nanoTime();
+            for (int sensor = 0; sensor < sensorThreads.length; sensor++) {
+                int index = sensor;
+                sensorThreads[sensor] = Threads.newThread("sensor-" + sensorIds[sensor],
+                        () -> runSensor(index, startNanos));
+                sensorThreads[sensor].start();
+            }
+            if (batchers != null) {
+                scheduler.scheduleAtFixedRate(() -> sendDueBatches(System.currentTimeMillis()),
+                        tickMs, tickMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            private long lastPublished;
+            private long lastNanos = System.nanoTime();
+
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                long count = published.get();
+                double achieved = (count - lastPublished) * 1e9 / (now - lastNanos);
+                lastPublished = count;
+                lastNanos = now;
+                System.out.printf("Publish rate: achieved %.1f msgs/s, target %.1f msgs/s (%.1f%%), mqtt messages=%d delivered=%d skipped=%d late ticks=%d%n",
+                        achieved, targetRate, 100.0 * achieved / targetRate, messagesPublished.get(), delivered.get(),
+                        skipped.get(), lateTicks.get());
+            }
+        }, reportIntervalMs, reportIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publishes one reading for every sensor in the current slot and advances the wheel.
+     */
+    private void tick() {
+        long start = System.nanoTime();
+        int[] due = wheel[cursor];
+        cursor = (cursor + 1) % wheel.length;
+        long timestamp = System.currentTimeMillis();
+        for (int sensor : due) {
+            publish(sensor, timestamp, payload, binaryEncoder);
+        }
+        sendDueBatches(timestamp);
+        if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(tickMs)) {
+            lateTicks.incrementAndGet();
+        }
+    }
+
+    /**
+     * The loop of one sensor with SCHEDULING=threads: publish, then sleep until the next interval.
+     */
+    private void runSensor(int sensor, long startNanos) {
+        StringBuilder payload = new StringBuilder(128);
+        BinaryPayloadEncoder encoder = binaryEncoder != null ? new BinaryPayloadEncoder() : null;
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMs);
+        // Same spread over the interval as the sensor's slot in the timer wheel
+        long next = startNanos + (sensor % wheel.length) * tickNanos;
+        while (running) {
+            long delay = next - System.nanoTime();
+            if (delay > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            } else if (-delay > tickNanos) {
+                lateTicks.incrementAndGet();
+            }
+            publish(sensor, System.currentTimeMillis(), payload, encoder);
+            next += intervalNanos;
+        }
+    }
+
+    private void sendDueBatches(long nowMillis) {
+        if (batchers == null) {
+            return;
+        }
+        for (int batch = 0; batch < batchers.length; batch++) {
+            synchronized (batchers[batch]) {
+                if (batchers[batch].isDue(nowMillis)) {
+                    sendBatch(batch);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param payload and encoder are scratch space of the calling thread
+     */
+    private void publish(int sensor, long timestampMillis, StringBuilder payload, BinaryPayloadEncoder encoder) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        double value = humidity[sensor]
+                ? 30.0 + (random.nextDouble() * 50.0)
+                : 15.0 + (random.nextDouble() * 15.0);
+        value = Math.round(value * 10.0) / 10.0;  // Round to 1 decimal place
+
+        byte[] bytes;
+        if (encoder != null) {
+            bytes = encoder.encode(humidity[sensor] ? "humidity" : "temperature", sensorIds[sensor], value,
+                    humidity[sensor] ? "%" : "°C", timestampMillis);
+        } else {
+            // Same JSON as gson.toJson() in the single sensors
+            payload.setLength(0);
+            payload.append("{\"sensor\":\"").append(humidity[sensor] ? "humidity" : "temperature")
+                    .append("\",\"sensor_id\":\"").append(sensorIds[sensor])
+                    .append("\",\"value\":").append(value)
+                    .append(",\"unit\":\"").append(humidity[sensor] ? "%" : "°C")
+                    .append("\",\"timestamp\":").append(timestampMillis / 1000.0)
+                    .append('}');
+            bytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        if (batchers != null) {
+            int batch = batchOf[sensor];
+            // Only contended with SCHEDULING=threads
+            synchronized (batchers[batch]) {
+                if (batchers[batch].add(bytes, timestampMillis)) {
+                    sendBatch(batch);
+                }
+            }
+            return;
+        }
+        send(clients[sensor % clients.length], topics[sensor], bytes, 1);
+    }
+
+    private void sendBatch(int batch) {
+        ReadingBatcher batcher = batchers[batch];
+        int readings = batcher.size();
+        send(clients[batch % clients.length], batchTopics[batch / clients.length], batcher.drain(), readings);
+    }
+
+    private void send(MqttAsyncClient client, String topic, byte[] bytes, int readings) {
+        try {
+            // The start time travels with the token to deliveryComplete
+            MqttMessage message = new MqttMessage(bytes);
+            message.setQos(qos);
+            client.publish(topic, message, System.nanoTime(), null);
+            published.addAndGet(readings);
+            messagesPublished.incrementAndGet();
+            firstPublish.reached();
+        } catch (MqttException e) {
+            // Inflight window full or connection down: skip these readings
+            skipped.addAndGet(readings);
+        }
+    }
+
+    /**
+     * Packs readings into batches from now on; call before {@link #start}.
+     * Sensors keep their connection, so the readings of one sensor stay in order.
+     */
+    public void enableBatching(int maxReadings, long maxDelayMs, boolean compress) {
+        Map<String, Integer> topicIndex = new HashMap<>();
+        List<String> distinctTopics = new ArrayList<>();
+        batchOf = new int[topics.length];
+        for (int i = 0; i < topics.length; i++) {
+            Integer index = topicIndex.get(topics[i]);
+            if (index == null) {
+                index = distinctTopics.size();
+                topicIndex.put(topics[i], index);
+                distinctTopics.add(topics[i]);
+            }
+            batchOf[i] = index * clients.length + i % clients.length;
+        }
+        batchTopics = distinctTopics.toArray(new String[0]);
+        ReadingBatcher[] created = new ReadingBatcher[batchTopics.length * clients.length];
+        for (int batch = 0; batch < created.length; batch++) {
+            created[batch] = new ReadingBatcher(binaryEncoder != null, maxReadings, maxDelayMs, compress);
+        }
+        batchers = created;
+        System.out.printf("Batching up to %d readings or %dms into %d batch streams%s%n",
+                maxReadings, maxDelayMs, created.length, compress ? ", compressed" : "");
+    }
+
+    /**
+     * Runs every sensor on its own thread instead of the timer wheel; call before {@link #start}.
+     */
+    public void useSensorThreads() {
+        sensorThreads = new Thread[sensorIds.length];
+    }
+
+    /**
+     * Exposes the simulator counters on the metrics endpoint.
+     */
+    public void registerMetrics() {
+        Metrics.counter("mqtt_messages_published_total", "MQTT messages published", messagesPublished::get);
+        Metrics.counter("simulator_readings_published_total", "Readings published, alone or in batches", published::get);
+        Metrics.counter("mqtt_messages_delivered_total", "Publishes the client reported as delivered", delivered::get);
+        Metrics.counter("simulator_skipped_total", "Readings skipped because the inflight window was full or the connection down",
+                skipped::get);
+        Metrics.counter("simulator_late_ticks_total",
+                "Timer wheel ticks that took longer than the tick, or sensor threads that woke up a tick late", lateTicks::get);
+        Metrics.gauge("mqtt_inflight_messages", "Publishes waiting for completion over all connections", () -> {
+            long inflight = 0;
+            for (MqttAsyncClient client : clients) {
+                inflight += client.getInFlightMessageCount();
+            }
+            return inflight;
+        });
+        Metrics.gauge("simulator_target_rate", "Configured publish rate in messages per second", () -> targetRate);
+        Metrics.gauge("simulator_sensors", "Simulated sensors", () -> sensorIds.length);
+    }
+
+    public long getPublished() {
+        return published.get();
+    }
+
+    public long getDelivered() {
+        return delivered.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    public void stop() {
+        running = false;
+        scheduler.shutdown();
+        if (sensorThreads != null) {
+            for (Thread thread : sensorThreads) {
+                if (thread != null) {
+                    thread.interrupt();
+                }
+            }
+        }
+        if (batchers != null) {
+            // Send what is still collected once the tick thread is done
+            try {
+                scheduler.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (int batch = 0; batch < batchers.length; batch++) {
+                synchronized (batchers[batch]) {
+                    if (batchers[batch].size() > 0) {
+                        sendBatch(batch);
+                    }
+                }
+            }
+        }
+        for (MqttAsyncClient client : clients) {
+            try {
+                if (client.isConnected()) {
+                    client.disconnect().waitForCompletion(5000);
+                }
+                client.close();
+            } catch (MqttException e) {
+                System.out.println("Error disconnecting: " + e.getMessage());
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        System.out.println("Connecting to MQTT broker: " + BROKERS);
+        try {
+            SensorSimulator simulator = new SensorSimulator(BROKERS, SENSOR_TYPE, SENSOR_COUNT, SENSOR_ID_START,
+                    PUBLISH_INTERVAL_MS, TOPIC_TEMPLATE, CONNECTIONS, QOS, MAX_INFLIGHT, TICK_MS,
+                    PAYLOAD_FORMAT.equals("binary"));
+            Runtime.getRuntime().addShutdownHook(new Thread(simulator::stop));
+            if (BATCH_SIZE > 1) {
+                simulator.enableBatching(BATCH_SIZE, BATCH_MAX_DELAY_MS, BATCH_COMPRESS);
+            }
+            if (SCHEDULING.equals("threads")) {
+                simulator.useSensorThreads();
+            }
+            if (METRICS_PORT > 0) {
+                simulator.registerMetrics();
+                Metrics.startServer(METRICS_PORT);
+            }
+            simulator.start(REPORT_INTERVAL_MS);
+        } catch (MqttException | IOException e) {
+            System.out.println("Error in sensor simulator: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.example;
+
+/**
+ * Creates the per-sensor threads of {@code SCHEDULING=threads}.
+ *
+ * The Java 11 build creates platform daemon threads. Built with {@code mvn -Pjava21}, the
+ * build also contains {@code VirtualThreads} from {@code src/java21/java} and the threads
+ * are virtual; {@code THREAD_MODE=platform} switches back to platform threads, e.g. to
+ * compare both in one build.
+ */
+public final class Threads {
+
+    /**
+     * Implemented by {@code VirtualThreads}, which only exists in the Java 21 build.
+     */
+    interface Provider {
+        Thread newThread(String name, Runnable task);
+    }
+
+    private static final Provider VIRTUAL = loadVirtual(System.getenv().getOrDefault("THREAD_MODE", "virtual"));
+
+    private Threads() {
+    }
+
+    /**
+     * @return an unstarted thread
+     */
+    public static Thread newThread(String name, Runnable task) {
+        if (VIRTUAL != null) {
+            return VIRTUAL.newThread(name, task);
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public static boolean isVirtual() {
+        return VIRTUAL != null;
+    }
+
+    private static Provider loadVirtual(String mode) {
+        if (mode.equalsIgnoreCase("platform")) {
+            return null;
+        }
+        try {
+            return (Provider) Class.forName("com.example.VirtualThreads").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            // Java 11 build
+            return null;
+        }
+    }
+}
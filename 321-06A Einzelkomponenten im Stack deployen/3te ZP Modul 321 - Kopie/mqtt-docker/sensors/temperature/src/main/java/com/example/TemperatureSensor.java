@@ -5,6 +5,8 @@ import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
 import com.google.gson.Gson;
 import com.google.gson.JsonObject;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Random;
 import java.util.UUID;
 
@@ -13,31 +15,153 @@ public class TemperatureSensor {
     private static final int BROKER_PORT = Integer.parseInt(System.getenv().getOrDefault("MQTT_BROKER_PORT", "1883"));
     private static final String TOPIC = System.getenv().getOrDefault("MQTT_TOPIC", "sensors/temperature");
     private static final String SENSOR_ID = System.getenv().getOrDefault("SENSOR_ID", "temp001");
+    // Several brokers: MQTT_BROKERS=tcp://broker:1883,tcp://broker-2:1883 replaces host and port. With
+    // BROKER_SELECTION=hash the SENSOR_ID picks a home broker on a hash ring and the others follow as failover
+    private static final String BROKERS = BrokerSelector.brokerList(BROKER_HOST, BROKER_PORT);
+    private static final String BROKER_SELECTION = System.getenv().getOrDefault("BROKER_SELECTION", "hash");
     private static final String CLIENT_ID = "JavaTempSensor-" + UUID.randomUUID().toString();
+
+    // sync waits for every PUBACK, async keeps up to MAX_INFLIGHT messages in flight
+    private static final String PUBLISH_MODE = System.getenv().getOrDefault("PUBLISH_MODE", "sync");
+    private static final int QOS = Integer.parseInt(System.getenv().getOrDefault("QOS", "1"));
+    private static final int MAX_INFLIGHT = Integer.parseInt(System.getenv().getOrDefault("MAX_INFLIGHT", "100"));
+    private static final AsyncPublisher.OverflowPolicy OVERFLOW_POLICY = AsyncPublisher.OverflowPolicy.parse(
+            System.getenv().getOrDefault("OVERFLOW_POLICY", "block"));
+    // json or binary, see BinaryPayloadEncoder
+    private static final boolean BINARY_PAYLOAD = System.getenv().getOrDefault("PAYLOAD_FORMAT", "json").equals("binary");
+    // Client-side batching: send BATCH_SIZE readings per message, or fewer once the oldest is BATCH_MAX_DELAY_MS old
+    private static final int BATCH_SIZE = Integer.parseInt(System.getenv().getOrDefault("BATCH_SIZE", "1"));
+    private static final long BATCH_MAX_DELAY_MS = Long.parseLong(System.getenv().getOrDefault("BATCH_MAX_DELAY_MS", "60000"));
+    private static final boolean BATCH_COMPRESS = Boolean.parseBoolean(System.getenv().getOrDefault("BATCH_COMPRESS", "false"));
+    // Store-and-forward: messages wait here while the broker is unreachable and are sent at up to CATCHUP_RATE per second
+    private static final int OFFLINE_BUFFER_BYTES = Integer.parseInt(System.getenv().getOrDefault("OFFLINE_BUFFER_BYTES", "1048576"));
+    private static final double CATCHUP_RATE = Double.parseDouble(System.getenv().getOrDefault("CATCHUP_RATE", "20"));
+    // Change-based reporting, see PublishPolicy: read every SAMPLE_INTERVAL_MS, publish only changes beyond DEADBAND
+    // (0 publishes every reading), but at least every MAX_SILENCE_MS; CONTROL_TOPIC adjusts this at runtime, empty to disable
+    private static final long SAMPLE_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("SAMPLE_INTERVAL_MS", "10000"));
+    private static final double DEADBAND = Double.parseDouble(System.getenv().getOrDefault("DEADBAND", "0"));
+    private static final long MAX_SILENCE_MS = Long.parseLong(System.getenv().getOrDefault("MAX_SILENCE_MS", "60000"));
+    private static final long MIN_INTERVAL_MS = Long.parseLong(System.getenv().getOrDefault("MIN_INTERVAL_MS", "100"));
+    private static final String CONTROL_TOPIC = System.getenv().getOrDefault("CONTROL_TOPIC", "sensor/control");
+
+    // Prometheus endpoint on http://<host>:METRICS_PORT/metrics, 0 to disable
+    private static final int METRICS_PORT = Integer.parseInt(System.getenv().getOrDefault("METRICS_PORT", "9400"));
+
+    private static final Metrics.Counter published = Metrics.counter("mqtt_messages_published_total",
+            "MQTT messages published");
+    private static final Metrics.Counter publishErrors = Metrics.counter("mqtt_publish_errors_total",
+            "Publish calls that failed");
+    private static final Metrics.Counter connectionsLost = Metrics.counter("mqtt_connections_lost_total",
+            "Times the connection to the broker was lost");
+    private static final Metrics.Counter reconnects = Metrics.counter("mqtt_reconnects_total",
+            "Successful automatic reconnects to the broker");
+    private static final Metrics.Histogram publishLatency = Metrics.latencyHistogram("mqtt_publish_duration_seconds",
+            "Time a publish call blocked, including the PUBACK in sync mode");
+    private static final StartupTimer firstPublish = new StartupTimer("startup_to_first_publish_seconds",
+            "Seconds from process start until the first message was published", "First message published");
+
+    private static final PublishPolicy policy = new PublishPolicy(SAMPLE_INTERVAL_MS, DEADBAND, MAX_SILENCE_MS, MIN_INTERVAL_MS);
+
+    private static MqttAsyncClient client;
+    private static AsyncPublisher publisher;
     
     private static final Random random = new Random();
 
     public static void main(String[] args) {
-        String broker = "tcp://" + BROKER_HOST + ":" + BROKER_PORT;
+        String[] brokers = new BrokerSelector(BROKERS, BROKER_SELECTION).order(SENSOR_ID);
         MemoryPersistence persistence = new MemoryPersistence();
         Gson gson = new Gson();
+        BinaryPayloadEncoder binaryEncoder = new BinaryPayloadEncoder();
+        ReadingBatcher batcher = BATCH_SIZE > 1
+                ? new ReadingBatcher(BINARY_PAYLOAD, BATCH_SIZE, BATCH_MAX_DELAY_MS, BATCH_COMPRESS) : null;
+        OfflineBuffer buffer = new OfflineBuffer(OFFLINE_BUFFER_BYTES, CATCHUP_RATE,
+                Metrics.histogram("offline_buffer_drain_duration_seconds",
+                        "Time to send the buffered backlog after the broker was unreachable", 1e-9, 20, 42));
 
         try {
-            MqttClient client = new MqttClient(broker, CLIENT_ID, persistence);
+            client = new MqttAsyncClient(brokers[0], CLIENT_ID, persistence);
+            publisher = new AsyncPublisher(client, MAX_INFLIGHT, OVERFLOW_POLICY,
+                    Metrics.latencyHistogram("mqtt_delivery_duration_seconds",
+                            "Time from publish until the broker acknowledged the message"));
             MqttConnectOptions options = new MqttConnectOptions();
             options.setCleanSession(true);
             options.setAutomaticReconnect(true);
             options.setConnectionTimeout(10);
+            options.setMaxInflight(MAX_INFLIGHT);
+            options.setServerURIs(brokers);
+            client.setCallback(new MqttCallbackExtended() {
+                @Override
+                public void connectComplete(boolean reconnect, String serverURI) {
+                    if (reconnect) {
+                        reconnects.increment();
+                        System.out.println("Reconnected to MQTT broker: " + serverURI);
+                    }
+                    // Clean sessions drop the subscription, so subscribe again after every connect
+                    if (!CONTROL_TOPIC.isEmpty()) {
+                        try {
+                            client.subscribe(CONTROL_TOPIC, 1);
+                        } catch (MqttException e) {
+                            System.out.println("Failed to subscribe to " + CONTROL_TOPIC + ": " + e.getMessage());
+                        }
+                    }
+                }
+
+                @Override
+                public void connectionLost(Throwable cause) {
+                    connectionsLost.increment();
+                    System.out.println("Connection to MQTT broker lost: " + cause.getMessage());
+                }
+
+                @Override
+                public void messageArrived(String topic, MqttMessage message) {
+                    String text = new String(message.getPayload(), StandardCharsets.UTF_8);
+                    try {
+                        String settings = policy.applyControl(text, "temperature", SENSOR_ID);
+                        if (settings != null) {
+                            System.out.println("Control message applied: " + settings);
+                        }
+                    } catch (IllegalArgumentException e) {
+                        System.out.println("Ignoring control message " + text + ": " + e.getMessage());
+                    }
+                }
+
+                @Override
+                public void deliveryComplete(IMqttDeliveryToken token) {
+                    publisher.deliveryComplete(token);
+                }
+            });
+            if (METRICS_PORT > 0) {
+                Metrics.counter("mqtt_messages_delivered_total", "Messages the broker acknowledged", publisher::getDelivered);
+                Metrics.counter("mqtt_messages_dropped_total", "Messages dropped because the in-flight window was full",
+                        publisher::getDropped);
+                Metrics.gauge("mqtt_inflight_messages", "Messages waiting for the broker", publisher::getInflight);
+                Metrics.gauge("offline_buffer_messages", "Messages waiting in the store-and-forward buffer", buffer::size);
+                Metrics.gauge("offline_buffer_fill_ratio", "Fraction of the store-and-forward buffer in use",
+                        () -> (double) buffer.usedBytes() / buffer.capacityBytes());
+                Metrics.counter("offline_buffer_dropped_total", "Oldest messages dropped because the buffer was full",
+                        buffer::getDropped);
+                Metrics.counter("readings_suppressed_total", "Readings not published because they stayed within the deadband",
+                        policy::getSuppressed);
+                Metrics.counter("heartbeats_total", "Readings published only because MAX_SILENCE_MS had passed",
+                        policy::getHeartbeats);
+                Metrics.counter("control_messages_applied_total", "Control messages that changed the publish policy",
+                        policy::getControlMessages);
+                Metrics.gauge("publish_interval_seconds", "Current time between readings",
+                        () -> policy.getIntervalMs() / 1000.0);
+                Metrics.startServer(METRICS_PORT);
+            }
 
-            System.out.println("Connecting to MQTT broker: " + broker);
+            System.out.println("Connecting to MQTT broker: " + String.join(", ", brokers));
+            System.out.println("Publish policy: " + policy
+                    + (CONTROL_TOPIC.isEmpty() ? "" : ", control topic " + CONTROL_TOPIC));
             
             // Retry connection until successful
             boolean connected = false;
             while (!connected) {
                 try {
-                    client.connect(options);
+                    client.connect(options).waitForCompletion();
                     connected = true;
-                    System.out.println("Connected to MQTT broker");
+                    System.out.println("Connected to MQTT broker: " + client.getCurrentServerURI());
                 } catch (MqttException me) {
                     System.out.println("Failed to connect, retrying in 5 seconds: " + me.getMessage());
                     Thread.sleep(5000);
@@ -45,29 +169,77 @@ public class TemperatureSensor {
             }
 
             while (true) {
+                long readingMillis = System.currentTimeMillis();
                 // Generate random temperature data between 15 and 30 degrees
                 double temperature = 15.0 + (random.nextDouble() * 15.0);
                 temperature = Math.round(temperature * 10.0) / 10.0;  // Round to 1 decimal place
 
-                JsonObject message = new JsonObject();
-                message.addProperty("sensor", "temperature");
-                message.addProperty("sensor_id", SENSOR_ID);
-                message.addProperty("value", temperature);
-                message.addProperty("unit", "°C");
-                message.addProperty("timestamp", System.currentTimeMillis() / 1000.0);
-
-                String content = gson.toJson(message);
-                MqttMessage mqttMessage = new MqttMessage(content.getBytes());
-                mqttMessage.setQos(1);
-
-                System.out.println("Publishing temperature: " + temperature + "°C");
-                client.publish(TOPIC, mqttMessage);
-                
-                Thread.sleep(10000);  // Publish a reading every 10 seconds
+                // Unchanged readings are skipped, apart from a heartbeat after MAX_SILENCE_MS
+                if (policy.shouldPublish(temperature, readingMillis)) {
+                    byte[] payload;
+                    if (BINARY_PAYLOAD) {
+                        payload = binaryEncoder.encode("temperature", SENSOR_ID, temperature, "°C", System.currentTimeMillis());
+                    } else {
+                        JsonObject message = new JsonObject();
+                        message.addProperty("sensor", "temperature");
+                        message.addProperty("sensor_id", SENSOR_ID);
+                        message.addProperty("value", temperature);
+                        message.addProperty("unit", "°C");
+                        message.addProperty("timestamp", System.currentTimeMillis() / 1000.0);
+                        payload = gson.toJson(message).getBytes();
+                    }
+
+                    System.out.println("Publishing temperature: " + temperature + "°C");
+                    if (batcher == null) {
+                        buffer.add(payload);
+                    } else if (batcher.add(payload, readingMillis)) {
+                        // Otherwise keep collecting until the batch is full or old enough
+                        System.out.println("Publishing batch of " + batcher.size() + " readings");
+                        buffer.add(batcher.drain());
+                    }
+                }
+
+                // Until the next reading the buffer sends it, and any backlog; in short slices, so an
+                // interval changed on the control topic applies within a second
+                int sent = 0;
+                long remaining;
+                while ((remaining = readingMillis + policy.getIntervalMs() - System.currentTimeMillis()) > 0) {
+                    sent += buffer.drain(TemperatureSensor::send, Math.min(remaining, 1000));
+                }
+                if (sent > 1) {
+                    System.out.println("Sent " + sent + " messages, " + buffer.size() + " still buffered");
+                }
             }
-        } catch (MqttException | InterruptedException e) {
+        } catch (MqttException | InterruptedException | IOException e) {
             System.out.println("Error in temperature sensor: " + e.getMessage());
             e.printStackTrace();
         }
     }
+
+    /**
+     * @return false if the message should stay in the buffer and be sent again later
+     */
+    private static boolean send(byte[] payload) throws InterruptedException {
+        if (!client.isConnected()) {
+            return false;
+        }
+        long start = System.nanoTime();
+        try {
+            IMqttDeliveryToken token = publisher.publish(TOPIC, payload, QOS);
+            if (token != null) {
+                if (PUBLISH_MODE.equals("sync")) {
+                    token.waitForCompletion();
+                }
+                published.increment();
+                firstPublish.reached();
+            }
+            return true;
+        } catch (MqttException e) {
+            publishErrors.increment();
+            System.out.println("Failed to publish, keeping the message buffered: " + e.getMessage());
+            return false;
+        } finally {
+            publishLatency.record(System.nanoTime() - start);
+        }
+    }
 }